@@ -7,19 +7,21 @@ import ${package}.error.NotFoundErrorPage;
 import ${package}.home.HomePage;
 
 import fiftyfive.wicket.js.MergedJavaScriptBuilder;
+import fiftyfive.wicket.mapper.PatternCompoundRequestMapper;
 import fiftyfive.wicket.mapper.PatternMountedMapper;
 
 import org.apache.wicket.Page;
 import org.apache.wicket.protocol.http.WebApplication;
-import org.apache.wicket.request.mapper.CompoundRequestMapper;
 
 
 /**
  * All custom mappings (in other words, "mount points" or "routes")
  * for ${project_name}.
  * This includes merged JavaScript and pretty URLs for all bookmarkable pages.
+ * Page mounts are indexed by URL segment, so adding more pages does not slow down
+ * the resolution of each request.
  */
-public class WicketMappings extends CompoundRequestMapper
+public class WicketMappings extends PatternCompoundRequestMapper
 {
     public WicketMappings(WebApplication app)
     {
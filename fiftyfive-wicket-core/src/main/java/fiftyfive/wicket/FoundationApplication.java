@@ -15,14 +15,31 @@
  */
 package fiftyfive.wicket;
 
+import java.io.File;
 import java.util.Date;
+import java.util.Map;
 
 import fiftyfive.util.Version;
+import fiftyfive.wicket.monitor.AccessLog;
+import fiftyfive.wicket.monitor.PageSizeSampler;
+import fiftyfive.wicket.monitor.RenderProfiler;
+import fiftyfive.wicket.monitor.SessionRegistry;
+import fiftyfive.wicket.monitor.SessionSizeTracker;
+import fiftyfive.wicket.pagestore.SegmentDataStore;
+import fiftyfive.wicket.serialize.CompactSerializer;
+import fiftyfive.wicket.util.InitPhases;
+import fiftyfive.wicket.util.StartupWarmup;
+import fiftyfive.wicket.util.WatchServiceModificationWatcher;
 
+import org.apache.wicket.Application;
+import org.apache.wicket.DefaultPageManagerProvider;
+import org.apache.wicket.IApplicationListener;
+import org.apache.wicket.pageStore.IDataStore;
 import org.apache.wicket.protocol.http.RequestLogger;
 import org.apache.wicket.protocol.http.WebApplication;
 import org.apache.wicket.response.filter.AjaxServerAndClientTimeFilter;
 import org.apache.wicket.util.file.Path;
+import org.apache.wicket.util.lang.Bytes;
 import org.apache.wicket.util.time.Duration;
 import org.apache.wicket.util.time.Time;
 import org.slf4j.Logger;
@@ -34,15 +51,24 @@ import static org.apache.wicket.RuntimeConfigurationType.DEVELOPMENT;
  * for Wicket configuration.
  * <ul>
  * <li>Provides a {@link #getStartupDate} method</li>
+ * <li>Logs how long each phase of initialization took, and can run independent
+ *     initialization phases concurrently</li>
  * <li>Exposes version and build timestamp information</li>
  * <li>Removes Wicket tags, wicket:id attributes, and other cruft from
  *     generated markup to ensure XHTML compliance</li>
- * <li>Enables Wicket's request logging facility if an appropriate SLF4J
+ * <li>Enables a lightweight request access log if an appropriate SLF4J
  *     logger is configured</li>
  * <li>In development mode, enable automatic reloading of HTML templates from
  *     the source code directory ("hot deploy")</li>
  * <li>In development mode, turn off the ajax debugger (it is a browser
  *     memory hog)</li>
+ * <li>Optionally profiles component render times</li>
+ * <li>Optionally keeps a cheap estimate of each session's size for logging and monitoring</li>
+ * <li>Keeps a registry of live sessions and their start times</li>
+ * <li>Optionally analyzes the serialized size of a sample of pages</li>
+ * <li>Optionally uses a more compact serializer for the page store</li>
+ * <li>Optionally stores pages in preallocated, memory-mapped segment files</li>
+ * <li>Optionally warms up markup and resource caches at startup</li>
  * </ul>
  *
  * @author Matt Brictson
@@ -50,8 +76,12 @@ import static org.apache.wicket.RuntimeConfigurationType.DEVELOPMENT;
  */
 public abstract class FoundationApplication extends WebApplication
 {
-    private Date    startupDate;
-    private Version version;
+    private static final Logger LOGGER = LoggerFactory.getLogger(FoundationApplication.class);
+    
+    private Date       startupDate;
+    private Version    version;
+    private InitPhases initPhases;
+    private StartupWarmup warmup;
     
     public FoundationApplication()
     {
@@ -92,6 +122,19 @@ public abstract class FoundationApplication extends WebApplication
         return Duration.elapsed(Time.valueOf(start));
     }
     
+    /**
+     * Returns how long each phase of initialization took, in the order they finished. This
+     * includes each of the {@code init} methods called by {@link #init}, the rest of your
+     * subclass's {@code init()}, and any phases added via {@link #addInitPhase} and
+     * {@link #addConcurrentInitPhase}.
+     * 
+     * @since 4.0
+     */
+    public Map<String, Duration> getStartupTimings()
+    {
+        return null == this.initPhases ? null : this.initPhases.getTimings();
+    }
+    
     /**
      * Helper method that returns true if {@link #getConfigurationType}
      * is equal to DEVELOPMENT.
@@ -112,32 +155,130 @@ public abstract class FoundationApplication extends WebApplication
      * <li>Calls {@link WebApplication#init super.init()}.</li>
      * <li>Executes the following regardless of configuration mode:<ul>
      *   <li>{@link #initVersionInformation}</li>
+     *   <li>{@link #initSerializer}</li>
      *   <li>{@link #initCleanMarkup}</li>
      *   <li>{@link #initResources}</li>
-     *   <li>{@link #initRequestLogger}</li></ul></li>
+     *   <li>{@link #initRequestLogger}</li>
+     *   <li>{@link #initRenderProfiler}</li>
+     *   <li>{@link #initPageStore}</li>
+     *   <li>{@link #initSessionSizeTracker}</li>
+     *   <li>{@link #initSessionRegistry}</li>
+     *   <li>{@link #initPageSizeSampler}</li>
+     *   <li>{@link #initWarmup}</li></ul></li>
      * <li>Executes the following only if the application is in
      *     DEVELOPMENT mode:<ul>
      *   <li>{@link #initHtmlHotDeploy}</li>
      *   <li>{@link #initDebugInformation}</li></ul></li>
      * </ol>
+     * Each of these steps is timed. Once your subclass's {@code init()} has returned, the
+     * phases added with {@link #addInitPhase addInitPhase()} and
+     * {@link #addConcurrentInitPhase addConcurrentInitPhase()} are run, and a breakdown of
+     * the startup time is logged at {@code INFO}.
      */
     @Override
     protected void init()
     {
         this.startupDate = new Date();
+        this.initPhases = new InitPhases();
+        getApplicationListeners().add(new IApplicationListener() {
+            public void onAfterInitialized(Application application)
+            {
+                runInitPhases();
+            }
+            public void onBeforeDestroyed(Application application)
+            {
+            }
+        });
 
         super.init();
+        endInitPhase("super.init");
 
         initVersionInformation();
+        endInitPhase("initVersionInformation");
+        initSerializer();
+        endInitPhase("initSerializer");
         initCleanMarkup();
+        endInitPhase("initCleanMarkup");
         initResources();
+        endInitPhase("initResources");
         initRequestLogger();
+        endInitPhase("initRequestLogger");
+        initRenderProfiler();
+        endInitPhase("initRenderProfiler");
+        initPageStore();
+        endInitPhase("initPageStore");
+        initSessionSizeTracker();
+        endInitPhase("initSessionSizeTracker");
+        initSessionRegistry();
+        endInitPhase("initSessionRegistry");
+        initPageSizeSampler();
+        endInitPhase("initPageSizeSampler");
+        initWarmup();
+        endInitPhase("initWarmup");
         
         if(usesDevelopmentConfig())
         {
             initHtmlHotDeploy();
+            endInitPhase("initHtmlHotDeploy");
             initDebugInformation();
+            endInitPhase("initDebugInformation");
+        }
+    }
+    
+    /**
+     * Adds a phase of initialization to be run, and timed, once your subclass's
+     * {@code init()} has returned. Phases added this way run one after another on the
+     * initializing thread, in the order they were added. Call this from {@code init()}.
+     * 
+     * @since 4.0
+     */
+    protected void addInitPhase(String name, Runnable phase)
+    {
+        this.initPhases.add(name, phase);
+    }
+    
+    /**
+     * Adds a phase of initialization that can run concurrently with all other added phases,
+     * for example building a merged resource bundle or preloading a cache. Concurrent phases
+     * start once your subclass's {@code init()} has returned, each on its own thread, and
+     * startup waits for all of them to finish. They must therefore not depend on one
+     * another, and any application settings they change must be safe to change from
+     * several threads. Call this from {@code init()}.
+     * 
+     * @since 4.0
+     */
+    protected void addConcurrentInitPhase(String name, Runnable phase)
+    {
+        this.initPhases.addConcurrent(name, phase);
+    }
+    
+    /**
+     * Records the time since the previous phase of initialization ended as the duration of
+     * the named phase. Subclasses can call this from {@code init()} to break down their own
+     * initialization in the startup timings. Anything not attributed this way is reported
+     * as {@code "init"}.
+     * 
+     * @since 4.0
+     */
+    protected void endInitPhase(String name)
+    {
+        this.initPhases.end(name);
+    }
+    
+    /**
+     * Runs the added initialization phases, then the {@link StartupWarmup} registered by
+     * {@link #initWarmup}, if any, and logs the startup breakdown.
+     */
+    private void runInitPhases()
+    {
+        this.initPhases.end("init");
+        this.initPhases.run(this);
+        if(this.warmup != null)
+        {
+            this.warmup.warmUp(this);
+            this.initPhases.end("warmup");
         }
+        LOGGER.info("Initialized {} in {}", getName(), this.initPhases);
     }
     
     /**
@@ -160,12 +301,23 @@ public abstract class FoundationApplication extends WebApplication
      *     java/
      *     resources/
      *     webapp/</pre>
+     * <p>
+     * On Java 7 and later, changes are detected with a
+     * {@link WatchServiceModificationWatcher}, which is notified by the operating system
+     * when a file in a watched directory changes, instead of checking every loaded
+     * resource once a second.
      *
      * @see <a href="http://docs.codehaus.org/display/JETTY/Maven+Jetty+Plugin">http://docs.codehaus.org/display/JETTY/Maven+Jetty+Plugin</a>
      */
     protected void initHtmlHotDeploy()
     {
         getResourceSettings().setResourcePollFrequency(Duration.ONE_SECOND);
+        if(WatchServiceModificationWatcher.isAvailable())
+        {
+            WatchServiceModificationWatcher watcher = new WatchServiceModificationWatcher();
+            watcher.start(Duration.ONE_SECOND);
+            getResourceSettings().setResourceWatcher(watcher);
+        }
         String htmlDir = getServletContext().getRealPath("/");
         if(htmlDir != null && !htmlDir.endsWith("/"))
         {
@@ -220,6 +372,32 @@ public abstract class FoundationApplication extends WebApplication
         this.version = Version.ofWebapp(getServletContext());
     }
     
+    /**
+     * Replaces Wicket's default serializer with a {@link CompactSerializer} if
+     * {@link #useCompactSerializer} returns {@code true}.
+     * 
+     * @since 4.0
+     */
+    protected void initSerializer()
+    {
+        if(useCompactSerializer())
+        {
+            getFrameworkSettings().setSerializer(new CompactSerializer(getApplicationKey()));
+        }
+    }
+    
+    /**
+     * Override this method to return {@code true} if pages should be serialized with
+     * {@link CompactSerializer}, which writes far smaller class descriptors than Java
+     * serialization. By default this returns {@code false}.
+     * 
+     * @since 4.0
+     */
+    protected boolean useCompactSerializer()
+    {
+        return false;
+    }
+    
     /**
      * Set the cache duration for resources to zero if in development mode
      * (discouraging browser cache), or 1 year if in deployment mode.
@@ -232,22 +410,232 @@ public abstract class FoundationApplication extends WebApplication
     }
     
     /**
-     * Enables Wicket's request logging facility if an SLF4J logger is
-     * configured for {@code INFO} with the category
-     * {@code org.apache.wicket.protocol.http.RequestLogger}. For example,
-     * if using log4j properties configuration, this would cause the Wicket
-     * request logger to be enabled:
+     * Installs an {@link AccessLog} if an SLF4J logger is configured for {@code INFO} with
+     * the category {@code fiftyfive.wicket.monitor.AccessLog}. For example, if using log4j
+     * properties configuration, this would cause the access log to be enabled:
      * <pre class="example">
-     * log4j.logger.org.apache.wicket.protocol.http.RequestLogger = INFO</pre>
+     * log4j.logger.fiftyfive.wicket.monitor.AccessLog = INFO</pre>
+     * <p>
+     * For compatibility with earlier versions, the access log is also installed if the
+     * category {@code org.apache.wicket.protocol.http.RequestLogger} is enabled for
+     * {@code INFO}, in which case it logs to that category. Wicket's own request logger is
+     * no longer enabled, because it takes a shared lock on every request; the session
+     * information it used to provide to
+     * {@link fiftyfive.wicket.util.LoggingUtils LoggingUtils} now comes from the
+     * {@link SessionRegistry} installed by {@link #initSessionRegistry}.
      * 
      * @since 2.0
      */
     protected void initRequestLogger()
     {
-        Logger log = LoggerFactory.getLogger(RequestLogger.class);
+        Logger log = LoggerFactory.getLogger(AccessLog.class);
+        if(!log.isInfoEnabled())
+        {
+            log = LoggerFactory.getLogger(RequestLogger.class);
+        }
         if(log.isInfoEnabled())
         {
-            getRequestLoggerSettings().setRequestLoggerEnabled(true);
+            new AccessLog(AccessLog.DEFAULT_CAPACITY, log).install(this);
+        }
+    }
+    
+    /**
+     * Installs a {@link RenderProfiler} that samples one in every
+     * {@link #getRenderProfilerSampleRate} requests, if that rate is greater than zero. In
+     * development mode the {@link fiftyfive.wicket.monitor.RenderProfilePage RenderProfilePage}
+     * is also mounted at {@code dev/render-profile}.
+     * 
+     * @since 4.0
+     */
+    protected void initRenderProfiler()
+    {
+        int rate = getRenderProfilerSampleRate();
+        if(rate > 0)
+        {
+            RenderProfiler profiler = new RenderProfiler(rate);
+            if(usesDevelopmentConfig())
+            {
+                profiler.setMountPath("dev/render-profile");
+            }
+            profiler.install(this);
         }
     }
+    
+    /**
+     * Returns how often {@link #initRenderProfiler} should profile requests: 1 means every
+     * request, 100 means one in a hundred, and zero disables the profiler entirely. The
+     * default is 1 in development mode and 0 in deployment mode. Override this to enable
+     * sampled profiling in production.
+     * 
+     * @since 4.0
+     */
+    protected int getRenderProfilerSampleRate()
+    {
+        return usesDevelopmentConfig() ? 1 : 0;
+    }
+    
+    /**
+     * Installs a {@link SessionSizeTracker}, which estimates the size of each session from
+     * the pages written to the page store, and also measures the session at the end of one
+     * in every {@link #getSessionSizeSampleRate} requests, no more than once a minute per
+     * session, if that rate is greater than zero. This makes the session size reported by
+     * {@link fiftyfive.wicket.util.LoggingUtils#getSessionInfo} an estimate, rather than the
+     * result of serializing the session every time an exception is logged.
+     * <p>
+     * The page manager provider installed by {@link #initPageStore} notes the size of each
+     * page written to the page store, so the tracker does not replace it.
+     * 
+     * @since 4.0
+     */
+    protected void initSessionSizeTracker()
+    {
+        new SessionSizeTracker(getSessionSizeSampleRate(), Duration.minutes(1))
+            .setTrackPageStore(false)
+            .install(this);
+    }
+    
+    /**
+     * Returns how often {@link #initSessionSizeTracker} should measure the session: 1 means
+     * at the end of every request, 10 means one in ten, and zero (the default) means never,
+     * so that only the page store writes, which cost nothing to measure, are counted.
+     * Measuring a session serializes it, so enable this only if you need the size of the
+     * session object itself in your logs or metrics.
+     * 
+     * @since 4.0
+     */
+    protected int getSessionSizeSampleRate()
+    {
+        return 0;
+    }
+    
+    /**
+     * Installs a {@link SessionRegistry}, so that session durations and the number of active
+     * sessions can be reported by {@link fiftyfive.wicket.util.LoggingUtils LoggingUtils}
+     * without Wicket's request logger and without scanning every live session.
+     * 
+     * @since 4.0
+     */
+    protected void initSessionRegistry()
+    {
+        new SessionRegistry().install(this);
+    }
+    
+    /**
+     * Installs a {@link PageSizeSampler} that analyzes one in every
+     * {@link #getPageSizeSampleRate} pages, if that rate is greater than zero. Pages
+     * larger than 100K are logged with a breakdown of their largest components.
+     * 
+     * @since 4.0
+     */
+    protected void initPageSizeSampler()
+    {
+        int rate = getPageSizeSampleRate();
+        if(rate > 0)
+        {
+            new PageSizeSampler(rate).install(this);
+        }
+    }
+    
+    /**
+     * Returns how often {@link #initPageSizeSampler} should analyze pages: 1 means every
+     * page, 1000 means one in a thousand, and zero (the default) disables the sampler.
+     * 
+     * @since 4.0
+     */
+    protected int getPageSizeSampleRate()
+    {
+        return 0;
+    }
+    
+    /**
+     * Installs a page manager provider whose data store is the one returned by
+     * {@link #newDataStore}, or Wicket's disk store if that returns {@code null}. If a
+     * {@link SessionSizeTracker} is installed, the store is wrapped so that page sizes are
+     * {@link SessionSizeTracker#track tracked}. Override this method if you need a different
+     * provider.
+     * 
+     * @since 4.0
+     */
+    protected void initPageStore()
+    {
+        setPageManagerProvider(new DefaultPageManagerProvider(this) {
+            @Override
+            protected IDataStore newDataStore()
+            {
+                IDataStore store = FoundationApplication.this.newDataStore();
+                if(null == store)
+                {
+                    store = super.newDataStore();
+                }
+                SessionSizeTracker sizes = SessionSizeTracker.get();
+                return null == sizes ? store : sizes.track(store);
+            }
+        });
+    }
+    
+    /**
+     * Returns the data store in which serialized pages are kept, or {@code null} to use
+     * Wicket's disk store. If {@link #getSegmentDataStoreSize} returns a size, the default
+     * implementation returns a {@link SegmentDataStore} of that size, with its files in a
+     * directory named after the application ({@link #getName()} followed by
+     * {@code -segments}) under the
+     * {@link org.apache.wicket.settings.IStoreSettings#getFileStoreFolder file store folder}.
+     * 
+     * @since 4.0
+     */
+    protected IDataStore newDataStore()
+    {
+        Bytes size = getSegmentDataStoreSize();
+        if(null == size)
+        {
+            return null;
+        }
+        File dir = new File(getStoreSettings().getFileStoreFolder(), getName() + "-segments");
+        return new SegmentDataStore(dir, size);
+    }
+    
+    /**
+     * Override this method to return the total size of the {@link SegmentDataStore} that
+     * should hold serialized pages. The whole size is allocated on disk and memory-mapped
+     * when the first page is stored, and older pages are evicted once it is full. By default
+     * this returns {@code null}, and Wicket's disk store is used.
+     * 
+     * @since 4.0
+     */
+    protected Bytes getSegmentDataStoreSize()
+    {
+        return null;
+    }
+    
+    /**
+     * Registers a {@link StartupWarmup} that uses {@link #getWarmupThreads} threads, if that
+     * is greater than zero. The warm-up runs once this application, including your
+     * subclass's {@code init()}, has been initialized, so it sees all of your mounted pages.
+     * It runs after the phases added with {@link #addInitPhase addInitPhase()} and
+     * {@link #addConcurrentInitPhase addConcurrentInitPhase()}, and is reported as
+     * {@code "warmup"} in the startup breakdown.
+     * 
+     * @since 4.0
+     */
+    protected void initWarmup()
+    {
+        int threads = getWarmupThreads();
+        if(threads > 0)
+        {
+            this.warmup = new StartupWarmup(threads);
+            this.warmup.register(this);
+        }
+    }
+    
+    /**
+     * Returns the number of threads that {@link #initWarmup} should use to preload markup
+     * and resources at startup, or zero (the default) to skip the warm-up. A good value for
+     * a production server is the number of available processors.
+     * 
+     * @since 4.0
+     */
+    protected int getWarmupThreads()
+    {
+        return 0;
+    }
 }
@@ -15,13 +15,26 @@
  */
 package fiftyfive.wicket.data;
 
-import fiftyfive.util.ReflectUtils;
 import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.apache.wicket.WicketRuntimeException;
 import org.apache.wicket.markup.repeater.AbstractPageableView;
 import org.apache.wicket.markup.repeater.data.IDataProvider;
 import org.apache.wicket.model.IModel;
+import org.apache.wicket.model.LoadableDetachableModel;
 import org.apache.wicket.model.Model;
+import org.apache.wicket.request.Response;
+import org.apache.wicket.request.http.WebResponse;
+import org.apache.wicket.util.lang.Args;
 import org.apache.wicket.util.lang.Checks;
 
 /**
@@ -89,6 +102,27 @@ import org.apache.wicket.util.lang.Checks;
  * // Finally, wire up our provider back to the view
  * provider.setPageableView(dataView);</pre>
  * <p>
+ * For exports and other situations where every row of the result is needed,
+ * use {@link #iterateAll(int) iterateAll()} or
+ * {@link #writeAll(Response,int,RowWriter) writeAll()} instead of
+ * {@code iterator(0, size())}. These load the result in chunks and hold only
+ * one chunk in memory at a time. No pageable view is needed in this case.
+ * <pre class="example">
+ * provider.writeAll(response, 1000, new DtoDataProvider.RowWriter&lt;User&gt;() {
+ *     public void writeRow(User user, Response response)
+ *     {
+ *         response.write(user.getEmail() + "\n");
+ *     }
+ * });</pre>
+ * <p>
+ * By default each row is wrapped in a {@link Model}, which means every row
+ * DTO of the current page is serialized along with the page. If rows are
+ * large, enable keyed row models by passing a {@link RowLoader} to
+ * {@link #setKeyedRowModels setKeyedRowModels()}. Each row model will then
+ * hold only its key between requests, and all rows that are needed again
+ * after detach are reloaded with a single
+ * {@link RowLoader#loadRows loadRows()} call per request.
+ * <p>
  * <b>Caution: This class should be considered experimental.</b>
  * By implementing {@code size()} and {@code iterator()} with a single backend
  * query, this class goes against the Wicket developers' original intentions
@@ -100,12 +134,22 @@ import org.apache.wicket.util.lang.Checks;
  */
 public abstract class DtoDataProvider<R,E> implements IDataProvider<E>
 {
+    /**
+     * The private {@code currentPage} field of {@link AbstractPageableView},
+     * resolved once so that reading the offset does not need a reflective
+     * lookup on every call.
+     */
+    private static final Field CURRENT_PAGE_FIELD = findCurrentPageField();
+    
     private transient R transientResult;
     private transient Integer transientOffset;
     private transient Integer transientAmount;
+    private transient Map<Serializable,E> transientRows;
     
     private Integer cachedDataSize;
     private AbstractPageableView pageableView;
+    private RowLoader<E> rowLoader;
+    private Set<Serializable> rowKeys = new LinkedHashSet<Serializable>();
     
     /**
      * Constructs an empty provider. You must call
@@ -160,6 +204,50 @@ public abstract class DtoDataProvider<R,E> implements IDataProvider<E>
         this.pageableView = pageableView;
     }
     
+    /**
+     * Returns {@code true} if {@link #model model()} produces detachable
+     * models that store only the row key. The default is {@code false}.
+     * 
+     * @since 4.0
+     */
+    public boolean isKeyedRowModels()
+    {
+        return this.rowLoader != null;
+    }
+    
+    /**
+     * Returns the loader used by keyed row models, or {@code null} if they
+     * are not enabled.
+     * 
+     * @since 4.0
+     */
+    public RowLoader<E> getRowLoader()
+    {
+        return this.rowLoader;
+    }
+    
+    /**
+     * If a loader is given, {@link #model model()} will produce detachable
+     * models that hold only the key of each row (as returned by
+     * {@link RowLoader#getRowKey getRowKey()}) between requests, instead of
+     * the row itself. When a row model is accessed after being detached, the
+     * rows of all row models produced by this provider are reloaded in one
+     * batch by way of {@link RowLoader#loadRows loadRows()}. Pass
+     * {@code null} to go back to plain {@link Model} rows.
+     * <p>
+     * The loader is serialized along with the provider, so it should not
+     * hold a reference to anything large.
+     * 
+     * @return {@code this} to allow chaining
+     * 
+     * @since 4.0
+     */
+    public DtoDataProvider<R,E> setKeyedRowModels(RowLoader<E> rowLoader)
+    {
+        this.rowLoader = rowLoader;
+        return this;
+    }
+    
     /**
      * Loads the result object from the backend. The object will be cached
      * for the remainder of the current request, or until
@@ -181,6 +269,7 @@ public abstract class DtoDataProvider<R,E> implements IDataProvider<E>
      * by the given result object.
      */
     protected abstract int size(R result);
+    
 
     // IDataProvider support
     
@@ -196,9 +285,18 @@ public abstract class DtoDataProvider<R,E> implements IDataProvider<E>
     /**
      * This implementation assumes the object is Serializable and simply
      * calls Model.of(). You may wish to override with a custom model.
+     * <p>
+     * If {@link #setKeyedRowModels keyed row models} are enabled, returns a
+     * detachable model that holds only the row key between requests.
      */
     public IModel<E> model(E object)
     {
+        if(this.rowLoader != null)
+        {
+            Serializable key = this.rowLoader.getRowKey(object);
+            this.rowKeys.add(key);
+            return new KeyedRowModel(key, object);
+        }
         return (IModel<E>) Model.of((Serializable)object);
     }
     
@@ -221,6 +319,76 @@ public abstract class DtoDataProvider<R,E> implements IDataProvider<E>
         return this.cachedDataSize;
     }
     
+    // Streaming support
+    
+    /**
+     * Returns an iterator over every element of the entire result, loading
+     * the data from the backend {@code chunkSize} elements at a time by way
+     * of {@link #load(int,int) load()}. Only the current chunk is referenced
+     * by the iterator, so very large results can be walked without holding
+     * them in memory all at once.
+     * <p>
+     * Chunks are loaded lazily as the iterator advances, and they bypass the
+     * per-request result cache used by {@link #iterator(long,long) iterator()}
+     * and {@link #size()}. The total size is taken from the first chunk.
+     * The pageable view is not consulted, so this method can be used without
+     * calling {@link #setPageableView setPageableView()}.
+     * 
+     * @param chunkSize The number of elements to load per backend call;
+     *                  must be greater than zero.
+     * 
+     * @since 4.0
+     */
+    public Iterator<E> iterateAll(int chunkSize)
+    {
+        Args.isTrue(chunkSize > 0, "chunkSize must be greater than zero");
+        return new ChunkedIterator(chunkSize);
+    }
+    
+    /**
+     * Writes every element of the entire result to the given response, using
+     * the specified {@link RowWriter} to render each element. Data is loaded
+     * in chunks as per {@link #iterateAll(int) iterateAll()}. If the response
+     * is a {@link WebResponse} it is flushed after each chunk has been
+     * written, so that the data is streamed to the client rather than
+     * buffered.
+     * <p>
+     * This is useful for CSV and other exports, for example when
+     * implemented within a resource's
+     * {@link org.apache.wicket.request.resource.AbstractResource.WriteCallback WriteCallback}.
+     * 
+     * @param response The response to write to, e.g.
+     *                 {@code attributes.getResponse()}
+     * @param chunkSize The number of elements to load per backend call
+     * @param writer Callback that writes a single element to the response
+     * 
+     * @return The number of elements written
+     * 
+     * @since 4.0
+     */
+    public long writeAll(Response response, int chunkSize, RowWriter<? super E> writer)
+    {
+        Args.notNull(response, "response");
+        Args.notNull(writer, "writer");
+        
+        long count = 0;
+        Iterator<E> iter = iterateAll(chunkSize);
+        while(iter.hasNext())
+        {
+            writer.writeRow(iter.next(), response);
+            count ++;
+            if(count % chunkSize == 0 && response instanceof WebResponse)
+            {
+                ((WebResponse) response).flush();
+            }
+        }
+        if(response instanceof WebResponse)
+        {
+            ((WebResponse) response).flush();
+        }
+        return count;
+    }
+    
     // loadable detachable support
     
     /**
@@ -261,6 +429,9 @@ public abstract class DtoDataProvider<R,E> implements IDataProvider<E>
             this.transientOffset = offset;
             this.transientAmount = amount;
             this.transientResult = load(offset, amount);
+            
+            // New rows mean new row models; forget the keys of the old ones
+            this.rowKeys.clear();
         }
         // Return the cached result
         return this.transientResult;
@@ -275,6 +446,7 @@ public abstract class DtoDataProvider<R,E> implements IDataProvider<E>
         this.transientResult = null;
         this.transientOffset = null;
         this.transientAmount = null;
+        this.transientRows = null;
     }
     
     // Pageable reflection "magic"
@@ -282,14 +454,22 @@ public abstract class DtoDataProvider<R,E> implements IDataProvider<E>
     /**
      * Obtains the current view offset using the Java reflection API to
      * get the {@code currentPage} private field from the pageable view and
-     * multiplying it by the rows per page. 
+     * multiplying it by the rows per page. The field is looked up once per
+     * JVM and cached, so the cost of this method is a single
+     * {@link Field#getLong Field.getLong()} call.
      */
     protected long getPageableViewOffset()
     {
         assertPageableView();
-        long page = (Long)ReflectUtils.readField(
-            this.pageableView, "currentPage"
-        );
+        long page;
+        try
+        {
+            page = CURRENT_PAGE_FIELD.getLong(this.pageableView);
+        }
+        catch(IllegalAccessException iae)
+        {
+            throw new WicketRuntimeException(iae);
+        }
         return page * getPageableRowsPerPage();
     }
     
@@ -324,6 +504,231 @@ public abstract class DtoDataProvider<R,E> implements IDataProvider<E>
         return stale;
     }
     
+    /**
+     * Callback used by {@link DtoDataProvider#writeAll writeAll()} to write
+     * each element of the result.
+     * 
+     * @since 4.0
+     */
+    public static interface RowWriter<E>
+    {
+        /**
+         * Writes a single element of the result to the response.
+         */
+        void writeRow(E row, Response response);
+    }
+    
+    /**
+     * Identifies and loads rows for
+     * {@link DtoDataProvider#setKeyedRowModels keyed row models}.
+     * 
+     * @since 4.0
+     */
+    public static interface RowLoader<E> extends Serializable
+    {
+        /**
+         * Returns a small, serializable value that uniquely identifies the
+         * given row, like a database ID.
+         */
+        Serializable getRowKey(E row);
+        
+        /**
+         * Loads the rows identified by the given keys from the backend,
+         * returning a map of key to row. Keys for which no row exists may be
+         * omitted.
+         */
+        Map<Serializable,E> loadRows(Collection<Serializable> keys);
+    }
+    
+    /**
+     * Returns the row for the given key, loading the rows of all known row
+     * models in a single batch the first time it is called after
+     * {@link #detach() detach()}.
+     */
+    private E getRow(Serializable key)
+    {
+        if(null == this.transientRows)
+        {
+            Set<Serializable> keys = new LinkedHashSet<Serializable>(this.rowKeys);
+            keys.add(key);
+            this.transientRows = new HashMap<Serializable,E>();
+            Map<Serializable,E> loaded = this.rowLoader.loadRows(
+                new ArrayList<Serializable>(keys));
+            if(loaded != null)
+            {
+                this.transientRows.putAll(loaded);
+            }
+        }
+        if(!this.transientRows.containsKey(key))
+        {
+            // A model we did not know about, e.g. one created by a previous
+            // provider state. Fall back to loading it individually.
+            Map<Serializable,E> single = this.rowLoader.loadRows(
+                Collections.<Serializable>singletonList(key));
+            this.transientRows.put(key, single != null ? single.get(key) : null);
+            this.rowKeys.add(key);
+        }
+        return this.transientRows.get(key);
+    }
+    
+    /**
+     * A detachable row model that holds only the row key when detached.
+     * Rows are reloaded in batch via the enclosing provider.
+     */
+    private class KeyedRowModel extends LoadableDetachableModel<E>
+    {
+        private final Serializable key;
+        
+        private KeyedRowModel(Serializable key, E object)
+        {
+            super(object);
+            this.key = key;
+        }
+        
+        @Override
+        protected E load()
+        {
+            return getRow(this.key);
+        }
+        
+        @Override
+        public boolean equals(Object obj)
+        {
+            if(this == obj) return true;
+            if(!(obj instanceof DtoDataProvider<?,?>.KeyedRowModel)) return false;
+            Object otherKey = ((DtoDataProvider<?,?>.KeyedRowModel) obj).key;
+            return this.key == null ? otherKey == null : this.key.equals(otherKey);
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return this.key == null ? 0 : this.key.hashCode();
+        }
+    }
+    
+    /**
+     * Iterates over the entire result by loading one chunk at a time. The
+     * previous chunk is released as soon as the next one is loaded.
+     */
+    private class ChunkedIterator implements Iterator<E>
+    {
+        private final int chunkSize;
+        private int offset = 0;
+        private long total = -1;
+        private long returned = 0;
+        private Iterator<? extends E> chunk = null;
+        private boolean exhausted = false;
+        
+        private ChunkedIterator(int chunkSize)
+        {
+            this.chunkSize = chunkSize;
+        }
+        
+        public boolean hasNext()
+        {
+            while(!this.exhausted && (null == this.chunk || !this.chunk.hasNext()))
+            {
+                loadNextChunk();
+            }
+            return !this.exhausted;
+        }
+        
+        public E next()
+        {
+            if(!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            this.returned ++;
+            return this.chunk.next();
+        }
+        
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+        
+        private void loadNextChunk()
+        {
+            if(this.total >= 0 && (this.offset >= this.total || this.returned >= this.total))
+            {
+                finish();
+                return;
+            }
+            R result = load(this.offset, this.chunkSize);
+            if(this.total < 0)
+            {
+                this.total = size(result);
+            }
+            Iterator<? extends E> iter = result != null ? iterator(result) : null;
+            if(null == iter || !iter.hasNext())
+            {
+                finish();
+                return;
+            }
+            this.chunk = new BoundedIterator(iter);
+            this.offset += this.chunkSize;
+        }
+        
+        private void finish()
+        {
+            this.chunk = null;
+            this.exhausted = true;
+        }
+        
+        /**
+         * Guards against backends that return more rows than the
+         * total size reported by the first chunk.
+         */
+        private class BoundedIterator implements Iterator<E>
+        {
+            private final Iterator<? extends E> delegate;
+            
+            private BoundedIterator(Iterator<? extends E> delegate)
+            {
+                this.delegate = delegate;
+            }
+            
+            public boolean hasNext()
+            {
+                return returned < total && this.delegate.hasNext();
+            }
+            
+            public E next()
+            {
+                return this.delegate.next();
+            }
+            
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        }
+    }
+    
+    /**
+     * Resolves and makes accessible the {@code currentPage} field of
+     * {@link AbstractPageableView}.
+     */
+    private static Field findCurrentPageField()
+    {
+        try
+        {
+            Field field = AbstractPageableView.class.getDeclaredField("currentPage");
+            field.setAccessible(true);
+            return field;
+        }
+        catch(NoSuchFieldException nsfe)
+        {
+            throw new WicketRuntimeException(
+                "AbstractPageableView.currentPage not found; " +
+                "DtoDataProvider is not compatible with this version of Wicket",
+                nsfe
+            );
+        }
+    }
+    
     /**
      * Asserts that {@code pageableView} is not {@code null}.
      */
@@ -0,0 +1,488 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.mapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.core.request.handler.BookmarkablePageRequestHandler;
+import org.apache.wicket.core.request.mapper.MountedMapper;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.IRequestMapper;
+import org.apache.wicket.request.Request;
+import org.apache.wicket.request.Url;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.mapper.CompoundRequestMapper;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+
+
+/**
+ * A {@link CompoundRequestMapper} that routes requests to its
+ * {@link PatternMountedMapper PatternMountedMappers} using a trie of mount path segments, rather
+ * than asking every mapper in turn. Use it in place of {@code CompoundRequestMapper} when you
+ * have a large number of mounted pages:
+ * <pre class="example">
+ * public class MyMappings extends PatternCompoundRequestMapper
+ * {
+ *     public MyMappings()
+ *     {
+ *         add(new PatternMountedMapper("people/${personId:\\d+}", PersonPage.class));
+ *         add(new PatternMountedMapper("products/${slug}", ProductPage.class));
+ *         ...
+ *     }
+ * }</pre>
+ * <p>
+ * When a request arrives, its URL segments are walked down the trie. Literal segments are
+ * looked up by hash, and placeholder segments are checked against their precompiled regular
+ * expressions. Only the mappers whose mount paths are compatible with the URL are then asked to
+ * map the request, in order of {@link IRequestMapper#getCompatibilityScore compatibility score},
+ * exactly as {@code CompoundRequestMapper} would. The cost of resolving a URL therefore depends
+ * on the depth of the path rather than on the number of mounts.
+ * <p>
+ * Mappers that are not {@code PatternMountedMapper}s (for example, the mapper built by
+ * {@code MergedJavaScriptBuilder}) cannot be indexed, and are always asked.
+ * <p>
+ * URL generation for bookmarkable pages (for example, when rendering a
+ * {@link org.apache.wicket.markup.html.link.BookmarkablePageLink BookmarkablePageLink}) is
+ * memoized as well. The first time a URL is needed for a given page class and set of parameter
+ * names, every mapper is asked as usual and the {@link MountedMapper} that answered is
+ * remembered; from then on that mapper is asked first, and the others only if it cannot
+ * generate the URL. Identical link targets within a single request are built only once by each
+ * {@code PatternCompoundRequestMapper}. This assumes, as is true of {@code MountedMapper}, that
+ * the choice of mount usually depends on the page class and parameter names, not on the
+ * parameter values.
+ * <p>
+ * Mappers are expected to be added during application initialization; the trie is rebuilt
+ * each time a mapper is added or removed.
+ *
+ * @since 4.0
+ */
+public class PatternCompoundRequestMapper extends CompoundRequestMapper
+{
+    /**
+     * Placeholder in the URL template cache meaning none of our mappers can generate a URL.
+     */
+    private static final IRequestMapper NO_MAPPER = new CompoundRequestMapper();
+
+    /**
+     * URLs generated during the current request, per mapper instance. Metadata keys are equal
+     * by class, so a single key holds the memos of every instance.
+     */
+    private static final MetaDataKey<UrlMemos> URL_MEMO_KEY = new MetaDataKey<UrlMemos>() {};
+
+    private final Map<IRequestMapper,Integer> order = new LinkedHashMap<IRequestMapper,Integer>();
+    private int nextOrder = 0;
+    private volatile Node root = new Node();
+    private volatile List<IRequestMapper> unindexed = new ArrayList<IRequestMapper>();
+    private volatile Map<IRequestMapper,Integer> orderSnapshot =
+        new HashMap<IRequestMapper,Integer>();
+    private volatile List<IRequestMapper> newestFirst = new ArrayList<IRequestMapper>();
+    private final ConcurrentMap<List<Object>,IRequestMapper> urlTemplates =
+        new ConcurrentHashMap<List<Object>,IRequestMapper>();
+
+    public PatternCompoundRequestMapper()
+    {
+        super();
+    }
+
+    @Override
+    public synchronized CompoundRequestMapper add(IRequestMapper mapper)
+    {
+        super.add(mapper);
+        this.order.put(mapper, this.nextOrder++);
+        rebuild();
+        return this;
+    }
+
+    @Override
+    public synchronized CompoundRequestMapper remove(IRequestMapper mapper)
+    {
+        super.remove(mapper);
+        this.order.remove(mapper);
+        rebuild();
+        return this;
+    }
+
+    /**
+     * Finds the mappers whose mount paths are compatible with the request URL by walking the
+     * trie, then asks each of them in order of compatibility score to map the request. Like
+     * {@code CompoundRequestMapper}, the most recently added mapper wins a tie. The first
+     * non-{@code null} handler is returned.
+     */
+    @Override
+    public IRequestHandler mapRequest(Request request)
+    {
+        List<IRequestMapper> candidates = findCandidates(request);
+        int size = candidates.size();
+        if(size > 1)
+        {
+            // Insertion sort by descending score, then descending insertion order; there are
+            // rarely more than a handful of candidates.
+            Map<IRequestMapper,Integer> insertion = this.orderSnapshot;
+            int[] scores = new int[size];
+            int[] orders = new int[size];
+            for(int i=0; i<size; i++)
+            {
+                IRequestMapper m = candidates.get(i);
+                int score = m.getCompatibilityScore(request);
+                int order = nullSafe(insertion.get(m));
+                int j = i;
+                while(j > 0 && (scores[j-1] < score || scores[j-1] == score && orders[j-1] < order))
+                {
+                    scores[j] = scores[j-1];
+                    orders[j] = orders[j-1];
+                    candidates.set(j, candidates.get(j-1));
+                    j--;
+                }
+                scores[j] = score;
+                orders[j] = order;
+                candidates.set(j, m);
+            }
+        }
+        for(int i=0; i<size; i++)
+        {
+            IRequestHandler handler = candidates.get(i).mapRequest(request);
+            if(handler != null)
+            {
+                return handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the highest compatibility score of the mappers whose mount paths are compatible
+     * with the request URL, as found by walking the trie. This matters when this mapper is
+     * itself mounted in a compound mapper, such as the application's root mapper, which asks
+     * each of its children for a score on every request.
+     */
+    @Override
+    public int getCompatibilityScore(Request request)
+    {
+        int score = Integer.MIN_VALUE;
+        for(IRequestMapper m : findCandidates(request))
+        {
+            score = Math.max(score, m.getCompatibilityScore(request));
+        }
+        return score;
+    }
+
+    /**
+     * Returns the unindexed mappers plus the mappers reachable in the trie by the request's
+     * URL segments.
+     */
+    private List<IRequestMapper> findCandidates(Request request)
+    {
+        List<IRequestMapper> candidates = new ArrayList<IRequestMapper>(this.unindexed);
+        this.root.collect(request.getUrl().getSegments(), 0, candidates);
+        return candidates;
+    }
+
+    /**
+     * Generates a URL for the given handler. URLs for bookmarkable pages are memoized per
+     * request, and the mapper that is able to generate them is remembered per page class and
+     * parameter names. All other handlers are delegated to the superclass.
+     */
+    @Override
+    public Url mapHandler(IRequestHandler handler)
+    {
+        if(!(handler instanceof BookmarkablePageRequestHandler))
+        {
+            return super.mapHandler(handler);
+        }
+        BookmarkablePageRequestHandler bookmarkable = (BookmarkablePageRequestHandler) handler;
+        PageParameters params = bookmarkable.getPageParameters();
+        
+        // Identical link targets within the same request
+        Map<List<Object>,Url> memo = getUrlMemo();
+        List<Object> targetKey = null;
+        if(memo != null)
+        {
+            targetKey = createTargetKey(bookmarkable.getPageClass(), params);
+            Url url = memo.get(targetKey);
+            if(url != null)
+            {
+                return new Url(url);
+            }
+        }
+        
+        Url url = mapBookmarkableHandler(bookmarkable, params);
+        
+        // Never remember a failure: a parent compound mapper may be about to ask another mapper
+        if(memo != null && url != null)
+        {
+            memo.put(targetKey, new Url(url));
+        }
+        return url;
+    }
+
+    /**
+     * Returns this instance's URL memo for the current request, or {@code null} if there is no
+     * request in progress.
+     */
+    private Map<List<Object>,Url> getUrlMemo()
+    {
+        RequestCycle cycle = RequestCycle.get();
+        if(null == cycle)
+        {
+            return null;
+        }
+        UrlMemos memos = cycle.getMetaData(URL_MEMO_KEY);
+        if(null == memos)
+        {
+            memos = new UrlMemos();
+            cycle.setMetaData(URL_MEMO_KEY, memos);
+        }
+        Map<List<Object>,Url> memo = memos.get(this);
+        if(null == memo)
+        {
+            memo = new HashMap<List<Object>,Url>();
+            memos.put(this, memo);
+        }
+        return memo;
+    }
+
+    /**
+     * Generates a URL for a bookmarkable page using the remembered mapper for that page class
+     * and parameter names; or if there is none, by asking each mapper in turn and remembering
+     * the one that answered.
+     */
+    private Url mapBookmarkableHandler(BookmarkablePageRequestHandler handler,
+                                       PageParameters params)
+    {
+        List<Object> templateKey = createTemplateKey(handler.getPageClass(), params);
+        IRequestMapper template = this.urlTemplates.get(templateKey);
+        if(template == NO_MAPPER)
+        {
+            return null;
+        }
+        if(template != null)
+        {
+            Url url = template.mapHandler(handler);
+            if(url != null)
+            {
+                return url;
+            }
+        }
+        for(IRequestMapper m : this.newestFirst)
+        {
+            Url url = m.mapHandler(handler);
+            if(url != null)
+            {
+                if(m instanceof MountedMapper)
+                {
+                    this.urlTemplates.put(templateKey, m);
+                }
+                return url;
+            }
+        }
+        this.urlTemplates.put(templateKey, NO_MAPPER);
+        return null;
+    }
+
+    /**
+     * Page class plus sorted parameter names and number of indexed parameters.
+     */
+    private static List<Object> createTemplateKey(Class<?> pageClass, PageParameters params)
+    {
+        List<Object> key = new ArrayList<Object>();
+        key.add(pageClass);
+        if(params != null)
+        {
+            key.add(params.getIndexedCount());
+            String[] names = params.getNamedKeys().toArray(new String[0]);
+            Arrays.sort(names);
+            key.addAll(Arrays.asList(names));
+        }
+        return key;
+    }
+
+    /**
+     * Page class plus all parameter names and values, in order.
+     */
+    private static List<Object> createTargetKey(Class<?> pageClass, PageParameters params)
+    {
+        List<Object> key = new ArrayList<Object>();
+        key.add(pageClass);
+        if(params != null)
+        {
+            for(int i=0; i<params.getIndexedCount(); i++)
+            {
+                key.add(params.get(i).toString());
+            }
+            key.add("?");
+            for(PageParameters.NamedPair pair : params.getAllNamed())
+            {
+                key.add(pair.getKey());
+                key.add(pair.getValue());
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Rebuilds the trie and the list of unindexed mappers from scratch.
+     */
+    private void rebuild()
+    {
+        Node newRoot = new Node();
+        List<IRequestMapper> newUnindexed = new ArrayList<IRequestMapper>();
+        List<IRequestMapper> newNewestFirst = new ArrayList<IRequestMapper>(this.order.keySet());
+        Collections.reverse(newNewestFirst);
+
+        for(IRequestMapper mapper : this.order.keySet())
+        {
+            if(mapper instanceof PatternMountedMapper)
+            {
+                newRoot.insert((PatternMountedMapper) mapper);
+            }
+            else
+            {
+                newUnindexed.add(mapper);
+            }
+        }
+        this.root = newRoot;
+        this.unindexed = newUnindexed;
+        this.orderSnapshot = new HashMap<IRequestMapper,Integer>(this.order);
+        this.newestFirst = newNewestFirst;
+        this.urlTemplates.clear();
+    }
+
+    private static int nullSafe(Integer i)
+    {
+        return null == i ? Integer.MAX_VALUE : i;
+    }
+
+    /**
+     * A node of the trie. Holds the mappers whose required mount segments end at this node,
+     * plus child nodes for literal and placeholder segments.
+     */
+    private static class Node
+    {
+        private final List<IRequestMapper> mappers = new ArrayList<IRequestMapper>(1);
+        private final Map<String,Node> literals = new HashMap<String,Node>();
+        private final Map<String,PlaceholderEdge> placeholders =
+            new LinkedHashMap<String,PlaceholderEdge>();
+
+        /**
+         * Inserts the mapper along the path of its required segments. Traversal stops at the
+         * first optional placeholder, since from that point on any number of segments may match.
+         */
+        private void insert(PatternMountedMapper mapper)
+        {
+            Node node = this;
+            for(String seg : mapper.getPatternSegments())
+            {
+                if(seg.startsWith("#{") && seg.endsWith("}"))
+                {
+                    break;
+                }
+                if(seg.startsWith("${") && seg.endsWith("}"))
+                {
+                    PatternMountedMapper.PatternPlaceholder pp =
+                        new PatternMountedMapper.PatternPlaceholder(
+                            seg.substring(2, seg.length() - 1));
+                    Pattern pattern = pp.getPattern();
+                    String key = null == pattern ? "" : pattern.pattern();
+                    PlaceholderEdge edge = node.placeholders.get(key);
+                    if(null == edge)
+                    {
+                        edge = new PlaceholderEdge(pattern);
+                        node.placeholders.put(key, edge);
+                    }
+                    node = edge.child;
+                }
+                else
+                {
+                    Node child = node.literals.get(seg);
+                    if(null == child)
+                    {
+                        child = new Node();
+                        node.literals.put(seg, child);
+                    }
+                    node = child;
+                }
+            }
+            node.mappers.add(mapper);
+        }
+
+        /**
+         * Adds to {@code result} every mapper reachable by walking the given URL segments,
+         * starting at {@code index}. Mappers at intermediate nodes are included because their
+         * mount paths are a prefix of the URL; those mappers decide for themselves whether
+         * extra segments are acceptable.
+         */
+        private void collect(List<String> segments, int index, List<IRequestMapper> result)
+        {
+            result.addAll(this.mappers);
+            if(index >= segments.size())
+            {
+                return;
+            }
+            String seg = segments.get(index);
+            Node literal = this.literals.get(seg);
+            if(literal != null)
+            {
+                literal.collect(segments, index + 1, result);
+            }
+            for(PlaceholderEdge edge : this.placeholders.values())
+            {
+                if(edge.matches(seg))
+                {
+                    edge.child.collect(segments, index + 1, result);
+                }
+            }
+        }
+    }
+
+    /**
+     * A placeholder segment of the trie, with its precompiled regular expression, if any.
+     */
+    private static class PlaceholderEdge
+    {
+        private final Pattern pattern;
+        private final Node child = new Node();
+
+        private PlaceholderEdge(Pattern pattern)
+        {
+            this.pattern = pattern;
+        }
+
+        private boolean matches(String segment)
+        {
+            return null == this.pattern || this.pattern.matcher(segment).matches();
+        }
+    }
+
+    /**
+     * The URLs generated during a request, keyed by the identity of the mapper that generated
+     * them.
+     */
+    private static class UrlMemos
+        extends IdentityHashMap<PatternCompoundRequestMapper,Map<List<Object>,Url>>
+    {
+    }
+}
@@ -48,6 +48,8 @@ public class PatternMountedMapper extends MountedMapper
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(PatternMountedMapper.class);
 
+    private final ClassProvider<? extends IRequestablePage> pageClassProvider;
+    private final String[] patternSegments;
     private final int numSegments;
     private final List<PatternPlaceholder> patternPlaceholders;
     private boolean exact = false;
@@ -88,8 +90,10 @@ public class PatternMountedMapper extends MountedMapper
                                 IPageParametersEncoder pageParametersEncoder)
     {
         super(removePatternsFromPlaceholders(mountPath), pageClassProvider, pageParametersEncoder);
+        this.pageClassProvider = pageClassProvider;
 
         String[] segments = getMountSegments(mountPath);
+        this.patternSegments = segments;
         this.numSegments = segments.length;
         this.patternPlaceholders = new ArrayList<PatternPlaceholder>(1);
         for(String seg: segments)
@@ -124,6 +128,16 @@ public class PatternMountedMapper extends MountedMapper
         return this;
     }
     
+    /**
+     * Returns the class of the page that is mounted by this mapper.
+     * 
+     * @since 4.0
+     */
+    public Class<? extends IRequestablePage> getMountedPageClass()
+    {
+        return this.pageClassProvider.get();
+    }
+    
     /**
      * First delegate to the superclass to parse the request as normal, then additionally
      * verify that all regular expressions specified in the placeholders match.
@@ -184,6 +198,18 @@ public class PatternMountedMapper extends MountedMapper
         return this.patternPlaceholders;
     }
     
+    /**
+     * The segments of the mount path exactly as they were specified, including the
+     * <code>:regex</code> portion of placeholders. Used by {@link PatternCompoundRequestMapper}
+     * to build its routing trie.
+     * 
+     * @since 4.0
+     */
+    protected String[] getPatternSegments()
+    {
+        return this.patternSegments;
+    }
+    
     /**
      * Remove the regular expression portion of all placeholders from the given path so that
      * the standard {@link MountedMapper} isn't confused by them. This allows us to reuse all 
@@ -219,7 +245,7 @@ public class PatternMountedMapper extends MountedMapper
     protected static class PatternPlaceholder
     {
         private final String placeholder;
-        private final String pattern;
+        private final Pattern pattern;
         private final String name;
         
         public PatternPlaceholder(String placeholder)
@@ -230,7 +256,7 @@ public class PatternMountedMapper extends MountedMapper
             if(colon > 0 && colon < placeholder.length() - 2)
             {
                 this.name = placeholder.substring(0, colon);
-                this.pattern = placeholder.substring(colon + 1);
+                this.pattern = Pattern.compile(placeholder.substring(colon + 1));
             }
             else
             {
@@ -246,7 +272,18 @@ public class PatternMountedMapper extends MountedMapper
          */
         public boolean matches(CharSequence value)
         {
-            return null == this.pattern || Pattern.matches(this.pattern, value);
+            return null == this.pattern || this.pattern.matcher(value).matches();
+        }
+        
+        /**
+         * The compiled regular expression of this placeholder, or {@code null} if it doesn't
+         * have one.
+         * 
+         * @since 4.0
+         */
+        public Pattern getPattern()
+        {
+            return this.pattern;
         }
         
         /**
@@ -0,0 +1,400 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.IApplicationListener;
+import org.apache.wicket.Session;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.Url;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.response.filter.IResponseFilter;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.lang.Classes;
+import org.apache.wicket.util.string.AppendingStringBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A lightweight replacement for Wicket's
+ * {@link org.apache.wicket.protocol.http.RequestLogger RequestLogger} that writes one line per
+ * request to the SLF4J category {@code fiftyfive.wicket.monitor.AccessLog}, or another
+ * {@link #AccessLog(int, Logger) logger} of your choice, at {@code INFO} level. For example:
+ * <pre class="example">
+ * url=products/123 handler=RenderPageRequestHandler page=com.example.ProductPage ms=41.7 chars=18233 session=1sxy938y7qoqq942z4pnuqdqt</pre>
+ * The {@code chars} field is the length of the rendered markup for page and Ajax responses;
+ * it is {@code -} for other responses, such as resources and redirects, whose size Wicket
+ * does not buffer.
+ * <p>
+ * Unlike the {@code RequestLogger}, this keeps no session data and takes no locks. At the
+ * end of each request the record is copied into a preallocated slot of a fixed-size ring
+ * buffer, claimed with a single compare-and-set. A background thread drains the buffer and
+ * does all of the formatting and logging. If requests arrive faster than the thread can log
+ * them and the buffer fills up, further records are dropped (and counted) rather than making
+ * requests wait; the number dropped is logged once the thread catches up. While
+ * {@code INFO} is disabled for the logger, records are discarded without being formatted.
+ * <p>
+ * {@link fiftyfive.wicket.FoundationApplication FoundationApplication} installs an access log
+ * if {@code INFO} is enabled for its category.
+ *
+ * @since 4.0
+ */
+public class AccessLog extends AbstractRequestCycleListener implements IResponseFilter
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccessLog.class);
+    
+    /** The default number of records the buffer can hold. */
+    public static final int DEFAULT_CAPACITY = 8192;
+    
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    
+    
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ThreadLocal<RequestState> state = new ThreadLocal<RequestState>() {
+        @Override
+        protected RequestState initialValue()
+        {
+            return new RequestState();
+        }
+    };
+    private final StringBuilder line = new StringBuilder(256);
+    private final Logger logger;
+    private volatile Thread drainer;
+    
+    /**
+     * Creates an access log with a buffer of {@link #DEFAULT_CAPACITY} records.
+     */
+    public AccessLog()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * @param capacity The number of records the buffer can hold; rounded up to a power
+     *                 of two
+     */
+    public AccessLog(int capacity)
+    {
+        this(capacity, LOGGER);
+    }
+    
+    /**
+     * @param capacity The number of records the buffer can hold; rounded up to a power
+     *                 of two
+     * @param logger Where to write the records, and the count of those dropped
+     */
+    public AccessLog(int capacity, Logger logger)
+    {
+        Args.isTrue(capacity > 0, "capacity must be greater than zero");
+        Args.notNull(logger, "logger");
+        this.logger = logger;
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity)
+        {
+            size <<= 1;
+        }
+        this.slots = new Slot[size];
+        for(int i=0; i<size; i++)
+        {
+            this.slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+    }
+    
+    /**
+     * Registers this object as a request cycle listener and response filter of the
+     * application and starts the background thread, which is stopped when the application
+     * is destroyed.
+     */
+    public void install(WebApplication app)
+    {
+        Args.notNull(app, "app");
+        app.getRequestCycleListeners().add(this);
+        app.getRequestCycleSettings().addResponseFilter(this);
+        app.getApplicationListeners().add(new IApplicationListener() {
+            public void onAfterInitialized(Application application)
+            {
+            }
+            public void onBeforeDestroyed(Application application)
+            {
+                stop();
+            }
+        });
+        start();
+    }
+    
+    /**
+     * Starts the background thread, if it is not already running.
+     */
+    public synchronized void start()
+    {
+        if(this.drainer != null)
+        {
+            return;
+        }
+        Thread t = new Thread("wicket-access-log") {
+            @Override
+            public void run()
+            {
+                drainLoop();
+            }
+        };
+        t.setDaemon(true);
+        this.drainer = t;
+        t.start();
+    }
+    
+    /**
+     * Stops the background thread after it has logged the records already in the buffer.
+     */
+    public synchronized void stop()
+    {
+        Thread t = this.drainer;
+        this.drainer = null;
+        if(t != null)
+        {
+            LockSupport.unpark(t);
+            try
+            {
+                t.join(TimeUnit.SECONDS.toMillis(5));
+            }
+            catch(InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * The number of records dropped because the buffer was full, since the count was last
+     * logged.
+     */
+    public long getDroppedCount()
+    {
+        return this.dropped.get();
+    }
+    
+    @Override
+    public void onBeginRequest(RequestCycle cycle)
+    {
+        RequestState s = this.state.get();
+        s.active = true;
+        s.startNanos = System.nanoTime();
+        s.url = cycle.getRequest().getUrl();
+        s.handler = null;
+        s.chars = -1;
+    }
+    
+    @Override
+    public void onRequestHandlerResolved(RequestCycle cycle, IRequestHandler handler)
+    {
+        RequestState s = this.state.get();
+        if(s.active && null == s.handler)
+        {
+            // The page class is looked up on detach, once the handler has loaded its page
+            s.handler = handler;
+        }
+    }
+    
+    /**
+     * Notes the length of the rendered markup. The buffer is returned unchanged.
+     */
+    public AppendingStringBuffer filter(AppendingStringBuffer responseBuffer)
+    {
+        RequestState s = this.state.get();
+        if(s.active && responseBuffer != null)
+        {
+            s.chars = responseBuffer.length();
+        }
+        return responseBuffer;
+    }
+    
+    @Override
+    public void onDetach(RequestCycle cycle)
+    {
+        RequestState s = this.state.get();
+        if(!s.active)
+        {
+            return;
+        }
+        s.active = false;
+        
+        String sessionId = null;
+        if(Session.exists())
+        {
+            sessionId = Session.get().getId();
+        }
+        long nanos = System.nanoTime() - s.startNanos;
+        s.handlerClass = null == s.handler ? null : s.handler.getClass();
+        s.pageClass = HandlerKeys.pageClass(s.handler);
+        publish(s, nanos, sessionId);
+        s.url = null;
+        s.handler = null;
+    }
+    
+    /**
+     * Copies the request into the next free slot, or drops it if there is none.
+     */
+    private void publish(RequestState s, long nanos, String sessionId)
+    {
+        long seq;
+        do
+        {
+            seq = this.tail.get();
+            if(seq - this.head.get() >= this.slots.length)
+            {
+                this.dropped.incrementAndGet();
+                return;
+            }
+        }
+        while(!this.tail.compareAndSet(seq, seq + 1));
+        
+        Slot slot = this.slots[(int) (seq & this.mask)];
+        slot.url = s.url;
+        slot.handlerClass = s.handlerClass;
+        slot.pageClass = s.pageClass;
+        slot.nanos = nanos;
+        slot.chars = s.chars;
+        slot.sessionId = sessionId;
+        slot.published = seq;
+    }
+    
+    private void drainLoop()
+    {
+        while(this.drainer == Thread.currentThread())
+        {
+            if(0 == drainTo(null))
+            {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        drainTo(null);
+    }
+    
+    /**
+     * Formats and removes every record that has been completely written. Each line is
+     * added to {@code out} if it is not {@code null}, or logged otherwise; if logging is
+     * disabled, the records are removed without being formatted. Only one thread may drain
+     * at a time.
+     * 
+     * @return the number of records removed
+     */
+    int drainTo(List<String> out)
+    {
+        boolean formatting = out != null || this.logger.isInfoEnabled();
+        int count = 0;
+        long seq = this.head.get();
+        while(seq < this.tail.get())
+        {
+            Slot slot = this.slots[(int) (seq & this.mask)];
+            if(slot.published != seq)
+            {
+                // Claimed but not yet written; pick it up next time
+                break;
+            }
+            if(formatting)
+            {
+                format(slot);
+            }
+            slot.url = null;
+            slot.sessionId = null;
+            seq++;
+            this.head.set(seq);
+            count++;
+            
+            if(out != null)
+            {
+                out.add(this.line.toString());
+            }
+            else if(formatting)
+            {
+                this.logger.info(this.line.toString());
+            }
+        }
+        long lost = this.dropped.get();
+        if(lost > 0 && count > 0 && null == out)
+        {
+            this.dropped.addAndGet(-lost);
+            this.logger.warn("{} access log records dropped because the buffer was full", lost);
+        }
+        return count;
+    }
+    
+    private void format(Slot slot)
+    {
+        StringBuilder buf = this.line;
+        buf.setLength(0);
+        buf.append("url=").append(slot.url);
+        buf.append(" handler=");
+        buf.append(null == slot.handlerClass ? "-" : Classes.simpleName(slot.handlerClass));
+        buf.append(" page=");
+        buf.append(null == slot.pageClass ? "-" : slot.pageClass.getName());
+        buf.append(" ms=").append(Math.round(slot.nanos / 1e5) / 10.0);
+        buf.append(" chars=");
+        if(slot.chars < 0)
+        {
+            buf.append('-');
+        }
+        else
+        {
+            buf.append(slot.chars);
+        }
+        buf.append(" session=").append(null == slot.sessionId ? "-" : slot.sessionId);
+    }
+    
+    /**
+     * A preallocated record in the ring buffer. {@code published} is written last, so a
+     * reader that sees the expected sequence number also sees the other fields.
+     */
+    private static class Slot
+    {
+        Url url;
+        Class<?> handlerClass;
+        Class<?> pageClass;
+        long nanos;
+        int chars;
+        String sessionId;
+        volatile long published = -1;
+    }
+    
+    /**
+     * Mutable per-thread holder, reused from one request to the next so that nothing needs
+     * to be allocated per request.
+     */
+    private static class RequestState
+    {
+        boolean active;
+        long startNanos;
+        Url url;
+        IRequestHandler handler;
+        Class<?> handlerClass;
+        Class<?> pageClass;
+        int chars;
+    }
+}
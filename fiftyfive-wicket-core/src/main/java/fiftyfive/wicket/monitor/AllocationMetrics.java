@@ -0,0 +1,315 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.lang.Bytes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Measures how many bytes of heap each request allocates, using the per-thread allocation
+ * counter of HotSpot's {@code com.sun.management.ThreadMXBean}, and aggregates the results
+ * per page class or resource reference. This tells you which pages are responsible for GC
+ * pressure. The top allocators are included in
+ * {@link fiftyfive.wicket.util.LoggingUtils#getApplicationInfo LoggingUtils.getApplicationInfo()},
+ * next to the memory usage.
+ * <p>
+ * If a {@link #setLogThreshold log threshold} is set, any request that allocates more than
+ * that is logged at {@code WARN} level with a breakdown of how much was allocated while
+ * mapping the request, while handling it (including rendering), and while detaching.
+ * <p>
+ * On JVMs that don't provide per-thread allocation counters, this listener does nothing;
+ * see {@link #isSupported}.
+ * <pre class="example">
+ * new AllocationMetrics().setLogThreshold(Bytes.megabytes(50)).install(this);</pre>
+ *
+ * @since 4.0
+ */
+public class AllocationMetrics extends AbstractRequestCycleListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(AllocationMetrics.class);
+    
+    private static final MetaDataKey<AllocationMetrics> METRICS_KEY =
+        new MetaDataKey<AllocationMetrics>() {};
+    
+    /**
+     * Returns the {@code AllocationMetrics} that has been installed in the current Wicket
+     * application, or {@code null} if there is none.
+     */
+    public static AllocationMetrics get()
+    {
+        return Application.exists() ? Application.get().getMetaData(METRICS_KEY) : null;
+    }
+    
+    
+    private final ThreadAllocation counter;
+    private final ConcurrentMap<Object, AllocationStat> stats =
+        new ConcurrentHashMap<Object, AllocationStat>();
+    private final ThreadLocal<RequestState> state = new ThreadLocal<RequestState>() {
+        @Override
+        protected RequestState initialValue()
+        {
+            return new RequestState();
+        }
+    };
+    private volatile long logThreshold = 0;
+    
+    public AllocationMetrics()
+    {
+        super();
+        this.counter = ThreadAllocation.create();
+    }
+    
+    /**
+     * Returns {@code true} if the JVM supports measuring per-thread allocation.
+     */
+    public boolean isSupported()
+    {
+        return this.counter != null;
+    }
+    
+    /**
+     * The threshold set via {@link #setLogThreshold}, or {@code null} if none.
+     */
+    public Bytes getLogThreshold()
+    {
+        return this.logThreshold > 0 ? Bytes.bytes(this.logThreshold) : null;
+    }
+    
+    /**
+     * Log any request that allocates more than the given amount. The default is
+     * {@code null}, meaning no requests are logged.
+     * 
+     * @return {@code this} to allow chaining
+     */
+    public AllocationMetrics setLogThreshold(Bytes threshold)
+    {
+        this.logThreshold = threshold != null ? threshold.bytes() : 0;
+        return this;
+    }
+    
+    /**
+     * Registers this object as a request cycle listener of the application and makes it
+     * available via {@link #get}.
+     */
+    public void install(WebApplication app)
+    {
+        Args.notNull(app, "app");
+        if(!isSupported())
+        {
+            LOGGER.info("Per-thread allocation counters not supported by this JVM; " +
+                        "allocation metrics disabled");
+        }
+        app.getRequestCycleListeners().add(this);
+        app.setMetaData(METRICS_KEY, this);
+    }
+    
+    /**
+     * Returns the {@code n} page classes or resources that have allocated the most in total,
+     * in descending order.
+     */
+    public List<AllocationStat> getTopN(int n)
+    {
+        List<AllocationStat> list = new ArrayList<AllocationStat>(this.stats.values());
+        Collections.sort(list, AllocationStat.BY_TOTAL_DESC);
+        return list.size() > n ? new ArrayList<AllocationStat>(list.subList(0, n)) : list;
+    }
+    
+    /**
+     * Discards all statistics gathered so far.
+     */
+    public void reset()
+    {
+        this.stats.clear();
+    }
+    
+    @Override
+    public void onBeginRequest(RequestCycle cycle)
+    {
+        if(null == this.counter)
+        {
+            return;
+        }
+        RequestState s = this.state.get();
+        s.active = true;
+        s.handler = null;
+        s.start = this.counter.currentThreadAllocatedBytes();
+        s.resolved = s.start;
+        s.executed = -1;
+    }
+    
+    @Override
+    public void onRequestHandlerResolved(RequestCycle cycle, IRequestHandler handler)
+    {
+        RequestState s = this.state.get();
+        if(s.active && null == s.handler)
+        {
+            // The key is computed on detach, once the handler has loaded its page
+            s.handler = handler;
+            s.resolved = this.counter.currentThreadAllocatedBytes();
+        }
+    }
+    
+    @Override
+    public void onRequestHandlerExecuted(RequestCycle cycle, IRequestHandler handler)
+    {
+        RequestState s = this.state.get();
+        if(s.active)
+        {
+            s.executed = this.counter.currentThreadAllocatedBytes();
+        }
+    }
+    
+    @Override
+    public void onDetach(RequestCycle cycle)
+    {
+        RequestState s = this.state.get();
+        if(!s.active)
+        {
+            return;
+        }
+        s.active = false;
+        if(null == s.handler)
+        {
+            return;
+        }
+        
+        long end = this.counter.currentThreadAllocatedBytes();
+        long total = end - s.start;
+        Object key = HandlerKeys.key(s.handler);
+        s.handler = null;
+        statFor(key).record(total);
+        
+        if(this.logThreshold > 0 && total > this.logThreshold)
+        {
+            long executed = s.executed >= 0 ? s.executed : end;
+            LOGGER.warn(String.format(
+                "%s allocated %s (mapping %s, handling %s, detach %s): %s",
+                HandlerKeys.describe(key),
+                Bytes.bytes(total),
+                Bytes.bytes(s.resolved - s.start),
+                Bytes.bytes(executed - s.resolved),
+                Bytes.bytes(end - executed),
+                cycle.getRequest().getUrl()
+            ));
+        }
+    }
+    
+    private AllocationStat statFor(Object key)
+    {
+        AllocationStat stat = this.stats.get(key);
+        if(null == stat)
+        {
+            stat = new AllocationStat(HandlerKeys.describe(key));
+            AllocationStat existing = this.stats.putIfAbsent(key, stat);
+            if(existing != null)
+            {
+                stat = existing;
+            }
+        }
+        return stat;
+    }
+    
+    /**
+     * Mutable per-thread holder, reused from one request to the next.
+     */
+    private static class RequestState
+    {
+        boolean active;
+        IRequestHandler handler;
+        long start;
+        long resolved;
+        long executed;
+    }
+    
+    /**
+     * Wraps {@code com.sun.management.ThreadMXBean}. This class refers to the
+     * {@code com.sun.management} API directly, so it is only loaded once that API is known
+     * to exist.
+     */
+    private abstract static class ThreadAllocation
+    {
+        static ThreadAllocation create()
+        {
+            try
+            {
+                Class.forName("com.sun.management.ThreadMXBean");
+                return SunThreadAllocation.create();
+            }
+            catch(ClassNotFoundException cnfe)
+            {
+                return null;
+            }
+            catch(LinkageError le)
+            {
+                return null;
+            }
+        }
+        
+        abstract long currentThreadAllocatedBytes();
+    }
+    
+    private static class SunThreadAllocation extends ThreadAllocation
+    {
+        private final com.sun.management.ThreadMXBean bean;
+        
+        static ThreadAllocation create()
+        {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if(!(bean instanceof com.sun.management.ThreadMXBean))
+            {
+                return null;
+            }
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if(!sunBean.isThreadAllocatedMemorySupported())
+            {
+                return null;
+            }
+            if(!sunBean.isThreadAllocatedMemoryEnabled())
+            {
+                sunBean.setThreadAllocatedMemoryEnabled(true);
+            }
+            return new SunThreadAllocation(sunBean);
+        }
+        
+        private SunThreadAllocation(com.sun.management.ThreadMXBean bean)
+        {
+            this.bean = bean;
+        }
+        
+        @Override
+        long currentThreadAllocatedBytes()
+        {
+            return this.bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+    }
+}
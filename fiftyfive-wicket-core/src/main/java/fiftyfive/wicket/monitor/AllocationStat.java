@@ -0,0 +1,115 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.wicket.util.lang.Bytes;
+
+
+/**
+ * Aggregated heap allocation of all requests for one page class or resource. See
+ * {@link AllocationMetrics}.
+ *
+ * @since 4.0
+ */
+public class AllocationStat
+{
+    /**
+     * Orders stats by descending {@link #getTotalBytes total allocation}.
+     */
+    public static final Comparator<AllocationStat> BY_TOTAL_DESC =
+        new Comparator<AllocationStat>() {
+            public int compare(AllocationStat a, AllocationStat b)
+            {
+                long diff = b.getTotalBytes() - a.getTotalBytes();
+                return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+            }
+        };
+    
+    private final String description;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong maxBytes = new AtomicLong();
+    
+    public AllocationStat(String description)
+    {
+        this.description = description;
+    }
+    
+    void record(long bytes)
+    {
+        this.count.incrementAndGet();
+        this.totalBytes.addAndGet(bytes);
+        long max;
+        while(bytes > (max = this.maxBytes.get()))
+        {
+            if(this.maxBytes.compareAndSet(max, bytes))
+            {
+                break;
+            }
+        }
+    }
+    
+    /**
+     * The page class simple name, {@code Scope/name} of a resource reference, or handler
+     * type.
+     */
+    public String getDescription()
+    {
+        return this.description;
+    }
+    
+    public long getCount()
+    {
+        return this.count.get();
+    }
+    
+    public long getTotalBytes()
+    {
+        return this.totalBytes.get();
+    }
+    
+    public long getMaxBytes()
+    {
+        return this.maxBytes.get();
+    }
+    
+    /**
+     * Average bytes allocated per request.
+     */
+    public Bytes getAverage()
+    {
+        long n = getCount();
+        return Bytes.bytes(n == 0 ? 0 : getTotalBytes() / n);
+    }
+    
+    /**
+     * Returns a summary like {@code OrderPage 12.3 MB/req (120 reqs, max 40 MB)}.
+     */
+    @Override
+    public String toString()
+    {
+        return String.format(
+            "%s %s/req (%d reqs, max %s)",
+            getDescription(),
+            getAverage(),
+            getCount(),
+            Bytes.bytes(getMaxBytes())
+        );
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import org.apache.wicket.core.request.handler.IPageClassRequestHandler;
+import org.apache.wicket.core.request.handler.IPageRequestHandler;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.handler.resource.ResourceReferenceRequestHandler;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.util.lang.Classes;
+import org.apache.wicket.util.string.Strings;
+
+
+/**
+ * Helpers for grouping requests by what they do: the page class for page requests, the
+ * resource reference for resource requests, or otherwise the handler type.
+ * <p>
+ * The page class of a handler for an existing page instance is only known once the page has
+ * been loaded from the page store, which also locks the page. These helpers never load a page
+ * themselves; listeners should ask again once the handler has been executed, when the page
+ * has been loaded by the handler itself.
+ */
+class HandlerKeys
+{
+    /**
+     * Returns {@code true} if the handler refers to a page instance that has not been loaded
+     * or created yet, in which case {@link #pageClass} will return {@code null} and
+     * {@link #key} the handler class until it has.
+     */
+    static boolean isPagePending(IRequestHandler handler)
+    {
+        return handler instanceof IPageRequestHandler &&
+               !((IPageRequestHandler) handler).isPageInstanceCreated();
+    }
+
+    /**
+     * Returns the page class of the handler, or {@code null} if it is not a page handler, its
+     * page instance is {@link #isPagePending pending}, or its page can't be resolved (for
+     * example because it has expired).
+     */
+    static Class<?> pageClass(IRequestHandler handler)
+    {
+        if(handler instanceof IPageClassRequestHandler && !isPagePending(handler))
+        {
+            try
+            {
+                return ((IPageClassRequestHandler) handler).getPageClass();
+            }
+            catch(RuntimeException re)
+            {
+                // Fall through
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns a key suitable for grouping requests: a page class, a
+     * {@link ResourceReference.Key}, or the handler class.
+     */
+    static Object key(IRequestHandler handler)
+    {
+        Class<?> page = pageClass(handler);
+        if(page != null)
+        {
+            return page;
+        }
+        if(handler instanceof ResourceReferenceRequestHandler)
+        {
+            return ((ResourceReferenceRequestHandler) handler).getResourceReference().getKey();
+        }
+        return handler.getClass();
+    }
+    
+    /**
+     * Returns a human-readable description of a key returned by {@link #key}: the simple name
+     * of a page or handler class, or {@code scope/name} of a resource reference.
+     */
+    static String describe(Object key)
+    {
+        if(key instanceof Class)
+        {
+            return Classes.simpleName((Class<?>) key);
+        }
+        if(key instanceof ResourceReference.Key)
+        {
+            ResourceReference.Key ref = (ResourceReference.Key) key;
+            return Strings.afterLast(ref.getScope(), '.') + "/" + ref.getName();
+        }
+        return String.valueOf(key);
+    }
+    
+    /**
+     * Not meant to be instantiated.
+     */
+    private HandlerKeys()
+    {
+        super();
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A fixed-bucket latency histogram that can be updated concurrently without locking or
+ * allocating. Each bucket counts the observations that are less than or equal to its upper
+ * bound and greater than the previous bound; observations above the last bound are counted
+ * in an overflow bucket. The histogram also tracks the total, the sum and the maximum, as well
+ * as the number of observations currently in progress.
+ * <p>
+ * Reads are not atomic across buckets, so a snapshot taken while requests are being recorded
+ * may be off by one or two observations. That is fine for monitoring purposes.
+ *
+ * @since 4.0
+ */
+public class LatencyHistogram
+{
+    /**
+     * Default bucket upper bounds, in milliseconds: 1ms up to 10s on a roughly
+     * 1-2.5-5 progression.
+     */
+    public static final long[] DEFAULT_BOUNDS_MILLIS = {
+        1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000
+    };
+    
+    private final String label;
+    private final long[] boundsNanos;
+    private final AtomicLongArray buckets;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    
+    /**
+     * Creates a histogram using {@link #DEFAULT_BOUNDS_MILLIS}.
+     * 
+     * @param label A description of what is being measured, for example a page class name
+     */
+    public LatencyHistogram(String label)
+    {
+        this(label, DEFAULT_BOUNDS_MILLIS);
+    }
+    
+    /**
+     * @param label A description of what is being measured, for example a page class name
+     * @param boundsMillis Bucket upper bounds in milliseconds, in ascending order
+     */
+    public LatencyHistogram(String label, long[] boundsMillis)
+    {
+        this.label = label;
+        this.boundsNanos = new long[boundsMillis.length];
+        for(int i=0; i<boundsMillis.length; i++)
+        {
+            this.boundsNanos[i] = TimeUnit.MILLISECONDS.toNanos(boundsMillis[i]);
+        }
+        this.buckets = new AtomicLongArray(boundsMillis.length + 1);
+    }
+    
+    public String getLabel()
+    {
+        return this.label;
+    }
+    
+    /**
+     * Records one observation.
+     */
+    public void record(long nanos)
+    {
+        int i = 0;
+        while(i < this.boundsNanos.length && nanos > this.boundsNanos[i])
+        {
+            i++;
+        }
+        this.buckets.incrementAndGet(i);
+        this.count.incrementAndGet();
+        this.sumNanos.addAndGet(nanos);
+        
+        long max;
+        while(nanos > (max = this.maxNanos.get()))
+        {
+            if(this.maxNanos.compareAndSet(max, nanos))
+            {
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Notes that an observation has started. Must be balanced by a call to {@link #exit}.
+     */
+    public void enter()
+    {
+        this.inFlight.incrementAndGet();
+    }
+    
+    /**
+     * Notes that an observation has finished, whether or not it was {@link #record recorded}.
+     */
+    public void exit()
+    {
+        this.inFlight.decrementAndGet();
+    }
+    
+    /**
+     * The number of observations in progress, i.e. {@link #enter} calls not yet balanced by
+     * {@link #exit}.
+     */
+    public int getInFlight()
+    {
+        return this.inFlight.get();
+    }
+    
+    public long getCount()
+    {
+        return this.count.get();
+    }
+    
+    public long getSumNanos()
+    {
+        return this.sumNanos.get();
+    }
+    
+    public long getMaxNanos()
+    {
+        return this.maxNanos.get();
+    }
+    
+    /**
+     * The number of buckets, including the overflow bucket.
+     */
+    public int getBucketCount()
+    {
+        return this.buckets.length();
+    }
+    
+    /**
+     * The upper bound of the bucket at the given index in nanoseconds, or
+     * {@link Long#MAX_VALUE} for the overflow bucket.
+     */
+    public long getBucketBoundNanos(int index)
+    {
+        return index < this.boundsNanos.length ? this.boundsNanos[index] : Long.MAX_VALUE;
+    }
+    
+    /**
+     * The number of observations in the bucket at the given index (not cumulative).
+     */
+    public long getBucketValue(int index)
+    {
+        return this.buckets.get(index);
+    }
+}
@@ -0,0 +1,379 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.IPageManagerProvider;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.Session;
+import org.apache.wicket.page.IManageablePage;
+import org.apache.wicket.page.IPageManager;
+import org.apache.wicket.page.IPageManagerContext;
+import org.apache.wicket.page.PageManagerDecorator;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.session.ISessionStore;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Measures how long each request waits for its page lock. Wicket processes only one request
+ * at a time per page, so a user with several tabs open, or a page with an eager Ajax timer,
+ * can end up queued behind their own requests; without this, the delay just shows up as
+ * unexplained latency.
+ * <p>
+ * The wait is measured from the beginning of the request until the page manager is first
+ * asked for an existing page, which happens immediately after Wicket's
+ * {@link org.apache.wicket.page.PageAccessSynchronizer PageAccessSynchronizer} has granted
+ * the lock; the time taken to load and deserialize the page is not included. The wait starts
+ * at the beginning of the request rather than when the handler is resolved, because other
+ * listeners may already access the page while the handler is being resolved, so it also
+ * includes the (usually negligible) time taken to map the URL. Requests that never access an
+ * existing page (resources, or requests that create a new page instance) are not recorded,
+ * since they cannot contend for a lock. Waits are recorded in a {@link LatencyHistogram} per
+ * page class, which is included in the output of {@link RequestMetrics#writeTextFormat} when
+ * both are installed.
+ * The wait for the current request is also reported by
+ * {@link fiftyfive.wicket.util.LoggingUtils#getRequestInfo LoggingUtils.getRequestInfo()}.
+ * <p>
+ * A session whose requests wait longer than the {@link #setQueueingThreshold threshold}
+ * several times in a row is flagged as having sustained queueing: it is logged at
+ * {@code WARN} level and listed by {@link #getQueueingSessions} until one of its requests
+ * is served without waiting.
+ * <pre class="example">
+ * new PageLockMetrics().install(this);</pre>
+ *
+ * @since 4.0
+ */
+public class PageLockMetrics extends AbstractRequestCycleListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(PageLockMetrics.class);
+    
+    private static final MetaDataKey<PageLockMetrics> METRICS_KEY =
+        new MetaDataKey<PageLockMetrics>() {};
+    
+    /**
+     * Returns the {@code PageLockMetrics} that has been installed in the current Wicket
+     * application, or {@code null} if there is none.
+     */
+    public static PageLockMetrics get()
+    {
+        return Application.exists() ? Application.get().getMetaData(METRICS_KEY) : null;
+    }
+    
+    
+    private final ConcurrentMap<Class<?>, LatencyHistogram> histograms =
+        new ConcurrentHashMap<Class<?>, LatencyHistogram>();
+    private final ConcurrentMap<String, AtomicInteger> queueing =
+        new ConcurrentHashMap<String, AtomicInteger>();
+    private final ThreadLocal<RequestState> state = new ThreadLocal<RequestState>() {
+        @Override
+        protected RequestState initialValue()
+        {
+            return new RequestState();
+        }
+    };
+    private volatile long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(250);
+    private volatile int queueingCount = 5;
+    
+    /**
+     * The threshold set via {@link #setQueueingThreshold}.
+     */
+    public Duration getQueueingThreshold()
+    {
+        return Duration.milliseconds(TimeUnit.NANOSECONDS.toMillis(this.thresholdNanos));
+    }
+    
+    /**
+     * A session is flagged when this many consecutive requests each wait longer than
+     * {@code threshold} for their page lock. The defaults are 250 milliseconds and 5
+     * requests.
+     * 
+     * @return {@code this} to allow chaining
+     */
+    public PageLockMetrics setQueueingThreshold(Duration threshold, int count)
+    {
+        Args.notNull(threshold, "threshold");
+        Args.isTrue(count > 0, "count must be greater than zero");
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(threshold.getMilliseconds());
+        this.queueingCount = count;
+        return this;
+    }
+    
+    /**
+     * Registers this object as a request cycle listener of the application, makes it
+     * available via {@link #get}, and decorates the application's current
+     * {@link IPageManagerProvider} so that page accesses can be observed. Call this after
+     * any other code that sets the page manager provider.
+     */
+    public void install(WebApplication app)
+    {
+        Args.notNull(app, "app");
+        app.getRequestCycleListeners().add(this);
+        app.setMetaData(METRICS_KEY, this);
+        app.getSessionStore().registerUnboundListener(new ISessionStore.UnboundListener() {
+            public void sessionUnbound(String sessionId)
+            {
+                queueing.remove(sessionId);
+            }
+        });
+        
+        final IPageManagerProvider provider = app.getPageManagerProvider();
+        app.setPageManagerProvider(new IPageManagerProvider() {
+            public IPageManager get(IPageManagerContext context)
+            {
+                return track(provider.get(context));
+            }
+        });
+    }
+    
+    /**
+     * Returns a page manager that delegates to the given one, noting when each request first
+     * obtains an existing page.
+     */
+    public IPageManager track(IPageManager delegate)
+    {
+        Args.notNull(delegate, "delegate");
+        return new TimingPageManager(delegate);
+    }
+    
+    /**
+     * Returns a snapshot of the wait time histograms, keyed and sorted by label. The
+     * histograms themselves are live.
+     */
+    public Map<String, LatencyHistogram> getHistograms()
+    {
+        Map<String, LatencyHistogram> sorted = new TreeMap<String, LatencyHistogram>();
+        for(LatencyHistogram h : this.histograms.values())
+        {
+            sorted.put(h.getLabel(), h);
+        }
+        return sorted;
+    }
+    
+    /**
+     * Returns the IDs of sessions that are currently flagged as having sustained queueing.
+     */
+    public Set<String> getQueueingSessions()
+    {
+        Set<String> ids = new TreeSet<String>();
+        for(Map.Entry<String, AtomicInteger> e : this.queueing.entrySet())
+        {
+            if(e.getValue().get() >= this.queueingCount)
+            {
+                ids.add(e.getKey());
+            }
+        }
+        return ids;
+    }
+    
+    /**
+     * Returns how long the current request waited for its page lock, or {@code null} if it
+     * has not obtained an existing page.
+     */
+    public Duration getCurrentWait()
+    {
+        RequestState s = this.state.get();
+        if(!s.active || s.waitNanos < 0)
+        {
+            return null;
+        }
+        return Duration.milliseconds(TimeUnit.NANOSECONDS.toMillis(s.waitNanos));
+    }
+    
+    /**
+     * Writes the wait time histograms to the given buffer in the Prometheus text exposition
+     * format, version 0.0.4. Called by {@link RequestMetrics#writeTextFormat} when both are
+     * installed.
+     */
+    public void writeTextFormat(StringBuilder out)
+    {
+        out.append("# HELP wicket_page_lock_wait_seconds Time spent waiting for the page " +
+                   "lock, by page class.\n");
+        out.append("# TYPE wicket_page_lock_wait_seconds histogram\n");
+        for(LatencyHistogram h : getHistograms().values())
+        {
+            long cumulative = 0;
+            for(int i=0; i<h.getBucketCount(); i++)
+            {
+                cumulative += h.getBucketValue(i);
+                long bound = h.getBucketBoundNanos(i);
+                out.append("wicket_page_lock_wait_seconds_bucket{").append(h.getLabel());
+                out.append(",le=\"");
+                out.append(bound == Long.MAX_VALUE ? "+Inf" : Double.toString(bound / 1e9));
+                out.append("\"} ").append(cumulative).append('\n');
+            }
+            out.append("wicket_page_lock_wait_seconds_sum{").append(h.getLabel()).append("} ");
+            out.append(h.getSumNanos() / 1e9).append('\n');
+            out.append("wicket_page_lock_wait_seconds_count{").append(h.getLabel());
+            out.append("} ").append(h.getCount()).append('\n');
+        }
+        out.append("# HELP wicket_page_lock_queueing_sessions Sessions with sustained " +
+                   "page lock queueing.\n");
+        out.append("# TYPE wicket_page_lock_queueing_sessions gauge\n");
+        out.append("wicket_page_lock_queueing_sessions ");
+        out.append(getQueueingSessions().size()).append('\n');
+    }
+    
+    @Override
+    public void onBeginRequest(RequestCycle cycle)
+    {
+        RequestState s = this.state.get();
+        s.active = true;
+        s.startNanos = System.nanoTime();
+        s.waitNanos = -1;
+        s.pageClass = null;
+    }
+    
+    @Override
+    public void onDetach(RequestCycle cycle)
+    {
+        RequestState s = this.state.get();
+        if(!s.active)
+        {
+            return;
+        }
+        s.active = false;
+        if(s.waitNanos < 0 || null == s.pageClass)
+        {
+            return;
+        }
+        histogramFor(s.pageClass).record(s.waitNanos);
+        
+        String sessionId = Session.exists() ? Session.get().getId() : null;
+        if(sessionId != null)
+        {
+            recordSessionWait(sessionId, s.waitNanos, s.pageClass);
+        }
+    }
+    
+    /**
+     * Tracks consecutive long waits per session. Sessions are only added to the map once
+     * they wait longer than the threshold, so the common case allocates nothing.
+     */
+    void recordSessionWait(String sessionId, long waitNanos, Class<?> pageClass)
+    {
+        if(waitNanos <= this.thresholdNanos)
+        {
+            if(!this.queueing.isEmpty())
+            {
+                this.queueing.remove(sessionId);
+            }
+            return;
+        }
+        AtomicInteger count = this.queueing.get(sessionId);
+        if(null == count)
+        {
+            AtomicInteger created = new AtomicInteger();
+            count = this.queueing.putIfAbsent(sessionId, created);
+            if(null == count)
+            {
+                count = created;
+            }
+        }
+        if(count.incrementAndGet() == this.queueingCount)
+        {
+            LOGGER.warn(
+                "Session {} has waited for its page lock on {} consecutive requests; " +
+                "last wait was {} ms on {}",
+                new Object[] {
+                    sessionId,
+                    this.queueingCount,
+                    TimeUnit.NANOSECONDS.toMillis(waitNanos),
+                    pageClass.getName()
+                });
+        }
+    }
+    
+    /**
+     * Records the wait for the first existing page obtained in the request.
+     * 
+     * @param lockedNanos When the page manager was asked for the page, with the lock held
+     */
+    private void pageObtained(IManageablePage page, long lockedNanos)
+    {
+        RequestState s = this.state.get();
+        if(s.active && s.waitNanos < 0 && page != null)
+        {
+            s.waitNanos = Math.max(0, lockedNanos - s.startNanos);
+            s.pageClass = page.getClass();
+        }
+    }
+    
+    private LatencyHistogram histogramFor(Class<?> pageClass)
+    {
+        LatencyHistogram histogram = this.histograms.get(pageClass);
+        if(null == histogram)
+        {
+            histogram = new LatencyHistogram("page=\"" + pageClass.getName() + "\"");
+            LatencyHistogram existing = this.histograms.putIfAbsent(pageClass, histogram);
+            if(existing != null)
+            {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+    
+    /**
+     * Sits beneath the page access synchronizer, so every call into it happens with the
+     * page lock already held.
+     */
+    private class TimingPageManager extends PageManagerDecorator
+    {
+        TimingPageManager(IPageManager delegate)
+        {
+            super(delegate);
+        }
+        
+        @Override
+        public IManageablePage getPage(int id)
+        {
+            // Read the clock before the page is loaded, so that deserializing it isn't
+            // counted as waiting
+            long lockedNanos = System.nanoTime();
+            IManageablePage page = super.getPage(id);
+            pageObtained(page, lockedNanos);
+            return page;
+        }
+    }
+    
+    /**
+     * Mutable per-thread holder, reused from one request to the next so that nothing needs
+     * to be allocated per request.
+     */
+    private static class RequestState
+    {
+        boolean active;
+        long startNanos;
+        long waitNanos;
+        Class<?> pageClass;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fiftyfive.wicket.util.PageSizeAnalyzer;
+import fiftyfive.wicket.util.PageSizeReport;
+
+import org.apache.wicket.Page;
+import org.apache.wicket.core.request.handler.IPageRequestHandler;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.lang.Bytes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Runs the {@link PageSizeAnalyzer} on a sample of the pages rendered by the application,
+ * at the end of the request once the page has been detached. Pages larger than the
+ * {@link #setLogThreshold threshold} are logged at {@code WARN} level with a breakdown of
+ * their largest components and models; all other analyses are logged at {@code DEBUG}.
+ * <p>
+ * Analysis serializes each component of the page separately, which is considerably more
+ * expensive than the page store's own serialization, and it runs on the request thread.
+ * Keep the sample rate low in production.
+ * <pre class="example">
+ * new PageSizeSampler(1000).setLogThreshold(Bytes.kilobytes(100)).install(this);</pre>
+ *
+ * @since 4.0
+ */
+public class PageSizeSampler extends AbstractRequestCycleListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(PageSizeSampler.class);
+    
+    private final int sampleRate;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final PageSizeAnalyzer analyzer = new PageSizeAnalyzer();
+    private final ThreadLocal<Page[]> sampled = new ThreadLocal<Page[]>() {
+        @Override
+        protected Page[] initialValue()
+        {
+            return new Page[1];
+        }
+    };
+    private volatile long logThreshold = Bytes.kilobytes(100).bytes();
+    
+    /**
+     * @param sampleRate Analyze one in every {@code sampleRate} page requests; 1 means
+     *                   every page
+     */
+    public PageSizeSampler(int sampleRate)
+    {
+        Args.isTrue(sampleRate > 0, "sampleRate must be greater than zero");
+        this.sampleRate = sampleRate;
+    }
+    
+    public Bytes getLogThreshold()
+    {
+        return Bytes.bytes(this.logThreshold);
+    }
+    
+    /**
+     * Log pages larger than this at {@code WARN} level. The default is 100K.
+     * 
+     * @return {@code this} to allow chaining
+     */
+    public PageSizeSampler setLogThreshold(Bytes threshold)
+    {
+        Args.notNull(threshold, "threshold");
+        this.logThreshold = threshold.bytes();
+        return this;
+    }
+    
+    /**
+     * Registers this object as a request cycle listener of the application.
+     */
+    public void install(WebApplication app)
+    {
+        Args.notNull(app, "app");
+        app.getRequestCycleListeners().add(this);
+    }
+    
+    /**
+     * Remembers the page of every {@code sampleRate}th page request.
+     */
+    @Override
+    public void onRequestHandlerExecuted(RequestCycle cycle, IRequestHandler handler)
+    {
+        if(!(handler instanceof IPageRequestHandler))
+        {
+            return;
+        }
+        IPageRequestHandler pageHandler = (IPageRequestHandler) handler;
+        if(!pageHandler.isPageInstanceCreated() ||
+           this.requestCount.incrementAndGet() % this.sampleRate != 0)
+        {
+            return;
+        }
+        if(pageHandler.getPage() instanceof Page)
+        {
+            this.sampled.get()[0] = (Page) pageHandler.getPage();
+        }
+    }
+    
+    /**
+     * Analyzes the remembered page, if any, now that it has been detached.
+     */
+    @Override
+    public void onDetach(RequestCycle cycle)
+    {
+        Page[] holder = this.sampled.get();
+        Page page = holder[0];
+        if(null == page)
+        {
+            return;
+        }
+        holder[0] = null;
+        
+        try
+        {
+            PageSizeReport report = this.analyzer.analyze(page);
+            if(report.getTotalSize().bytes() > this.logThreshold)
+            {
+                LOGGER.warn("Large page{}{}", System.getProperty("line.separator"), report);
+            }
+            else if(LOGGER.isDebugEnabled())
+            {
+                LOGGER.debug("Page size{}{}", System.getProperty("line.separator"), report);
+            }
+        }
+        catch(RuntimeException re)
+        {
+            LOGGER.warn("Unable to analyze size of " + page.getClass().getName(), re);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.markup.html.basic.Label;
+import org.apache.wicket.markup.html.link.StatelessLink;
+import org.apache.wicket.markup.html.list.ListItem;
+import org.apache.wicket.markup.html.list.ListView;
+import org.apache.wicket.model.LoadableDetachableModel;
+
+
+/**
+ * A developer page that shows the components with the highest total render time, as
+ * measured by the {@link RenderProfiler} installed in the application. Times are in
+ * milliseconds. "Self" is the time spent in the component excluding its profiled children.
+ *
+ * @since 4.0
+ */
+public class RenderProfilePage extends WebPage
+{
+    /**
+     * The number of components listed.
+     */
+    public static final int TOP_N = 100;
+    
+    public RenderProfilePage()
+    {
+        super();
+        
+        add(new Label("sampled", new LoadableDetachableModel<String>() {
+            @Override
+            protected String load()
+            {
+                RenderProfiler profiler = RenderProfiler.get();
+                return null == profiler ?
+                    "Render profiler is not installed." :
+                    String.format("%d requests sampled (1 in %d).",
+                                  profiler.getSampledRequestCount(),
+                                  profiler.getSampleRate());
+            }
+        }));
+        
+        add(new StatelessLink<Void>("reset") {
+            @Override
+            public void onClick()
+            {
+                RenderProfiler profiler = RenderProfiler.get();
+                if(profiler != null)
+                {
+                    profiler.reset();
+                }
+                setResponsePage(RenderProfilePage.class);
+            }
+        });
+        
+        add(new ListView<RenderStat>("stats", new LoadableDetachableModel<List<RenderStat>>() {
+            @Override
+            protected List<RenderStat> load()
+            {
+                RenderProfiler profiler = RenderProfiler.get();
+                return null == profiler ?
+                    Collections.<RenderStat>emptyList() :
+                    profiler.getTopN(TOP_N);
+            }
+        }) {
+            @Override
+            protected void populateItem(ListItem<RenderStat> item)
+            {
+                RenderStat stat = item.getModelObject();
+                item.add(new Label("key", stat.getKey()));
+                item.add(new Label("count", String.valueOf(stat.getCount())));
+                item.add(new Label("total", millis(stat.getTotalNanos())));
+                item.add(new Label("self", millis(stat.getSelfNanos())));
+                item.add(new Label("average", millis(stat.getTotalNanos() / stat.getCount())));
+                item.add(new Label("max", millis(stat.getMaxNanos())));
+            }
+        });
+    }
+    
+    private static String millis(long nanos)
+    {
+        return String.format("%.1f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.Component;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.Page;
+import org.apache.wicket.application.IComponentOnAfterRenderListener;
+import org.apache.wicket.application.IComponentOnBeforeRenderListener;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.lang.Classes;
+
+
+/**
+ * Measures the wall time taken to render each component, aggregated by page class, component
+ * class and path, so that you can tell which panel is responsible for a slow page.
+ * <p>
+ * The profiler listens for the application-wide {@code onBeforeRender} and
+ * {@code onAfterRender} events; nothing is added to the components themselves. Components
+ * finish rendering in depth-first order, so the time between one component finishing and the
+ * next is attributed to the latter, and a component's total time spans its own output plus
+ * that of its children. Only one in every {@link #getSampleRate N} requests is actually
+ * measured. In all other requests the listeners do nothing but read a thread local, so the
+ * profiler can be left on in production with a sample rate of, say, 100.
+ * <p>
+ * Results can be viewed on a {@link RenderProfilePage} (see {@link #setMountPath}),
+ * obtained via {@link #getTopN}, or logged using
+ * {@link fiftyfive.wicket.util.LoggingUtils#describeRenderProfile}. The
+ * {@link fiftyfive.wicket.FoundationApplication FoundationApplication} installs a profiler
+ * automatically; see
+ * {@link fiftyfive.wicket.FoundationApplication#initRenderProfiler initRenderProfiler()}.
+ *
+ * @since 4.0
+ */
+public class RenderProfiler
+    extends AbstractRequestCycleListener
+    implements IComponentOnBeforeRenderListener, IComponentOnAfterRenderListener
+{
+    /**
+     * The maximum number of distinct components that will be tracked. Once this is reached,
+     * components not already being tracked are ignored.
+     */
+    public static final int MAX_KEYS = 2000;
+    
+    private static final MetaDataKey<RenderProfiler> PROFILER_KEY =
+        new MetaDataKey<RenderProfiler>() {};
+    
+    private static final ThreadLocal<Frames> FRAMES = new ThreadLocal<Frames>() {
+        @Override
+        protected Frames initialValue()
+        {
+            return new Frames();
+        }
+    };
+    
+    /**
+     * Returns the {@code RenderProfiler} that has been installed in the current Wicket
+     * application, or {@code null} if there is none.
+     */
+    public static RenderProfiler get()
+    {
+        return Application.exists() ? Application.get().getMetaData(PROFILER_KEY) : null;
+    }
+    
+    
+    private final int sampleRate;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+    private final ConcurrentMap<String, RenderStat> stats =
+        new ConcurrentHashMap<String, RenderStat>();
+    private String mountPath;
+    
+    /**
+     * @param sampleRate Profile one in every {@code sampleRate} requests; 1 means every
+     *                   request
+     */
+    public RenderProfiler(int sampleRate)
+    {
+        Args.isTrue(sampleRate > 0, "sampleRate must be greater than zero");
+        this.sampleRate = sampleRate;
+    }
+    
+    public int getSampleRate()
+    {
+        return this.sampleRate;
+    }
+    
+    /**
+     * The number of requests that have been profiled so far.
+     */
+    public long getSampledRequestCount()
+    {
+        return this.sampled.get();
+    }
+    
+    /**
+     * The path set via {@link #setMountPath}, or {@code null}.
+     */
+    public String getMountPath()
+    {
+        return this.mountPath;
+    }
+    
+    /**
+     * Sets the path where a {@link RenderProfilePage} will be mounted when
+     * {@link #install install} is called. The default is {@code null}, in which case the
+     * page is not mounted.
+     * 
+     * @return {@code this} to allow chaining
+     */
+    public RenderProfiler setMountPath(String mountPath)
+    {
+        this.mountPath = mountPath;
+        return this;
+    }
+    
+    /**
+     * Registers this profiler as a request cycle listener and component render listener of
+     * the application, makes it available via {@link #get}, and mounts the
+     * {@link RenderProfilePage} if a {@link #setMountPath mount path} has been set.
+     */
+    public void install(WebApplication app)
+    {
+        Args.notNull(app, "app");
+        app.getRequestCycleListeners().add(this);
+        app.getComponentPostOnBeforeRenderListeners().add(this);
+        app.getComponentOnAfterRenderListeners().add(this);
+        app.setMetaData(PROFILER_KEY, this);
+        
+        if(this.mountPath != null)
+        {
+            app.mountPage(this.mountPath, RenderProfilePage.class);
+        }
+    }
+    
+    /**
+     * Returns the {@code n} components with the highest total render time, in descending
+     * order.
+     */
+    public List<RenderStat> getTopN(int n)
+    {
+        List<RenderStat> list = new ArrayList<RenderStat>(this.stats.values());
+        Collections.sort(list, RenderStat.BY_TOTAL_DESC);
+        return list.size() > n ? new ArrayList<RenderStat>(list.subList(0, n)) : list;
+    }
+    
+    /**
+     * Discards all statistics gathered so far.
+     */
+    public void reset()
+    {
+        this.stats.clear();
+        this.sampled.set(0);
+    }
+    
+    /**
+     * In a sampled request, starts the clock once a component has been prepared for render,
+     * so that the time spent in {@code onBeforeRender()} is not counted as render time.
+     * Automatic components are prepared in the middle of rendering their parent and are
+     * ignored.
+     */
+    public void onBeforeRender(Component component)
+    {
+        Frames frames = FRAMES.get();
+        if(frames.profiler != null && !component.isAuto())
+        {
+            frames.last = System.nanoTime();
+        }
+    }
+    
+    /**
+     * In a sampled request, records the render time of a component that has just finished
+     * rendering. Its children have finished just before it, so they are on top of the stack
+     * of completed components, and are replaced there by the component itself.
+     */
+    public void onAfterRender(Component component)
+    {
+        Frames frames = FRAMES.get();
+        if(null == frames.profiler || !component.isVisibleInHierarchy())
+        {
+            return;
+        }
+        long now = System.nanoTime();
+        long start = frames.last;
+        long children = 0;
+        while(frames.depth > 0 && frames.components[frames.depth - 1].getParent() == component)
+        {
+            int d = --frames.depth;
+            start = frames.start[d];
+            children += frames.total[d];
+            frames.components[d] = null;
+        }
+        long total = now - start;
+        record(component, total, total - children);
+        frames.push(component, start, total);
+        frames.last = now;
+    }
+    
+    @Override
+    public void onBeginRequest(RequestCycle cycle)
+    {
+        if(this.requests.incrementAndGet() % this.sampleRate == 0)
+        {
+            this.sampled.incrementAndGet();
+            Frames frames = FRAMES.get();
+            frames.profiler = this;
+            frames.clear();
+            frames.last = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void onDetach(RequestCycle cycle)
+    {
+        Frames frames = FRAMES.get();
+        if(frames.profiler != null)
+        {
+            frames.profiler = null;
+            frames.clear();
+        }
+    }
+    
+    void record(Component component, long inclusiveNanos, long exclusiveNanos)
+    {
+        String key = describe(component);
+        RenderStat stat = this.stats.get(key);
+        if(null == stat)
+        {
+            if(this.stats.size() >= MAX_KEYS)
+            {
+                return;
+            }
+            stat = new RenderStat(key);
+            RenderStat existing = this.stats.putIfAbsent(key, stat);
+            if(existing != null)
+            {
+                stat = existing;
+            }
+        }
+        stat.record(inclusiveNanos, exclusiveNanos);
+    }
+    
+    /**
+     * Describes the component as {@code PageClass > ComponentClass [path]}, with numeric
+     * path segments (repeater items) replaced by {@code *}.
+     */
+    private static String describe(Component component)
+    {
+        Page page = component.findPage();
+        String pageName = page != null ? Classes.simpleName(page.getClass()) : "?";
+        if(component instanceof Page)
+        {
+            return pageName;
+        }
+        
+        Class<?> cls = component.getClass();
+        StringBuilder desc = new StringBuilder(pageName).append(" > ");
+        desc.append(Classes.simpleName(cls));
+        if(cls.isAnonymousClass())
+        {
+            desc.append(" (").append(Classes.simpleName(cls.getSuperclass())).append(")");
+        }
+        desc.append(" [");
+        String[] segments = component.getPageRelativePath().split(":");
+        for(int i=0; i<segments.length; i++)
+        {
+            if(i > 0)
+            {
+                desc.append(':');
+            }
+            desc.append(isNumeric(segments[i]) ? "*" : segments[i]);
+        }
+        return desc.append(']').toString();
+    }
+    
+    private static boolean isNumeric(String str)
+    {
+        if(str.length() == 0)
+        {
+            return false;
+        }
+        for(int i=0; i<str.length(); i++)
+        {
+            if(!Character.isDigit(str.charAt(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Per-thread stack of components that have finished rendering but whose parents have not,
+     * with their start times and total render times. Only used in sampled requests, when
+     * {@code profiler} is non-null.
+     */
+    private static class Frames
+    {
+        RenderProfiler profiler;
+        long last;
+        int depth;
+        Component[] components = new Component[32];
+        long[] start = new long[32];
+        long[] total = new long[32];
+        
+        void push(Component component, long startNanos, long totalNanos)
+        {
+            if(this.depth == this.start.length)
+            {
+                Component[] c = new Component[this.depth * 2];
+                long[] s = new long[this.depth * 2];
+                long[] t = new long[this.depth * 2];
+                System.arraycopy(this.components, 0, c, 0, this.depth);
+                System.arraycopy(this.start, 0, s, 0, this.depth);
+                System.arraycopy(this.total, 0, t, 0, this.depth);
+                this.components = c;
+                this.start = s;
+                this.total = t;
+            }
+            this.components[this.depth] = component;
+            this.start[this.depth] = startNanos;
+            this.total[this.depth++] = totalNanos;
+        }
+        
+        /**
+         * Empties the stack, releasing the components so that they can be garbage collected.
+         */
+        void clear()
+        {
+            while(this.depth > 0)
+            {
+                this.components[--this.depth] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Aggregated render times for one component, identified by page class, component class and
+ * page-relative path. See {@link RenderProfiler}.
+ *
+ * @since 4.0
+ */
+public class RenderStat implements Serializable
+{
+    /**
+     * Orders stats by descending {@link #getTotalNanos total time}.
+     */
+    public static final Comparator<RenderStat> BY_TOTAL_DESC = new Comparator<RenderStat>() {
+        public int compare(RenderStat a, RenderStat b)
+        {
+            long diff = b.getTotalNanos() - a.getTotalNanos();
+            return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+        }
+    };
+    
+    private final String key;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong selfNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    
+    public RenderStat(String key)
+    {
+        this.key = key;
+    }
+    
+    void record(long inclusiveNanos, long exclusiveNanos)
+    {
+        this.count.incrementAndGet();
+        this.totalNanos.addAndGet(inclusiveNanos);
+        this.selfNanos.addAndGet(exclusiveNanos);
+        long max;
+        while(inclusiveNanos > (max = this.maxNanos.get()))
+        {
+            if(this.maxNanos.compareAndSet(max, inclusiveNanos))
+            {
+                break;
+            }
+        }
+    }
+    
+    /**
+     * A description of the component in the form used by
+     * {@link fiftyfive.wicket.util.LoggingUtils#describeRequestComponent}, for example
+     * {@code MyPage > MyPanel$1 (Link) [path:to:link]}. Repeater item indexes in the path
+     * are replaced by {@code *} so that all items of a repeater are aggregated together.
+     */
+    public String getKey()
+    {
+        return this.key;
+    }
+    
+    /**
+     * The number of sampled renders.
+     */
+    public long getCount()
+    {
+        return this.count.get();
+    }
+    
+    /**
+     * Total wall time of all sampled renders, including time spent rendering children.
+     */
+    public long getTotalNanos()
+    {
+        return this.totalNanos.get();
+    }
+    
+    /**
+     * Total wall time of all sampled renders, excluding time spent rendering children
+     * that were themselves profiled.
+     */
+    public long getSelfNanos()
+    {
+        return this.selfNanos.get();
+    }
+    
+    /**
+     * Longest single render, including children.
+     */
+    public long getMaxNanos()
+    {
+        return this.maxNanos.get();
+    }
+    
+    /**
+     * Formats the stats as one row of a fixed-width table, with times in milliseconds: count,
+     * total, self, max and key.
+     */
+    @Override
+    public String toString()
+    {
+        return String.format(
+            "%8d %10.1f %10.1f %8.1f  %s",
+            getCount(),
+            getTotalNanos() / 1e6,
+            getSelfNanos() / 1e6,
+            getMaxNanos() / 1e6,
+            getKey()
+        );
+    }
+}
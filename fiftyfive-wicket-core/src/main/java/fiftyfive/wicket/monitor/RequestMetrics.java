@@ -0,0 +1,328 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.lang.Classes;
+
+
+/**
+ * Records the latency of every request into a {@link LatencyHistogram} per page class, or
+ * per {@link IRequestHandler} type for requests that don't involve a page (resources,
+ * redirects, etc.), and tracks the number of requests in flight. The key is derived from
+ * the handler that Wicket originally resolved for the request, which is the same handler
+ * that {@link fiftyfive.wicket.util.LoggingUtils#describeRequestHandler} describes.
+ * <p>
+ * Unlike Wicket's {@link org.apache.wicket.protocol.http.RequestLogger RequestLogger}, this
+ * keeps no per-request history, and recording a request involves only a few atomic
+ * increments: nothing is allocated on the request path once a page class has been seen.
+ * It is therefore suitable for leaving on in production.
+ * <p>
+ * Optionally, the data can be exposed in the Prometheus text exposition format by mounting
+ * a {@link RequestMetricsResource}:
+ * <pre class="example">
+ * public class MyApplication extends WebApplication
+ * {
+ *     &#064;Override
+ *     protected void init()
+ *     {
+ *         super.init();
+ *         new RequestMetrics().setMountPath("internal/metrics").install(this);
+ *     }
+ * }</pre>
+ * Since the metrics reveal the structure of your application, make sure the mount path is
+ * protected or not reachable from the public internet.
+ *
+ * @since 4.0
+ */
+public class RequestMetrics extends AbstractRequestCycleListener
+{
+    private static final MetaDataKey<RequestMetrics> METRICS_KEY =
+        new MetaDataKey<RequestMetrics>() {};
+    
+    /**
+     * Returns the {@code RequestMetrics} that has been installed in the current Wicket
+     * application, or {@code null} if there is none.
+     */
+    public static RequestMetrics get()
+    {
+        return Application.exists() ? Application.get().getMetaData(METRICS_KEY) : null;
+    }
+    
+    
+    private final ConcurrentMap<Class<?>, LatencyHistogram> histograms =
+        new ConcurrentHashMap<Class<?>, LatencyHistogram>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ThreadLocal<RequestState> state = new ThreadLocal<RequestState>() {
+        @Override
+        protected RequestState initialValue()
+        {
+            return new RequestState();
+        }
+    };
+    private String mountPath;
+    
+    /**
+     * The path set via {@link #setMountPath}, or {@code null} if the metrics resource is not
+     * to be mounted.
+     */
+    public String getMountPath()
+    {
+        return this.mountPath;
+    }
+    
+    /**
+     * Sets the path where a {@link RequestMetricsResource} will be mounted when
+     * {@link #install install} is called. The default is {@code null}, in which case nothing
+     * is mounted.
+     * 
+     * @return {@code this} to allow chaining
+     */
+    public RequestMetrics setMountPath(String mountPath)
+    {
+        this.mountPath = mountPath;
+        return this;
+    }
+    
+    /**
+     * Registers this object as a request cycle listener of the application, makes it
+     * available via {@link #get}, and mounts the metrics resource if a
+     * {@link #setMountPath mount path} has been set.
+     */
+    public void install(WebApplication app)
+    {
+        Args.notNull(app, "app");
+        app.getRequestCycleListeners().add(this);
+        app.setMetaData(METRICS_KEY, this);
+        
+        if(this.mountPath != null)
+        {
+            app.mountResource(this.mountPath, new ResourceReference(
+                RequestMetrics.class, "metrics")
+            {
+                @Override
+                public IResource getResource()
+                {
+                    return new RequestMetricsResource();
+                }
+            });
+        }
+    }
+    
+    /**
+     * The total number of requests currently being processed.
+     */
+    public int getInFlight()
+    {
+        return this.inFlight.get();
+    }
+    
+    /**
+     * Returns a snapshot of the histograms, keyed and sorted by label. The histograms
+     * themselves are live.
+     */
+    public Map<String, LatencyHistogram> getHistograms()
+    {
+        Map<String, LatencyHistogram> sorted = new TreeMap<String, LatencyHistogram>();
+        for(LatencyHistogram h : this.histograms.values())
+        {
+            sorted.put(h.getLabel(), h);
+        }
+        return sorted;
+    }
+    
+    /**
+     * Writes all metrics to the given buffer in the Prometheus text exposition format,
+     * version 0.0.4. If a {@link SessionSizeTracker} or {@link PageLockMetrics} is
+     * installed, its metrics are included.
+     */
+    public void writeTextFormat(StringBuilder out)
+    {
+        Map<String, LatencyHistogram> sorted = getHistograms();
+        
+        out.append("# HELP wicket_requests_in_flight Requests currently being processed.\n");
+        out.append("# TYPE wicket_requests_in_flight gauge\n");
+        out.append("wicket_requests_in_flight ").append(getInFlight()).append('\n');
+        
+        out.append("# HELP wicket_handler_requests_in_flight Requests currently being " +
+                   "processed, by page class or request handler type.\n");
+        out.append("# TYPE wicket_handler_requests_in_flight gauge\n");
+        for(LatencyHistogram h : sorted.values())
+        {
+            out.append("wicket_handler_requests_in_flight{").append(h.getLabel()).append("} ");
+            out.append(h.getInFlight()).append('\n');
+        }
+        
+        out.append("# HELP wicket_request_duration_seconds Request latency, by page class " +
+                   "or request handler type.\n");
+        out.append("# TYPE wicket_request_duration_seconds histogram\n");
+        for(LatencyHistogram h : sorted.values())
+        {
+            long cumulative = 0;
+            for(int i=0; i<h.getBucketCount(); i++)
+            {
+                cumulative += h.getBucketValue(i);
+                long bound = h.getBucketBoundNanos(i);
+                out.append("wicket_request_duration_seconds_bucket{").append(h.getLabel());
+                out.append(",le=\"");
+                out.append(bound == Long.MAX_VALUE ? "+Inf" : toSeconds(bound));
+                out.append("\"} ").append(cumulative).append('\n');
+            }
+            out.append("wicket_request_duration_seconds_sum{").append(h.getLabel()).append("} ");
+            out.append(toSeconds(h.getSumNanos())).append('\n');
+            out.append("wicket_request_duration_seconds_count{").append(h.getLabel());
+            out.append("} ").append(h.getCount()).append('\n');
+        }
+        
+        SessionSizeTracker sizes = SessionSizeTracker.get();
+        if(sizes != null)
+        {
+            sizes.writeTextFormat(out);
+        }
+        PageLockMetrics locks = PageLockMetrics.get();
+        if(locks != null)
+        {
+            locks.writeTextFormat(out);
+        }
+    }
+    
+    @Override
+    public void onBeginRequest(RequestCycle cycle)
+    {
+        RequestState s = this.state.get();
+        s.active = true;
+        s.histogram = null;
+        s.pending = null;
+        s.startNanos = System.nanoTime();
+        this.inFlight.incrementAndGet();
+    }
+
+    /**
+     * Chooses the histogram for the request based on the first handler that is resolved;
+     * handlers resolved later in the request (e.g. for redirects or error pages) are ignored.
+     * If the handler refers to an existing page instance that has not been loaded yet, the
+     * choice is put off until the handler has been executed, so that the page is not loaded
+     * and locked here; such requests are counted in flight only from that point on.
+     */
+    @Override
+    public void onRequestHandlerResolved(RequestCycle cycle, IRequestHandler handler)
+    {
+        RequestState s = this.state.get();
+        if(s.active && null == s.histogram && null == s.pending)
+        {
+            if(HandlerKeys.isPagePending(handler))
+            {
+                s.pending = handler;
+            }
+            else
+            {
+                enter(s, handler);
+            }
+        }
+    }
+
+    @Override
+    public void onRequestHandlerExecuted(RequestCycle cycle, IRequestHandler handler)
+    {
+        RequestState s = this.state.get();
+        if(s.active && s.pending != null)
+        {
+            enter(s, s.pending);
+        }
+    }
+
+    @Override
+    public void onDetach(RequestCycle cycle)
+    {
+        RequestState s = this.state.get();
+        if(!s.active)
+        {
+            return;
+        }
+        s.active = false;
+        this.inFlight.decrementAndGet();
+        if(s.pending != null)
+        {
+            enter(s, s.pending);
+        }
+        if(s.histogram != null)
+        {
+            s.histogram.record(System.nanoTime() - s.startNanos);
+            s.histogram.exit();
+            s.histogram = null;
+        }
+    }
+    
+    private void enter(RequestState s, IRequestHandler handler)
+    {
+        s.pending = null;
+        s.histogram = histogramFor(handler);
+        s.histogram.enter();
+    }
+    
+    private LatencyHistogram histogramFor(IRequestHandler handler)
+    {
+        Class<?> pageClass = HandlerKeys.pageClass(handler);
+        boolean page = pageClass != null;
+        Class<?> key = page ? pageClass : handler.getClass();
+        
+        LatencyHistogram histogram = this.histograms.get(key);
+        if(null == histogram)
+        {
+            String label = page ?
+                "page=\"" + key.getName() + "\"" :
+                "handler=\"" + Classes.simpleName(key) + "\"";
+            histogram = new LatencyHistogram(label);
+            LatencyHistogram existing = this.histograms.putIfAbsent(key, histogram);
+            if(existing != null)
+            {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+    
+    private static String toSeconds(long nanos)
+    {
+        return Double.toString(nanos / 1e9);
+    }
+    
+    /**
+     * Mutable per-thread holder, reused from one request to the next so that nothing needs
+     * to be allocated per request.
+     */
+    private static class RequestState
+    {
+        boolean active;
+        long startNanos;
+        LatencyHistogram histogram;
+        IRequestHandler pending;
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import org.apache.wicket.request.resource.AbstractResource;
+import org.apache.wicket.util.lang.Checks;
+
+
+/**
+ * Serves the current {@link RequestMetrics} as plain text in the Prometheus exposition
+ * format. Normally this is mounted for you by {@link RequestMetrics#setMountPath}.
+ *
+ * @since 4.0
+ */
+public class RequestMetricsResource extends AbstractResource
+{
+    /**
+     * Creates a resource that serves the {@link RequestMetrics} installed in the
+     * application at the time of the request.
+     */
+    public RequestMetricsResource()
+    {
+        super();
+    }
+
+    @Override
+    protected ResourceResponse newResourceResponse(Attributes attributes)
+    {
+        final RequestMetrics metrics = RequestMetrics.get();
+        Checks.notNull(metrics, "RequestMetrics has not been installed");
+        
+        ResourceResponse response = new ResourceResponse();
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        response.setTextEncoding("UTF-8");
+        response.disableCaching();
+        response.setWriteCallback(new WriteCallback() {
+            @Override
+            public void writeData(Attributes attributes)
+            {
+                StringBuilder text = new StringBuilder(4096);
+                metrics.writeTextFormat(text);
+                attributes.getResponse().write(text);
+            }
+        });
+        return response;
+    }
+}
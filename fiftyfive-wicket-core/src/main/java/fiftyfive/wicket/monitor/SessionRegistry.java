@@ -0,0 +1,174 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.ISessionListener;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.Session;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.session.ISessionStore;
+import org.apache.wicket.util.lang.Args;
+
+
+/**
+ * Keeps the start time of every live session in a map keyed by session ID, so that the age
+ * of a session and the number of live sessions can be looked up in constant time. This
+ * replaces scanning the {@link org.apache.wicket.protocol.http.IRequestLogger#getLiveSessions
+ * live session array} of Wicket's request logger, which costs time proportional to the
+ * number of sessions and requires the request logger to be enabled.
+ * <ul>
+ * <li>When Wicket creates a session, its creation time is noted in the session's
+ *     metadata.</li>
+ * <li>At the end of the first request in which the session is bound (i.e. no longer
+ *     temporary), it is added to the registry.</li>
+ * <li>When the session is unbound, by invalidation or expiry, it is removed.</li>
+ * </ul>
+ * {@link fiftyfive.wicket.FoundationApplication FoundationApplication} installs a registry
+ * by default, which is then used by
+ * {@link fiftyfive.wicket.util.LoggingUtils#getSessionDuration LoggingUtils.getSessionDuration()}
+ * and {@link fiftyfive.wicket.util.LoggingUtils#describeActiveSessions describeActiveSessions()}.
+ *
+ * @since 4.0
+ */
+public class SessionRegistry extends AbstractRequestCycleListener implements ISessionListener
+{
+    private static final MetaDataKey<SessionRegistry> REGISTRY_KEY =
+        new MetaDataKey<SessionRegistry>() {};
+    
+    private static final MetaDataKey<Long> CREATED_KEY = new MetaDataKey<Long>() {};
+    
+    /**
+     * Returns the {@code SessionRegistry} that has been installed in the current Wicket
+     * application, or {@code null} if there is none.
+     */
+    public static SessionRegistry get()
+    {
+        return Application.exists() ? Application.get().getMetaData(REGISTRY_KEY) : null;
+    }
+    
+    
+    private final ConcurrentMap<String, Long> startTimes = new ConcurrentHashMap<String, Long>();
+    private final AtomicInteger peak = new AtomicInteger();
+    
+    /**
+     * Registers this object as a session listener and request cycle listener of the
+     * application, removes sessions from the registry when they are unbound, and makes it
+     * available via {@link #get}.
+     */
+    public void install(WebApplication app)
+    {
+        Args.notNull(app, "app");
+        app.getSessionListeners().add(this);
+        app.getRequestCycleListeners().add(this);
+        app.getSessionStore().registerUnboundListener(new ISessionStore.UnboundListener() {
+            public void sessionUnbound(String sessionId)
+            {
+                unregister(sessionId);
+            }
+        });
+        app.setMetaData(REGISTRY_KEY, this);
+    }
+    
+    /**
+     * Returns the time the given session was created, or {@code null} if it is not
+     * registered.
+     */
+    public Date getStartDate(String sessionId)
+    {
+        Long start = null == sessionId ? null : this.startTimes.get(sessionId);
+        return null == start ? null : new Date(start);
+    }
+    
+    /**
+     * The number of live, bound sessions.
+     */
+    public int getLiveSessionCount()
+    {
+        return this.startTimes.size();
+    }
+    
+    /**
+     * The largest number of live sessions seen since the registry was installed.
+     */
+    public int getPeakSessionCount()
+    {
+        return this.peak.get();
+    }
+    
+    /**
+     * Notes the creation time of the session in its metadata. The session does not yet
+     * have an ID, so it cannot be registered until it is bound.
+     */
+    public void onCreated(Session session)
+    {
+        session.setMetaData(CREATED_KEY, System.currentTimeMillis());
+    }
+    
+    /**
+     * Registers the current session if it has become bound during this request.
+     */
+    @Override
+    public void onDetach(RequestCycle cycle)
+    {
+        if(!Session.exists())
+        {
+            return;
+        }
+        Session session = Session.get();
+        if(session.isTemporary())
+        {
+            return;
+        }
+        String id = session.getId();
+        if(id != null && !this.startTimes.containsKey(id))
+        {
+            Long created = session.getMetaData(CREATED_KEY);
+            register(id, null == created ? System.currentTimeMillis() : created);
+        }
+    }
+    
+    void register(String sessionId, long startMillis)
+    {
+        if(null == this.startTimes.putIfAbsent(sessionId, startMillis))
+        {
+            int live = this.startTimes.size();
+            int max;
+            while(live > (max = this.peak.get()))
+            {
+                if(this.peak.compareAndSet(max, live))
+                {
+                    break;
+                }
+            }
+        }
+    }
+    
+    void unregister(String sessionId)
+    {
+        if(sessionId != null)
+        {
+            this.startTimes.remove(sessionId);
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.DefaultPageManagerProvider;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.Session;
+import org.apache.wicket.pageStore.IDataStore;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.session.ISessionStore;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.lang.Bytes;
+import org.apache.wicket.util.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Maintains a cheap, approximate size for every live session, so that
+ * {@link fiftyfive.wicket.util.LoggingUtils#getSessionInfo LoggingUtils.getSessionInfo()}
+ * does not have to serialize the entire session each time an exception is logged, and so
+ * that the distribution of session sizes can be monitored.
+ * <p>
+ * The estimate for a session is the sum of two parts:
+ * <ul>
+ * <li>The serialized size of the {@link Session} object itself. This is measured with
+ *     {@link Session#getSizeInBytes}, but only at the end of one in every {@code sampleRate}
+ *     requests, and no more than once per {@code minInterval} for any given session. With a
+ *     {@code sampleRate} of zero the session is never serialized, and only the second part
+ *     is used.</li>
+ * <li>The size of the page most recently written to the page store for that session. The
+ *     page store has already serialized the page, so this costs nothing to measure.</li>
+ * </ul>
+ * The second part requires this tracker to see the page store's writes. {@link #install}
+ * arranges for this by installing a {@link DefaultPageManagerProvider} whose data store is
+ * wrapped by {@link #track track()}. If your application needs its own page manager provider,
+ * call {@link #setTrackPageStore setTrackPageStore(false)} and use {@code track()} in your
+ * provider instead.
+ * <p>
+ * Page store writes may happen on a background thread after the session has already been
+ * unbound. The ids of unbound sessions are therefore remembered for a minute, and late writes
+ * for them are ignored, so that no estimate outlives its session.
+ * <pre class="example">
+ * new SessionSizeTracker(10, Duration.minutes(1)).install(this);</pre>
+ *
+ * @since 4.0
+ */
+public class SessionSizeTracker extends AbstractRequestCycleListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionSizeTracker.class);
+    
+    private static final MetaDataKey<SessionSizeTracker> TRACKER_KEY =
+        new MetaDataKey<SessionSizeTracker>() {};
+    
+    /**
+     * How long the id of an unbound session is remembered, so that late page store writes
+     * for it can be ignored.
+     */
+    private static final long UNBOUND_RETENTION_MILLIS = 60000;
+    
+    /**
+     * Upper bounds of the buckets used by {@link #getSizeDistribution}, in bytes: 1 KB up to
+     * 10 MB on a roughly 1-2.5-5 progression.
+     */
+    public static final long[] DEFAULT_BOUNDS_BYTES = {
+        1L << 10, 5L << 10, 10L << 10, 25L << 10, 50L << 10, 100L << 10, 250L << 10,
+        500L << 10, 1L << 20, 2500L << 10, 5L << 20, 10L << 20
+    };
+    
+    /**
+     * Returns the {@code SessionSizeTracker} that has been installed in the current Wicket
+     * application, or {@code null} if there is none.
+     */
+    public static SessionSizeTracker get()
+    {
+        return Application.exists() ? Application.get().getMetaData(TRACKER_KEY) : null;
+    }
+    
+    
+    private final int sampleRate;
+    private final long minIntervalMillis;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final ConcurrentMap<String, Estimate> estimates =
+        new ConcurrentHashMap<String, Estimate>();
+    private final ConcurrentMap<String, Long> unbound = new ConcurrentHashMap<String, Long>();
+    private volatile long unboundPurgedAt;
+    private boolean trackPageStore = true;
+    
+    /**
+     * @param sampleRate Measure the session at the end of one in every {@code sampleRate}
+     *                   requests; 1 means every request, and 0 means never, so that only the
+     *                   pages written to the page store are counted
+     * @param minInterval Never measure the same session more often than this
+     */
+    public SessionSizeTracker(int sampleRate, Duration minInterval)
+    {
+        Args.isTrue(sampleRate >= 0, "sampleRate must not be negative");
+        Args.notNull(minInterval, "minInterval");
+        this.sampleRate = sampleRate;
+        this.minIntervalMillis = minInterval.getMilliseconds();
+    }
+    
+    public boolean getTrackPageStore()
+    {
+        return this.trackPageStore;
+    }
+    
+    /**
+     * Whether {@link #install install()} should replace the application's page manager
+     * provider so that page store writes are tracked. The default is {@code true}.
+     * 
+     * @return {@code this} to allow chaining
+     */
+    public SessionSizeTracker setTrackPageStore(boolean trackPageStore)
+    {
+        this.trackPageStore = trackPageStore;
+        return this;
+    }
+    
+    /**
+     * Registers this object as a request cycle listener of the application, makes it
+     * available via {@link #get}, forgets sessions when they are unbound, and, unless
+     * {@link #setTrackPageStore disabled}, wraps the page store so that page sizes are
+     * tracked.
+     */
+    public void install(WebApplication app)
+    {
+        Args.notNull(app, "app");
+        app.getRequestCycleListeners().add(this);
+        app.setMetaData(TRACKER_KEY, this);
+        app.getSessionStore().registerUnboundListener(new ISessionStore.UnboundListener() {
+            public void sessionUnbound(String sessionId)
+            {
+                forget(sessionId);
+            }
+        });
+        if(this.trackPageStore)
+        {
+            app.setPageManagerProvider(new DefaultPageManagerProvider(app) {
+                @Override
+                protected IDataStore newDataStore()
+                {
+                    return track(super.newDataStore());
+                }
+            });
+        }
+    }
+    
+    /**
+     * Returns a data store that delegates to the given one, noting the size of each page
+     * as it is written.
+     */
+    public IDataStore track(IDataStore delegate)
+    {
+        Args.notNull(delegate, "delegate");
+        return new TrackingDataStore(delegate);
+    }
+    
+    /**
+     * Returns the estimated size of the given session, or {@code null} if nothing is known
+     * about it yet.
+     */
+    public Bytes getEstimatedSize(String sessionId)
+    {
+        Estimate e = null == sessionId ? null : this.estimates.get(sessionId);
+        if(null == e || e.total() < 0)
+        {
+            return null;
+        }
+        return Bytes.bytes(e.total());
+    }
+    
+    /**
+     * The number of sessions for which an estimate is held.
+     */
+    public int getTrackedSessionCount()
+    {
+        return this.estimates.size();
+    }
+    
+    /**
+     * Returns the number of live sessions whose estimated size falls into each of the
+     * {@link #DEFAULT_BOUNDS_BYTES} buckets, plus a final overflow bucket. The counts are
+     * not cumulative. Sessions without an estimate are not counted.
+     */
+    public long[] getSizeDistribution()
+    {
+        long[] counts = new long[DEFAULT_BOUNDS_BYTES.length + 1];
+        for(Estimate e : this.estimates.values())
+        {
+            long size = e.total();
+            if(size >= 0)
+            {
+                int i = 0;
+                while(i < DEFAULT_BOUNDS_BYTES.length && size > DEFAULT_BOUNDS_BYTES[i])
+                {
+                    i++;
+                }
+                counts[i]++;
+            }
+        }
+        return counts;
+    }
+    
+    /**
+     * Writes the session size distribution to the given buffer in the Prometheus text
+     * exposition format, version 0.0.4. Called by {@link RequestMetrics#writeTextFormat}
+     * when both are installed.
+     */
+    public void writeTextFormat(StringBuilder out)
+    {
+        long[] counts = getSizeDistribution();
+        out.append("# HELP wicket_session_size_bytes Estimated size of live sessions.\n");
+        out.append("# TYPE wicket_session_size_bytes histogram\n");
+        long cumulative = 0;
+        long sum = 0;
+        for(int i=0; i<counts.length; i++)
+        {
+            cumulative += counts[i];
+            out.append("wicket_session_size_bytes_bucket{le=\"");
+            out.append(i < DEFAULT_BOUNDS_BYTES.length ? 
+                       String.valueOf(DEFAULT_BOUNDS_BYTES[i]) : "+Inf");
+            out.append("\"} ").append(cumulative).append('\n');
+        }
+        for(Estimate e : this.estimates.values())
+        {
+            sum += Math.max(0, e.total());
+        }
+        out.append("wicket_session_size_bytes_sum ").append(sum).append('\n');
+        out.append("wicket_session_size_bytes_count ").append(cumulative).append('\n');
+    }
+    
+    /**
+     * Measures the current session if sampling is enabled, this request is sampled and the
+     * session's estimate is older than the minimum interval.
+     */
+    @Override
+    public void onDetach(RequestCycle cycle)
+    {
+        if(0 == this.sampleRate ||
+           this.requestCount.incrementAndGet() % this.sampleRate != 0 ||
+           !Session.exists())
+        {
+            return;
+        }
+        Session session = Session.get();
+        String id = session.isTemporary() ? null : session.getId();
+        if(null == id || session.isSessionInvalidated() || this.unbound.containsKey(id))
+        {
+            return;
+        }
+        Estimate e = estimateFor(id);
+        long now = System.currentTimeMillis();
+        if(e.sessionBytes >= 0 && now - e.sampledAt < this.minIntervalMillis)
+        {
+            return;
+        }
+        e.sampledAt = now;
+        try
+        {
+            e.sessionBytes = session.getSizeInBytes();
+        }
+        catch(RuntimeException re)
+        {
+            LOGGER.debug("Unable to measure session size", re);
+        }
+    }
+    
+    /**
+     * Discards the estimate of a session that has been unbound, and ignores any page store
+     * writes for it that are still in flight.
+     */
+    void forget(String sessionId)
+    {
+        long now = System.currentTimeMillis();
+        this.unbound.put(sessionId, now);
+        this.estimates.remove(sessionId);
+        
+        // Expire old ids at most once per retention period
+        if(now - this.unboundPurgedAt > UNBOUND_RETENTION_MILLIS)
+        {
+            this.unboundPurgedAt = now;
+            Iterator<Long> iter = this.unbound.values().iterator();
+            while(iter.hasNext())
+            {
+                if(now - iter.next() > UNBOUND_RETENTION_MILLIS)
+                {
+                    iter.remove();
+                }
+            }
+        }
+    }
+    
+    private Estimate estimateFor(String sessionId)
+    {
+        Estimate e = this.estimates.get(sessionId);
+        if(null == e)
+        {
+            Estimate created = new Estimate();
+            e = this.estimates.putIfAbsent(sessionId, created);
+            if(null == e)
+            {
+                e = created;
+            }
+        }
+        return e;
+    }
+    
+    /**
+     * The last known sizes for one session. Each field is written by one thread at a time
+     * in practice, and a slightly stale read is harmless.
+     */
+    private static class Estimate
+    {
+        volatile long sessionBytes = -1;
+        volatile long pageBytes = -1;
+        volatile long sampledAt;
+        
+        long total()
+        {
+            long s = this.sessionBytes;
+            long p = this.pageBytes;
+            if(s < 0 && p < 0)
+            {
+                return -1;
+            }
+            return Math.max(0, s) + Math.max(0, p);
+        }
+    }
+    
+    /**
+     * Delegates to the real data store, noting the size of every page written.
+     */
+    private class TrackingDataStore implements IDataStore
+    {
+        private final IDataStore delegate;
+        
+        TrackingDataStore(IDataStore delegate)
+        {
+            this.delegate = delegate;
+        }
+        
+        public byte[] getData(String sessionId, int id)
+        {
+            return this.delegate.getData(sessionId, id);
+        }
+        
+        public void removeData(String sessionId, int id)
+        {
+            this.delegate.removeData(sessionId, id);
+        }
+        
+        public void removeData(String sessionId)
+        {
+            forget(sessionId);
+            this.delegate.removeData(sessionId);
+        }
+        
+        public void storeData(String sessionId, int id, byte[] data)
+        {
+            if(data != null && !unbound.containsKey(sessionId))
+            {
+                estimateFor(sessionId).pageBytes = data.length;
+            }
+            this.delegate.storeData(sessionId, id, data);
+        }
+        
+        public void destroy()
+        {
+            this.delegate.destroy();
+        }
+        
+        public boolean isReplicated()
+        {
+            return this.delegate.isReplicated();
+        }
+        
+        public boolean canBeAsynchronous()
+        {
+            return this.delegate.canBeAsynchronous();
+        }
+    }
+}
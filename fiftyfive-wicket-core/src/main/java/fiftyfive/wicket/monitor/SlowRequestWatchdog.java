@@ -0,0 +1,377 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fiftyfive.wicket.util.LoggingUtils;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.IApplicationListener;
+import org.apache.wicket.core.request.handler.IPageRequestHandler;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.Url;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.lang.Classes;
+import org.apache.wicket.util.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Watches in-flight requests from a background thread and, once a request has been running
+ * for longer than a threshold, takes periodic stack samples of the thread processing it.
+ * This shows where slow requests spend their time without having to attach a profiler.
+ * <p>
+ * Samples are logged at {@code WARN} level, with identical consecutive stacks collapsed:
+ * <ul>
+ * <li>when the slow request finishes, along with the same request context as
+ *     {@link LoggingUtils#getRequestInfo} (URL, handler, component and duration); or</li>
+ * <li>by the watchdog itself once {@code maxSamples} samples have been taken, so that
+ *     requests that are stuck indefinitely are reported too. The context is limited to
+ *     what can be safely determined from another thread: URL, handler type and page
+ *     class.</li>
+ * </ul>
+ * Requests under the threshold cost only a few volatile writes; there is no per-request
+ * allocation.
+ * <pre class="example">
+ * new SlowRequestWatchdog(Duration.seconds(5), Duration.milliseconds(500), 20).install(this);</pre>
+ *
+ * @since 4.0
+ */
+public class SlowRequestWatchdog extends AbstractRequestCycleListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlowRequestWatchdog.class);
+    
+    private final long thresholdMillis;
+    private final long intervalMillis;
+    private final int maxSamples;
+    private final ConcurrentMap<Thread, InFlight> inFlight =
+        new ConcurrentHashMap<Thread, InFlight>();
+    private final ThreadLocal<InFlight> current = new ThreadLocal<InFlight>();
+    private ScheduledExecutorService executor;
+    
+    /**
+     * @param threshold Requests running longer than this are sampled
+     * @param interval Time between stack samples of a slow request; this is also how often
+     *                 the watchdog checks for slow requests
+     * @param maxSamples The maximum number of samples taken of a single request
+     */
+    public SlowRequestWatchdog(Duration threshold, Duration interval, int maxSamples)
+    {
+        Args.notNull(threshold, "threshold");
+        Args.notNull(interval, "interval");
+        Args.isTrue(interval.getMilliseconds() > 0, "interval must be greater than zero");
+        Args.isTrue(maxSamples > 0, "maxSamples must be greater than zero");
+        this.thresholdMillis = threshold.getMilliseconds();
+        this.intervalMillis = interval.getMilliseconds();
+        this.maxSamples = maxSamples;
+    }
+    
+    /**
+     * Registers this watchdog as a request cycle listener of the application and starts the
+     * background thread. The thread is stopped when the application is destroyed.
+     */
+    public void install(WebApplication app)
+    {
+        Args.notNull(app, "app");
+        app.getRequestCycleListeners().add(this);
+        app.getApplicationListeners().add(new IApplicationListener() {
+            public void onAfterInitialized(Application application)
+            {
+            }
+            public void onBeforeDestroyed(Application application)
+            {
+                stop();
+            }
+        });
+        start();
+    }
+    
+    /**
+     * Starts the background thread, if it is not already running.
+     */
+    public synchronized void start()
+    {
+        if(this.executor != null)
+        {
+            return;
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "wicket-slow-request-watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                check();
+            }
+        }, this.intervalMillis, this.intervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stops the background thread.
+     */
+    public synchronized void stop()
+    {
+        if(this.executor != null)
+        {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+    
+    @Override
+    public void onBeginRequest(RequestCycle cycle)
+    {
+        InFlight req = this.current.get();
+        if(null == req)
+        {
+            req = new InFlight(Thread.currentThread());
+            this.current.set(req);
+            this.inFlight.put(req.thread, req);
+        }
+        req.begin(cycle.getRequest().getUrl());
+    }
+    
+    @Override
+    public void onRequestHandlerResolved(RequestCycle cycle, IRequestHandler handler)
+    {
+        InFlight req = this.current.get();
+        if(req != null && null == req.handler)
+        {
+            req.handler = handler;
+        }
+    }
+    
+    @Override
+    public void onDetach(RequestCycle cycle)
+    {
+        InFlight req = this.current.get();
+        if(null == req)
+        {
+            return;
+        }
+        List<StackTraceElement[]> samples = req.end();
+        if(samples != null && !samples.isEmpty())
+        {
+            LOGGER.warn(String.format(
+                "Slow request completed%n%s%n%n%s",
+                describe(LoggingUtils.getRequestInfo()),
+                formatSamples(samples)
+            ));
+        }
+    }
+    
+    /**
+     * Takes a stack sample of every request that is over the threshold. Called periodically
+     * by the background thread.
+     */
+    void check()
+    {
+        try
+        {
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<Thread, InFlight>> iter = this.inFlight.entrySet().iterator();
+            while(iter.hasNext())
+            {
+                InFlight req = iter.next().getValue();
+                if(!req.thread.isAlive())
+                {
+                    iter.remove();
+                    continue;
+                }
+                long start = req.start;
+                if(start > 0 && now - start > this.thresholdMillis)
+                {
+                    List<StackTraceElement[]> full = req.sample(start, this.maxSamples);
+                    if(full != null)
+                    {
+                        LOGGER.warn(String.format(
+                            "Slow request still running after %s%n%s%n%n%s",
+                            Duration.milliseconds(now - start),
+                            req.describe(),
+                            formatSamples(full)
+                        ));
+                    }
+                }
+            }
+        }
+        catch(RuntimeException re)
+        {
+            // Don't let an exception cancel the scheduled task
+            LOGGER.error("Slow request watchdog failed", re);
+        }
+    }
+    
+    private static String describe(Map<String, Object> info)
+    {
+        StringBuilder buf = new StringBuilder();
+        for(Map.Entry<String, Object> e : info.entrySet())
+        {
+            if(buf.length() > 0)
+            {
+                buf.append(String.format("%n"));
+            }
+            buf.append(String.format("  %-9s = %s", e.getKey(), e.getValue()));
+        }
+        return buf.toString();
+    }
+    
+    /**
+     * Formats stack samples, collapsing identical consecutive samples into one.
+     */
+    static String formatSamples(List<StackTraceElement[]> samples)
+    {
+        StringBuilder buf = new StringBuilder();
+        int i = 0;
+        while(i < samples.size())
+        {
+            StackTraceElement[] stack = samples.get(i);
+            int repeat = 1;
+            while(i + repeat < samples.size() && Arrays.equals(stack, samples.get(i + repeat)))
+            {
+                repeat++;
+            }
+            buf.append(String.format(
+                "Sample %d%s:%n",
+                i + 1,
+                repeat > 1 ? String.format("-%d (identical)", i + repeat) : ""
+            ));
+            for(StackTraceElement frame : stack)
+            {
+                buf.append(String.format("     at %s%n", frame));
+            }
+            i += repeat;
+        }
+        return buf.toString();
+    }
+    
+    /**
+     * Tracks the request being processed by one thread. Reused for every request on that
+     * thread.
+     */
+    static class InFlight
+    {
+        final Thread thread;
+        volatile long start;
+        volatile Url url;
+        volatile IRequestHandler handler;
+        private List<StackTraceElement[]> samples;
+        private boolean reported;
+        
+        InFlight(Thread thread)
+        {
+            this.thread = thread;
+        }
+        
+        synchronized void begin(Url url)
+        {
+            this.url = url;
+            this.handler = null;
+            this.samples = null;
+            this.reported = false;
+            this.start = System.currentTimeMillis();
+        }
+        
+        /**
+         * Marks the request as finished and returns the samples taken, if any. Returns
+         * {@code null} if the samples have already been reported while the request was
+         * running, so that they are not logged twice.
+         */
+        synchronized List<StackTraceElement[]> end()
+        {
+            this.start = 0;
+            this.url = null;
+            this.handler = null;
+            List<StackTraceElement[]> taken = this.reported ? null : this.samples;
+            this.samples = null;
+            return taken;
+        }
+        
+        /**
+         * Takes a stack sample if the request that started at {@code expectedStart} is still
+         * running. Returns all samples if this one brought the total to {@code max} for the
+         * first time, so that the caller can report them; otherwise {@code null}.
+         */
+        List<StackTraceElement[]> sample(long expectedStart, int max)
+        {
+            // Take the sample outside the lock; getStackTrace() can be slow
+            StackTraceElement[] stack = this.thread.getStackTrace();
+            synchronized(this)
+            {
+                if(this.start != expectedStart || this.reported)
+                {
+                    return null;
+                }
+                if(null == this.samples)
+                {
+                    this.samples = new ArrayList<StackTraceElement[]>(max);
+                }
+                this.samples.add(stack);
+                if(this.samples.size() >= max)
+                {
+                    this.reported = true;
+                    return new ArrayList<StackTraceElement[]>(this.samples);
+                }
+                return null;
+            }
+        }
+        
+        /**
+         * Describes the request using only information that is safe to read from another
+         * thread.
+         */
+        String describe()
+        {
+            IRequestHandler h = this.handler;
+            String page = null;
+            if(h instanceof IPageRequestHandler)
+            {
+                IPageRequestHandler pageHandler = (IPageRequestHandler) h;
+                if(pageHandler.isPageInstanceCreated())
+                {
+                    page = Classes.simpleName(pageHandler.getPageClass());
+                }
+            }
+            return String.format(
+                "  URL     = %s%n  Handler = %s%n  Page    = %s%n  Thread  = %s",
+                this.url,
+                h != null ? Classes.simpleName(h.getClass()) : null,
+                page,
+                this.thread.getName()
+            );
+        }
+    }
+}
@@ -0,0 +1,692 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.pagestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.pageStore.IDataStore;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.lang.Bytes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An {@link IDataStore} that appends serialized pages to a fixed set of preallocated,
+ * memory-mapped segment files. Compared to Wicket's
+ * {@link org.apache.wicket.pageStore.DiskDataStore DiskDataStore}, which performs several
+ * small file writes per request, storing a page here is a memory copy into the operating
+ * system's page cache, and the disk space and mapped memory used are fixed up front.
+ * <ul>
+ * <li>Where each page lives is recorded in an in-memory index per session. Nothing is
+ *     written besides the page bytes, and the files are scratch space: they are recreated
+ *     when the application starts and deleted when it is destroyed.</li>
+ * <li>Pages are appended to the current segment until it is full, then the next free
+ *     segment is used. When there is no free segment, the oldest segment is evicted: the
+ *     pages in it are dropped, just as the disk store drops old pages when a session
+ *     exceeds its quota. Total storage is therefore bounded by {@code maxSize}.</li>
+ * <li>When pages are removed or replaced, the space they used becomes garbage. Once less
+ *     than a quarter of a full segment is still in use, a background thread copies the
+ *     live pages to the current segment and frees it, so that space is reclaimed before
+ *     eviction is necessary. Compaction only uses free space: it never evicts another
+ *     segment, and gives up if there is no room.</li>
+ * </ul>
+ * A page larger than a segment cannot be stored and is dropped with a warning.
+ * <p>
+ * Like the disk store, this store can be wrapped in an
+ * {@link org.apache.wicket.pageStore.AsynchronousDataStore AsynchronousDataStore}, which
+ * {@link org.apache.wicket.DefaultPageManagerProvider DefaultPageManagerProvider} does
+ * automatically. To use it, see
+ * {@link fiftyfive.wicket.FoundationApplication#newDataStore
+ * FoundationApplication.newDataStore()}.
+ *
+ * @since 4.0
+ */
+public class SegmentDataStore implements IDataStore
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentDataStore.class);
+    
+    /** Segments with less than this fraction of live bytes are compacted. */
+    private static final double COMPACTION_THRESHOLD = 0.25;
+    
+    
+    private final File directory;
+    private final int segmentSize;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final ConcurrentMap<String, Map<Integer, Location>> sessions =
+        new ConcurrentHashMap<String, Map<Integer, Location>>();
+    private final ExecutorService compactor;
+    
+    // Guarded by this
+    private final LinkedList<Segment> free = new LinkedList<Segment>();
+    private final LinkedList<Segment> sealed = new LinkedList<Segment>();
+    private Segment active;
+    private Segment compacting;
+    
+    /**
+     * Creates a store with segments of 1/16th of {@code maxSize}, but no smaller than 1MB.
+     */
+    public SegmentDataStore(File directory, Bytes maxSize)
+    {
+        this(directory, maxSize,
+             Bytes.bytes(Math.max(Bytes.megabytes(1).bytes(), maxSize.bytes() / 16)));
+    }
+    
+    /**
+     * @param directory Where to create the segment files; it is created if necessary, and
+     *                  any segment files already in it are overwritten
+     * @param maxSize The total size of all segment files
+     * @param segmentSize The size of each segment file, which is also the size of the
+     *                    largest page that can be stored; at most 1GB
+     */
+    public SegmentDataStore(File directory, Bytes maxSize, Bytes segmentSize)
+    {
+        Args.notNull(directory, "directory");
+        Args.notNull(maxSize, "maxSize");
+        Args.notNull(segmentSize, "segmentSize");
+        Args.isTrue(segmentSize.bytes() > 0 && segmentSize.bytes() <= 1L << 30,
+                    "segmentSize must be between 1 byte and 1GB");
+        
+        int count = (int) Math.max(2, maxSize.bytes() / segmentSize.bytes());
+        this.directory = directory;
+        this.segmentSize = (int) segmentSize.bytes();
+        
+        if(!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new WicketRuntimeException("Unable to create " + directory);
+        }
+        try
+        {
+            for(int i=0; i<count; i++)
+            {
+                Segment s = new Segment(new File(directory, "segment-" + i), this.segmentSize);
+                this.segments.add(s);
+                this.free.add(s);
+            }
+        }
+        catch(IOException ioe)
+        {
+            destroy();
+            throw new WicketRuntimeException("Unable to create page store segments", ioe);
+        }
+        this.active = this.free.removeFirst();
+        
+        this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "wicket-segment-compactor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        LOGGER.info("Created {} page store segments of {} in {}",
+                    new Object[] { count, segmentSize, directory });
+    }
+    
+    public byte[] getData(String sessionId, int id)
+    {
+        Map<Integer, Location> index = this.sessions.get(sessionId);
+        if(null == index)
+        {
+            return null;
+        }
+        Location loc;
+        synchronized(index)
+        {
+            loc = index.get(id);
+        }
+        return null == loc ? null : loc.read();
+    }
+    
+    public void removeData(String sessionId, int id)
+    {
+        Map<Integer, Location> index = this.sessions.get(sessionId);
+        if(index != null)
+        {
+            Location loc;
+            synchronized(index)
+            {
+                loc = index.remove(id);
+            }
+            release(loc);
+        }
+    }
+    
+    public void removeData(String sessionId)
+    {
+        Map<Integer, Location> index = this.sessions.remove(sessionId);
+        if(index != null)
+        {
+            List<Location> locs;
+            synchronized(index)
+            {
+                locs = new ArrayList<Location>(index.values());
+                index.clear();
+            }
+            for(Location loc : locs)
+            {
+                release(loc);
+            }
+        }
+    }
+    
+    public void storeData(String sessionId, int id, byte[] data)
+    {
+        if(data.length > this.segmentSize)
+        {
+            LOGGER.warn("Page {} of session {} is {} bytes, larger than a segment; not stored",
+                        new Object[] { id, sessionId, data.length });
+            return;
+        }
+        Location loc = append(sessionId, id, data, true);
+        if(null == loc)
+        {
+            // Drop the previous version too rather than serve a stale page
+            LOGGER.warn("No room for page {} of session {}; not stored", id, sessionId);
+            removeData(sessionId, id);
+            return;
+        }
+        
+        Map<Integer, Location> index = this.sessions.get(sessionId);
+        if(null == index)
+        {
+            Map<Integer, Location> created = new HashMap<Integer, Location>();
+            index = this.sessions.putIfAbsent(sessionId, created);
+            if(null == index)
+            {
+                index = created;
+            }
+        }
+        Location old;
+        synchronized(index)
+        {
+            old = index.put(id, loc);
+        }
+        release(old);
+    }
+    
+    /**
+     * Stops the compaction thread and deletes the segment files.
+     */
+    public void destroy()
+    {
+        if(this.compactor != null)
+        {
+            this.compactor.shutdownNow();
+        }
+        this.sessions.clear();
+        for(Segment s : this.segments)
+        {
+            s.close();
+        }
+    }
+    
+    public boolean isReplicated()
+    {
+        return false;
+    }
+    
+    public boolean canBeAsynchronous()
+    {
+        return true;
+    }
+    
+    /**
+     * The number of live bytes in all segments.
+     */
+    public Bytes getLiveSize()
+    {
+        long total = 0;
+        for(Segment s : this.segments)
+        {
+            total += s.liveBytes.get();
+        }
+        return Bytes.bytes(total);
+    }
+    
+    /**
+     * The number of segments that currently hold no data.
+     */
+    public synchronized int getFreeSegmentCount()
+    {
+        return this.free.size();
+    }
+    
+    /**
+     * The number of sessions with at least one page in the store.
+     */
+    public int getSessionCount()
+    {
+        return this.sessions.size();
+    }
+    
+    /**
+     * Waits until every compaction scheduled so far has finished. For use by tests.
+     */
+    void awaitCompaction() throws InterruptedException
+    {
+        try
+        {
+            this.compactor.submit(new Runnable() {
+                public void run()
+                {
+                }
+            }).get();
+        }
+        catch(ExecutionException ee)
+        {
+            throw new WicketRuntimeException(ee.getCause());
+        }
+    }
+    
+    /**
+     * Copies the data to the end of the active segment, switching to a new segment first
+     * if there is not enough room. Returns {@code null} if there is no room and no segment
+     * can be evicted to make some, or if eviction is not allowed and there is no free
+     * segment.
+     */
+    private synchronized Location append(String sessionId, int id, byte[] data, boolean evict)
+    {
+        if(this.active.remaining() < data.length && !rotate(evict))
+        {
+            return null;
+        }
+        Segment s = this.active;
+        int offset = s.write(data);
+        Location loc = new Location(s, s.generation, offset, data.length);
+        s.entries.add(new Entry(sessionId, id, loc));
+        s.liveBytes.addAndGet(data.length);
+        return loc;
+    }
+    
+    /**
+     * Seals the active segment and makes a free one active, evicting the oldest sealed
+     * segment if none is free. The victim is chosen before the active segment is sealed, so
+     * that the newest pages are never evicted, and the segment being compacted is never
+     * chosen. Must be called while holding the lock.
+     * 
+     * @param evict Whether a sealed segment may be evicted if there is no free segment
+     * @return {@code false} if there is no free segment and none can be evicted, in which
+     *         case nothing is changed
+     */
+    private boolean rotate(boolean evict)
+    {
+        if(this.free.isEmpty())
+        {
+            if(!evict)
+            {
+                return false;
+            }
+            Segment oldest = null;
+            for(Iterator<Segment> iter = this.sealed.iterator(); iter.hasNext();)
+            {
+                Segment s = iter.next();
+                if(s != this.compacting)
+                {
+                    iter.remove();
+                    oldest = s;
+                    break;
+                }
+            }
+            if(null == oldest)
+            {
+                return false;
+            }
+            evict(oldest);
+            this.free.add(oldest);
+        }
+        this.sealed.addLast(this.active);
+        this.active = this.free.removeFirst();
+        return true;
+    }
+    
+    /**
+     * Drops every page still stored in the segment and makes it reusable.
+     */
+    private void evict(Segment segment)
+    {
+        int dropped = 0;
+        for(Entry e : segment.entries)
+        {
+            Map<Integer, Location> index = this.sessions.get(e.sessionId);
+            if(index != null)
+            {
+                synchronized(index)
+                {
+                    if(index.get(e.pageId) == e.location)
+                    {
+                        index.remove(e.pageId);
+                        dropped++;
+                    }
+                }
+            }
+        }
+        LOGGER.debug("Evicted {} pages from {}", dropped, segment);
+        segment.recycle();
+    }
+    
+    /**
+     * Notes that a stored page is no longer needed, and schedules the segment for compaction
+     * if it is now mostly garbage. The generation is checked under the lock, so that a
+     * segment that has been recycled in the meantime is left alone.
+     */
+    private void release(Location loc)
+    {
+        if(null == loc)
+        {
+            return;
+        }
+        Segment s = loc.segment;
+        synchronized(this)
+        {
+            if(loc.generation != s.generation)
+            {
+                return;
+            }
+            long live = s.liveBytes.addAndGet(-loc.length);
+            if(live >= this.segmentSize * COMPACTION_THRESHOLD ||
+               s.compactionScheduled ||
+               !this.sealed.contains(s))
+            {
+                return;
+            }
+            s.compactionScheduled = true;
+        }
+        scheduleCompaction(s);
+    }
+    
+    private void scheduleCompaction(final Segment segment)
+    {
+        try
+        {
+            this.compactor.execute(new Runnable() {
+                public void run()
+                {
+                    compact(segment);
+                }
+            });
+        }
+        catch(RuntimeException re)
+        {
+            // Shutting down
+            synchronized(this)
+            {
+                segment.compactionScheduled = false;
+            }
+        }
+    }
+    
+    /**
+     * Copies the live pages of a sealed segment to the active segment and frees it. The
+     * pages are read without holding the store's lock, which is only taken to append each
+     * copy, so that requests storing and removing pages are not held up. Compaction never
+     * evicts a segment: if the active segment fills up and there is no free segment, the
+     * compaction is abandoned and the segment stays sealed.
+     */
+    void compact(Segment segment)
+    {
+        List<Entry> entries;
+        synchronized(this)
+        {
+            segment.compactionScheduled = false;
+            if(!this.sealed.contains(segment))
+            {
+                // Evicted while waiting
+                return;
+            }
+            // Keeps the segment from being evicted, and therefore recycled, until we're done
+            this.compacting = segment;
+            entries = new ArrayList<Entry>(segment.entries);
+        }
+        int moved = 0;
+        try
+        {
+            for(Entry e : entries)
+            {
+                Map<Integer, Location> index = this.sessions.get(e.sessionId);
+                if(null == index)
+                {
+                    continue;
+                }
+                Location current;
+                synchronized(index)
+                {
+                    current = index.get(e.pageId);
+                }
+                if(current != e.location)
+                {
+                    continue;
+                }
+                byte[] data = current.read();
+                if(null == data)
+                {
+                    continue;
+                }
+                Location copy = append(e.sessionId, e.pageId, data, false);
+                if(null == copy)
+                {
+                    LOGGER.debug("No room to compact {} after moving {} pages", segment, moved);
+                    return;
+                }
+                boolean swapped = false;
+                synchronized(index)
+                {
+                    // The page may have been replaced or removed while it was copied
+                    if(index.get(e.pageId) == current)
+                    {
+                        index.put(e.pageId, copy);
+                        swapped = true;
+                    }
+                }
+                if(swapped)
+                {
+                    segment.liveBytes.addAndGet(-current.length);
+                    moved++;
+                }
+                else
+                {
+                    release(copy);
+                }
+            }
+            synchronized(this)
+            {
+                this.sealed.remove(segment);
+                segment.recycle();
+                this.free.add(segment);
+            }
+        }
+        finally
+        {
+            synchronized(this)
+            {
+                this.compacting = null;
+            }
+        }
+        LOGGER.debug("Compacted {}, moving {} pages", segment, moved);
+    }
+    
+    /**
+     * A preallocated, memory-mapped file.
+     */
+    static class Segment
+    {
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        final AtomicLong liveBytes = new AtomicLong();
+        final List<Entry> entries = new ArrayList<Entry>();
+        /** Held while copying out of the segment, and exclusively while recycling it. */
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        
+        /** Incremented each time the segment is reused, so stale locations can be detected. */
+        volatile int generation;
+        /** Guarded by the store's lock. */
+        boolean compactionScheduled;
+        int position;
+        
+        Segment(File file, int size) throws IOException
+        {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.raf.setLength(size);
+            this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        
+        int remaining()
+        {
+            return this.buffer.capacity() - this.position;
+        }
+        
+        /**
+         * Appends the data and returns its offset. Callers must hold the store's lock.
+         */
+        int write(byte[] data)
+        {
+            int offset = this.position;
+            ByteBuffer dup = this.buffer.duplicate();
+            dup.position(offset);
+            dup.put(data);
+            this.position += data.length;
+            return offset;
+        }
+        
+        /**
+         * Forgets the contents of the segment so that it can be written from the start,
+         * waiting for reads in progress to finish first. Callers must hold the store's lock.
+         */
+        void recycle()
+        {
+            this.lock.writeLock().lock();
+            try
+            {
+                this.generation++;
+                this.position = 0;
+                this.entries.clear();
+                this.liveBytes.set(0);
+            }
+            finally
+            {
+                this.lock.writeLock().unlock();
+            }
+        }
+        
+        void close()
+        {
+            try
+            {
+                this.raf.close();
+            }
+            catch(IOException ioe)
+            {
+                LOGGER.debug("Unable to close " + this.file, ioe);
+            }
+            if(!this.file.delete())
+            {
+                // Can fail on some platforms while the mapping is still reachable
+                this.file.deleteOnExit();
+            }
+        }
+        
+        @Override
+        public String toString()
+        {
+            return this.file.getName();
+        }
+    }
+    
+    /**
+     * Where a page is stored. If the segment has been reused since, the location is stale.
+     */
+    static class Location
+    {
+        final Segment segment;
+        final int generation;
+        final int offset;
+        final int length;
+        
+        Location(Segment segment, int generation, int offset, int length)
+        {
+            this.segment = segment;
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+        }
+        
+        /**
+         * Copies the page out of the segment, or returns {@code null} if the segment has
+         * been reused. The segment can't be recycled, and so overwritten, during the copy.
+         */
+        byte[] read()
+        {
+            this.segment.lock.readLock().lock();
+            try
+            {
+                if(this.generation != this.segment.generation)
+                {
+                    return null;
+                }
+                byte[] data = new byte[this.length];
+                ByteBuffer dup = this.segment.buffer.duplicate();
+                dup.position(this.offset);
+                dup.get(data);
+                return data;
+            }
+            finally
+            {
+                this.segment.lock.readLock().unlock();
+            }
+        }
+    }
+    
+    /**
+     * A page written to a segment, for use when the segment is evicted or compacted.
+     */
+    static class Entry
+    {
+        final String sessionId;
+        final int pageId;
+        final Location location;
+        
+        Entry(String sessionId, int pageId, Location location)
+        {
+            this.sessionId = sessionId;
+            this.pageId = pageId;
+            this.location = location;
+        }
+    }
+}
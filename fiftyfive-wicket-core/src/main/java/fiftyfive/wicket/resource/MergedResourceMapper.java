@@ -15,6 +15,7 @@
  */
 package fiftyfive.wicket.resource;
 
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.wicket.request.IRequestHandler;
@@ -64,6 +65,16 @@ public class MergedResourceMapper extends AbstractMapper implements IRequestMapp
         this.cachingStrategy = cachingStrategy;
     }
     
+    /**
+     * Returns the resources that are merged by this mapper.
+     * 
+     * @since 4.0
+     */
+    public List<ResourceReference> getResources()
+    {
+        return Collections.unmodifiableList(this.resources);
+    }
+    
     public int getCompatibilityScore(Request request)
     {
         return 0;
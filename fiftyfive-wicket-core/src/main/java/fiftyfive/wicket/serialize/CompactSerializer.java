@@ -0,0 +1,448 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.serialize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.AttributeModifier;
+import org.apache.wicket.Component;
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.Page;
+import org.apache.wicket.PageReference;
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.behavior.AttributeAppender;
+import org.apache.wicket.behavior.Behavior;
+import org.apache.wicket.core.util.io.SerializableChecker;
+import org.apache.wicket.markup.html.WebMarkupContainer;
+import org.apache.wicket.markup.html.WebPage;
+import org.apache.wicket.markup.html.basic.Label;
+import org.apache.wicket.markup.html.form.AbstractTextComponent;
+import org.apache.wicket.markup.html.form.Button;
+import org.apache.wicket.markup.html.form.CheckBox;
+import org.apache.wicket.markup.html.form.DropDownChoice;
+import org.apache.wicket.markup.html.form.Form;
+import org.apache.wicket.markup.html.form.FormComponent;
+import org.apache.wicket.markup.html.form.HiddenField;
+import org.apache.wicket.markup.html.form.PasswordTextField;
+import org.apache.wicket.markup.html.form.StatelessForm;
+import org.apache.wicket.markup.html.form.TextArea;
+import org.apache.wicket.markup.html.form.TextField;
+import org.apache.wicket.markup.html.link.AbstractLink;
+import org.apache.wicket.markup.html.link.BookmarkablePageLink;
+import org.apache.wicket.markup.html.link.ExternalLink;
+import org.apache.wicket.markup.html.link.Link;
+import org.apache.wicket.markup.html.list.AbstractItem;
+import org.apache.wicket.markup.html.list.ListItem;
+import org.apache.wicket.markup.html.list.ListView;
+import org.apache.wicket.markup.html.panel.FeedbackPanel;
+import org.apache.wicket.markup.html.panel.Fragment;
+import org.apache.wicket.markup.html.panel.Panel;
+import org.apache.wicket.markup.repeater.AbstractRepeater;
+import org.apache.wicket.markup.repeater.Item;
+import org.apache.wicket.markup.repeater.RepeatingView;
+import org.apache.wicket.model.AbstractReadOnlyModel;
+import org.apache.wicket.model.CompoundPropertyModel;
+import org.apache.wicket.model.LoadableDetachableModel;
+import org.apache.wicket.model.Model;
+import org.apache.wicket.model.PropertyModel;
+import org.apache.wicket.model.ResourceModel;
+import org.apache.wicket.model.StringResourceModel;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.serialize.java.JavaSerializer;
+import org.apache.wicket.util.lang.Args;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A drop-in replacement for Wicket's {@link JavaSerializer} that writes much smaller class
+ * descriptors. Standard Java serialization writes a full descriptor (class name, serial
+ * version UID, and the name and type of every field) for every class in the object graph,
+ * including every superclass, in every page that is written to the page store. For a
+ * typical page that is a large fraction of the bytes, and of the CPU time spent producing
+ * them.
+ * <p>
+ * This serializer writes each class descriptor in one of three ways:
+ * <ul>
+ * <li>Common Wicket and JDK classes (components, models, collections, boxed primitives) are
+ *     written as a two-byte index into a fixed table.</li>
+ * <li>Other classes that the application's
+ *     {@link org.apache.wicket.application.IClassResolver class resolver} can find by name
+ *     are written as their name and serial version UID. On deserialization the local
+ *     class's descriptor is used, after checking that the UID matches.</li>
+ * <li>Anything else, such as classes from a class loader the resolver does not know about,
+ *     falls back to a standard Java descriptor.</li>
+ * </ul>
+ * Object data itself is written exactly as Java serialization would write it, so
+ * {@code writeObject()}, {@code readResolve()}, {@code Externalizable} and so on continue to
+ * work. Data written by Wicket's {@code JavaSerializer}, for example before this serializer
+ * was enabled, is recognized and read with it.
+ * <p>
+ * Because descriptors no longer describe the fields of a class, data written by this
+ * serializer can only be read by the same version of the application classes (or versions
+ * with the same serial version UID and the same serializable fields). That is the normal
+ * situation for the page store, but it makes this serializer unsuitable for long-term
+ * storage.
+ * <p>
+ * As with {@code JavaSerializer}, if an object can't be serialized, Wicket's
+ * {@link SerializableChecker} is run to log the path of fields that leads to the culprit.
+ * Enable this serializer via {@link fiftyfive.wicket.FoundationApplication#initSerializer
+ * FoundationApplication.initSerializer()}, or directly:
+ * <pre class="example">
+ * getFrameworkSettings().setSerializer(new CompactSerializer(getApplicationKey()));</pre>
+ *
+ * @since 4.0
+ */
+public class CompactSerializer extends JavaSerializer
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompactSerializer.class);
+    
+    /**
+     * Classes written as a table index. <b>Append only:</b> reordering or removing entries
+     * would make previously serialized pages unreadable.
+     */
+    private static final Class<?>[] WELL_KNOWN = {
+        // JDK
+        Object.class, Number.class, Enum.class, Boolean.class, Byte.class, Character.class,
+        Short.class, Integer.class, Long.class, Float.class, Double.class, Date.class,
+        Locale.class, ArrayList.class, LinkedList.class, HashMap.class, LinkedHashMap.class,
+        HashSet.class, LinkedHashSet.class, TreeMap.class, Object[].class, String[].class,
+        byte[].class, int[].class, long[].class,
+        // Wicket components
+        Component.class, MarkupContainer.class, WebMarkupContainer.class, Page.class,
+        WebPage.class, Panel.class, Fragment.class, FeedbackPanel.class, Label.class,
+        AbstractLink.class, Link.class, BookmarkablePageLink.class, ExternalLink.class,
+        Form.class, StatelessForm.class, FormComponent.class, AbstractTextComponent.class,
+        TextField.class, PasswordTextField.class, HiddenField.class, TextArea.class,
+        CheckBox.class, DropDownChoice.class, Button.class, AbstractRepeater.class,
+        RepeatingView.class, ListView.class, AbstractItem.class, ListItem.class, Item.class,
+        // Wicket models and friends
+        Model.class, AbstractReadOnlyModel.class, LoadableDetachableModel.class,
+        PropertyModel.class, CompoundPropertyModel.class, ResourceModel.class,
+        StringResourceModel.class, Behavior.class, AttributeModifier.class,
+        AttributeAppender.class, PageParameters.class, PageReference.class
+    };
+    
+    private static final Map<Class<?>, Integer> WELL_KNOWN_INDEX;
+    static
+    {
+        WELL_KNOWN_INDEX = new IdentityHashMap<Class<?>, Integer>();
+        for(int i=0; i<WELL_KNOWN.length; i++)
+        {
+            WELL_KNOWN_INDEX.put(WELL_KNOWN[i], i);
+        }
+    }
+    
+    /** Replaces the standard serialization stream magic number (0xACED). */
+    private static final short STREAM_MAGIC = (short) 0x55CE;
+    private static final short STREAM_VERSION = 1;
+    
+    private static final int DESC_WELL_KNOWN = 0;
+    private static final int DESC_NAMED = 1;
+    private static final int DESC_STANDARD = 2;
+    
+    
+    private final String applicationKey;
+    private final JavaSerializer standard;
+    private final ConcurrentMap<Class<?>, Boolean> resolvable =
+        new ConcurrentHashMap<Class<?>, Boolean>();
+    
+    /**
+     * @param applicationKey The application key, as passed to {@link JavaSerializer}
+     */
+    public CompactSerializer(String applicationKey)
+    {
+        super(applicationKey);
+        Args.notNull(applicationKey, "applicationKey");
+        this.applicationKey = applicationKey;
+        this.standard = new JavaSerializer(applicationKey);
+    }
+    
+    /**
+     * Serializes the object in the same format as {@link JavaSerializer}, but with compact
+     * class descriptors. Returns {@code null} and logs an error if the object can't be
+     * serialized; if that is because something isn't serializable, the error explains where
+     * in the object graph it was found.
+     */
+    @Override
+    public byte[] serialize(Object object)
+    {
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ObjectOutputStream oos = newObjectOutputStream(out);
+            try
+            {
+                oos.writeObject(this.applicationKey);
+                oos.writeObject(object);
+            }
+            finally
+            {
+                oos.close();
+            }
+            return out.toByteArray();
+        }
+        catch(NotSerializableException nsx)
+        {
+            LOGGER.error("Error serializing object " + describe(object), explain(object, nsx));
+        }
+        catch(Exception e)
+        {
+            LOGGER.error("Error serializing object " + describe(object), e);
+        }
+        return null;
+    }
+    
+    /**
+     * Deserializes data written by this serializer, or by a standard {@link JavaSerializer}.
+     */
+    @Override
+    public Object deserialize(byte[] data)
+    {
+        if(data != null && data.length >= 2 &&
+           (byte) 0xAC == data[0] && (byte) 0xED == data[1])
+        {
+            return this.standard.deserialize(data);
+        }
+        return super.deserialize(data);
+    }
+    
+    @Override
+    protected ObjectOutputStream newObjectOutputStream(OutputStream out) throws IOException
+    {
+        return new CompactObjectOutputStream(out);
+    }
+    
+    @Override
+    protected ObjectInputStream newObjectInputStream(InputStream in) throws IOException
+    {
+        return new CompactObjectInputStream(in);
+    }
+    
+    /**
+     * Serializes the object again with Wicket's {@link SerializableChecker}, and returns the
+     * exception it throws, which names the class and the path of fields that lead to the
+     * object that can't be serialized. Returns {@code nsx} itself if the checker is not
+     * available on this JVM or finds nothing.
+     */
+    static Exception explain(Object object, NotSerializableException nsx)
+    {
+        if(SerializableChecker.isAvailable())
+        {
+            try
+            {
+                new SerializableChecker(nsx).writeObject(object);
+            }
+            catch(WicketRuntimeException detailed)
+            {
+                return detailed;
+            }
+            catch(IOException ioe)
+            {
+                // Fall back to the original exception
+            }
+        }
+        return nsx;
+    }
+    
+    private static String describe(Object object)
+    {
+        return null == object ? "null" : object.getClass() + " [object=" + object + "]";
+    }
+    
+    /**
+     * Returns {@code true} if the class can be found by name using the application's class
+     * resolver, and so can be written as just its name.
+     */
+    private boolean isResolvable(Class<?> cl)
+    {
+        Boolean known = this.resolvable.get(cl);
+        if(null == known)
+        {
+            try
+            {
+                known = resolve(cl.getName()) == cl;
+            }
+            catch(ClassNotFoundException cnfe)
+            {
+                known = false;
+            }
+            this.resolvable.put(cl, known);
+        }
+        return known;
+    }
+    
+    private static Class<?> resolve(String name) throws ClassNotFoundException
+    {
+        if(Application.exists())
+        {
+            try
+            {
+                return Application.get().getApplicationSettings()
+                                   .getClassResolver().resolveClass(name);
+            }
+            catch(ClassNotFoundException cnfe)
+            {
+                // Try the thread context class loader below
+            }
+        }
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if(null == loader)
+        {
+            loader = CompactSerializer.class.getClassLoader();
+        }
+        return Class.forName(name, false, loader);
+    }
+    
+    /**
+     * Writes compact class descriptors, as described in the class documentation.
+     */
+    private class CompactObjectOutputStream extends ObjectOutputStream
+    {
+        CompactObjectOutputStream(OutputStream out) throws IOException
+        {
+            super(out);
+        }
+        
+        @Override
+        protected void writeStreamHeader() throws IOException
+        {
+            writeShort(STREAM_MAGIC);
+            writeShort(STREAM_VERSION);
+        }
+        
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException
+        {
+            Class<?> cl = desc.forClass();
+            Integer index = null == cl ? null : WELL_KNOWN_INDEX.get(cl);
+            if(index != null)
+            {
+                writeByte(DESC_WELL_KNOWN);
+                writeShort(index);
+            }
+            else if(cl != null && isResolvable(cl))
+            {
+                writeByte(DESC_NAMED);
+                writeUTF(desc.getName());
+                writeLong(desc.getSerialVersionUID());
+            }
+            else
+            {
+                writeByte(DESC_STANDARD);
+                super.writeClassDescriptor(desc);
+            }
+        }
+    }
+    
+    /**
+     * Reads the class descriptors written by {@link CompactObjectOutputStream}, and resolves
+     * classes using the application's class resolver.
+     */
+    private static class CompactObjectInputStream extends ObjectInputStream
+    {
+        CompactObjectInputStream(InputStream in) throws IOException
+        {
+            super(in);
+        }
+        
+        @Override
+        protected void readStreamHeader() throws IOException
+        {
+            short magic = readShort();
+            short version = readShort();
+            if(magic != STREAM_MAGIC || version != STREAM_VERSION)
+            {
+                throw new StreamCorruptedException(String.format(
+                    "invalid stream header: %04X%04X", magic, version));
+            }
+        }
+        
+        @Override
+        protected ObjectStreamClass readClassDescriptor()
+            throws IOException, ClassNotFoundException
+        {
+            int type = readByte();
+            switch(type)
+            {
+                case DESC_WELL_KNOWN:
+                    int index = readShort();
+                    if(index < 0 || index >= WELL_KNOWN.length)
+                    {
+                        throw new StreamCorruptedException("invalid class index: " + index);
+                    }
+                    return ObjectStreamClass.lookupAny(WELL_KNOWN[index]);
+                    
+                case DESC_NAMED:
+                    String name = readUTF();
+                    long suid = readLong();
+                    ObjectStreamClass desc = ObjectStreamClass.lookupAny(resolve(name));
+                    if(desc.getSerialVersionUID() != suid)
+                    {
+                        throw new InvalidClassException(name, String.format(
+                            "local class incompatible: stream classdesc serialVersionUID " +
+                            "= %d, local class serialVersionUID = %d",
+                            suid, desc.getSerialVersionUID()));
+                    }
+                    return desc;
+                    
+                case DESC_STANDARD:
+                    return super.readClassDescriptor();
+                    
+                default:
+                    throw new StreamCorruptedException("invalid class descriptor type: " + type);
+            }
+        }
+        
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+            throws IOException, ClassNotFoundException
+        {
+            try
+            {
+                return resolve(desc.getName());
+            }
+            catch(ClassNotFoundException cnfe)
+            {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+}
@@ -29,13 +29,15 @@ import org.springframework.web.context.support.WebApplicationContextUtils;
 public abstract class FoundationSpringApplication extends FoundationApplication
 {
     /**
-     * Delegates to {@link #initSpring} after calling super.
+     * Delegates to {@link #initSpring} after calling super, and times it as an
+     * {@link #endInitPhase initialization phase}.
      */
     @Override
     protected void init()
     {
         super.init();
         initSpring();
+        endInitPhase("initSpring");
     }
 
     /**
@@ -0,0 +1,450 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.IApplicationListener;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.lang.Classes;
+import org.apache.wicket.util.string.Strings;
+import org.apache.wicket.util.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Changes the behavior of {@link LoggingUtils#logException LoggingUtils.logException()} so
+ * that an outage producing thousands of identical exceptions does not also produce thousands
+ * of identical multi-page log entries.
+ * <ul>
+ * <li>Each exception is fingerprinted by the type of its
+ *     {@link LoggingUtils#unwrap unwrapped} cause and its top few stack frames.</li>
+ * <li>Only the first occurrence of a fingerprint in each time window is dumped in full. Later
+ *     occurrences in the same window are merely counted; the count is reported with the next
+ *     full dump, or in a one-line summary when the window ends.</li>
+ * <li>The request context for a dump (URL, handler, session, headers, etc.) is captured on
+ *     the request thread into plain maps, but all string formatting and logging is done on a
+ *     background thread. If the background thread falls behind, dumps are dropped and
+ *     counted rather than queued without limit.</li>
+ * <li>The request handler is the one Wicket originally resolved for the request, as
+ *     remembered by this object, instead of being guessed by mapping the request a second
+ *     time.</li>
+ * </ul>
+ * <pre class="example">
+ * new ExceptionDumpThrottle(Duration.minutes(1)).install(this);</pre>
+ *
+ * @since 4.0
+ */
+public class ExceptionDumpThrottle extends AbstractRequestCycleListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExceptionDumpThrottle.class);
+    
+    private static final MetaDataKey<ExceptionDumpThrottle> THROTTLE_KEY =
+        new MetaDataKey<ExceptionDumpThrottle>() {};
+    
+    /** The number of stack frames that make up a fingerprint. */
+    private static final int FINGERPRINT_FRAMES = 5;
+    
+    /** The maximum number of distinct fingerprints tracked. */
+    private static final int MAX_FINGERPRINTS = 1000;
+    
+    /** The maximum number of dumps waiting to be formatted. */
+    private static final int MAX_PENDING = 100;
+    
+    /**
+     * Returns the {@code ExceptionDumpThrottle} that has been installed in the current Wicket
+     * application, or {@code null} if there is none.
+     */
+    public static ExceptionDumpThrottle get()
+    {
+        return Application.exists() ? Application.get().getMetaData(THROTTLE_KEY) : null;
+    }
+    
+    
+    private final long windowMillis;
+    private final ConcurrentMap<String, Fingerprint> fingerprints =
+        new ConcurrentHashMap<String, Fingerprint>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ThreadLocal<IRequestHandler[]> originalHandler =
+        new ThreadLocal<IRequestHandler[]>() {
+            @Override
+            protected IRequestHandler[] initialValue()
+            {
+                return new IRequestHandler[1];
+            }
+        };
+    private ScheduledExecutorService executor;
+    
+    /**
+     * @param window Each distinct exception is dumped in full at most once per window
+     */
+    public ExceptionDumpThrottle(Duration window)
+    {
+        Args.notNull(window, "window");
+        Args.isTrue(window.getMilliseconds() > 0, "window must be greater than zero");
+        this.windowMillis = window.getMilliseconds();
+    }
+    
+    /**
+     * Registers this throttle with the application so that
+     * {@link LoggingUtils#logException LoggingUtils.logException()} uses it, and starts the
+     * background thread. The thread is stopped when the application is destroyed.
+     */
+    public void install(WebApplication app)
+    {
+        Args.notNull(app, "app");
+        app.getRequestCycleListeners().add(this);
+        app.getApplicationListeners().add(new IApplicationListener() {
+            public void onAfterInitialized(Application application)
+            {
+            }
+            public void onBeforeDestroyed(Application application)
+            {
+                stop();
+            }
+        });
+        app.setMetaData(THROTTLE_KEY, this);
+        start();
+    }
+    
+    /**
+     * Starts the background thread, if it is not already running.
+     */
+    public synchronized void start()
+    {
+        if(this.executor != null)
+        {
+            return;
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "wicket-exception-dump");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                summarize(System.currentTimeMillis());
+            }
+        }, this.windowMillis, this.windowMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stops the background thread. Dumps that have not yet been written are discarded.
+     */
+    public synchronized void stop()
+    {
+        if(this.executor != null)
+        {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+    
+    /**
+     * The number of dumps that were discarded because the background thread was behind.
+     */
+    public long getDroppedCount()
+    {
+        return this.dropped.get();
+    }
+    
+    @Override
+    public void onBeginRequest(RequestCycle cycle)
+    {
+        this.originalHandler.get()[0] = null;
+    }
+    
+    @Override
+    public void onRequestHandlerResolved(RequestCycle cycle, IRequestHandler handler)
+    {
+        IRequestHandler[] holder = this.originalHandler.get();
+        if(null == holder[0])
+        {
+            holder[0] = handler;
+        }
+    }
+    
+    @Override
+    public void onDetach(RequestCycle cycle)
+    {
+        this.originalHandler.get()[0] = null;
+    }
+    
+    /**
+     * Logs the exception as described in the class documentation. Normally called via
+     * {@link LoggingUtils#logException LoggingUtils.logException()}.
+     */
+    public void logException(final Logger logger, final Exception e)
+    {
+        final Throwable unwrapped = LoggingUtils.unwrap(e);
+        long now = System.currentTimeMillis();
+        
+        Fingerprint fp = fingerprintFor(unwrapped);
+        final long repeats = fp.admit(now, this.windowMillis);
+        if(repeats < 0)
+        {
+            return;
+        }
+        
+        final Map<String,Object> context = captureContext();
+        if(this.pending.incrementAndGet() > MAX_PENDING)
+        {
+            this.pending.decrementAndGet();
+            this.dropped.incrementAndGet();
+            return;
+        }
+        try
+        {
+            ScheduledExecutorService exec = this.executor;
+            if(null == exec)
+            {
+                throw new RejectedExecutionException("Not started");
+            }
+            exec.execute(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        write(logger, e, unwrapped, repeats, context);
+                    }
+                    finally
+                    {
+                        pending.decrementAndGet();
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException ree)
+        {
+            // Not running; log synchronously rather than lose the exception entirely
+            this.pending.decrementAndGet();
+            write(logger, e, unwrapped, repeats, context);
+        }
+    }
+    
+    /**
+     * Logs a one-line summary of each fingerprint whose window has ended with repeats that
+     * have not yet been reported, and forgets fingerprints that have been quiet for ten
+     * windows. Called periodically by the background thread.
+     */
+    void summarize(long now)
+    {
+        try
+        {
+            Iterator<Fingerprint> iter = this.fingerprints.values().iterator();
+            while(iter.hasNext())
+            {
+                Fingerprint fp = iter.next();
+                long age = now - fp.windowStart.get();
+                if(age >= this.windowMillis)
+                {
+                    long repeats = fp.suppressed.getAndSet(0);
+                    if(repeats > 0)
+                    {
+                        LOGGER.error(String.format(
+                            "%d more occurrences of %s in the last %s (details suppressed)",
+                            repeats, fp.summary, Duration.milliseconds(this.windowMillis)
+                        ));
+                    }
+                    else if(age >= this.windowMillis * 10)
+                    {
+                        iter.remove();
+                    }
+                }
+            }
+            long lost = this.dropped.getAndSet(0);
+            if(lost > 0)
+            {
+                LOGGER.error(String.format(
+                    "%d exception dumps dropped because the logging thread was overloaded",
+                    lost
+                ));
+            }
+        }
+        catch(RuntimeException re)
+        {
+            // Don't let an exception cancel the scheduled task
+            LOGGER.error("Exception summary failed", re);
+        }
+    }
+    
+    /**
+     * Returns a fingerprint of the exception: its class plus the top few frames of its stack.
+     */
+    static String fingerprint(Throwable t)
+    {
+        StringBuilder key = new StringBuilder(t.getClass().getName());
+        StackTraceElement[] stack = t.getStackTrace();
+        for(int i=0; i<stack.length && i<FINGERPRINT_FRAMES; i++)
+        {
+            StackTraceElement frame = stack[i];
+            key.append('|').append(frame.getClassName());
+            key.append('.').append(frame.getMethodName());
+            key.append(':').append(frame.getLineNumber());
+        }
+        return key.toString();
+    }
+    
+    private Fingerprint fingerprintFor(Throwable unwrapped)
+    {
+        String key = fingerprint(unwrapped);
+        Fingerprint fp = this.fingerprints.get(key);
+        if(null == fp)
+        {
+            if(this.fingerprints.size() >= MAX_FINGERPRINTS)
+            {
+                // Too many distinct failures; lump the rest together
+                key = "*";
+            }
+            Fingerprint created = new Fingerprint(
+                "*".equals(key) ? "other exceptions" : Classes.simpleName(unwrapped.getClass())
+            );
+            fp = this.fingerprints.putIfAbsent(key, created);
+            if(null == fp)
+            {
+                fp = created;
+            }
+        }
+        return fp;
+    }
+    
+    /**
+     * Captures the same information as {@link LoggingUtils#dumpWicketState} into maps of
+     * unformatted values. Session size is included only if it can be estimated without
+     * serializing the session.
+     */
+    private Map<String,Object> captureContext()
+    {
+        Map<String,Object> context = new LinkedHashMap<String,Object>();
+        try
+        {
+            IRequestHandler handler = this.originalHandler.get()[0];
+            if(null == handler && RequestCycle.get() != null)
+            {
+                handler = RequestCycle.get().getActiveRequestHandler();
+            }
+            context.put("Request", LoggingUtils.getRequestInfo(handler));
+            
+            context.put("Session", LoggingUtils.getSessionInfo(false));
+            context.put("Application", LoggingUtils.getApplicationInfo());
+            context.put("Headers", new ArrayList<Map.Entry<String,String>>(HttpUtils.getHeaders()));
+        }
+        catch(RuntimeException re)
+        {
+            LOGGER.debug("Unable to capture request context", re);
+        }
+        return context;
+    }
+    
+    private static void write(Logger logger,
+                              Exception e,
+                              Throwable unwrapped,
+                              long repeats,
+                              Map<String,Object> context)
+    {
+        try
+        {
+            StringBuilder state = new StringBuilder();
+            for(Map.Entry<String,Object> section : context.entrySet())
+            {
+                Object value = section.getValue();
+                Collection entries = value instanceof Map ?
+                    ((Map) value).entrySet() :
+                    (Collection) value;
+                if(state.length() > 0)
+                {
+                    state.append(String.format("%n"));
+                }
+                state.append(String.format(
+                    "%s:%n%s",
+                    section.getKey(),
+                    LoggingUtils.formatMapEntries(entries, "  ")
+                ));
+            }
+            logger.error(String.format(
+                "%s: %s%s%n%n%s%n%n%s",
+                Classes.simpleName(unwrapped.getClass()),
+                unwrapped.getMessage(),
+                repeats > 0 ?
+                    String.format(" (%d earlier occurrences suppressed)", repeats) : "",
+                state,
+                Strings.toString(e)
+            ));
+        }
+        catch(Exception loggingEx)
+        {
+            LOGGER.error("Unexpected exception during logging", loggingEx);
+            logger.error("RuntimeException", e);
+        }
+    }
+    
+    /**
+     * Tracks the current window of one fingerprint.
+     */
+    private static class Fingerprint
+    {
+        final String summary;
+        final AtomicLong windowStart = new AtomicLong(Long.MIN_VALUE / 2);
+        final AtomicLong suppressed = new AtomicLong();
+        
+        Fingerprint(String summary)
+        {
+            this.summary = summary;
+        }
+        
+        /**
+         * If a new window has started, begins it and returns the number of occurrences
+         * suppressed since the last report (zero or more), meaning the caller should dump
+         * this occurrence. Otherwise counts the occurrence and returns -1.
+         */
+        long admit(long now, long windowMillis)
+        {
+            long start = this.windowStart.get();
+            if(now - start >= windowMillis && this.windowStart.compareAndSet(start, now))
+            {
+                return this.suppressed.getAndSet(0);
+            }
+            this.suppressed.incrementAndGet();
+            return -1;
+        }
+    }
+}
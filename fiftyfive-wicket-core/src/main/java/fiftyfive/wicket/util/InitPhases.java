@@ -0,0 +1,291 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.time.Duration;
+
+
+/**
+ * Times the phases of application startup and runs additional, optionally concurrent,
+ * phases. There are two kinds of phase:
+ * <ul>
+ * <li>Code that has already run is timed by calling {@link #end end()} with the name of
+ *     the phase that just finished. Its duration is the time since the previous call to
+ *     {@code end()}, or since this object was created.</li>
+ * <li>Code that has not yet run is registered with {@link #add add()} or
+ *     {@link #addConcurrent addConcurrent()}, and executed by {@link #run run()}.
+ *     Sequential phases run one after another on the calling thread, in the order they
+ *     were added. Concurrent phases all start at once, each on its own thread, in parallel
+ *     with the sequential phases, so they must not depend on each other or on the
+ *     sequential phases. They run with the application bound to their thread, so that
+ *     {@link Application#get} works.</li>
+ * </ul>
+ * {@link #toString} returns a breakdown suitable for logging.
+ * {@link fiftyfive.wicket.FoundationApplication FoundationApplication} uses this to
+ * report how long each of its {@code init} methods took.
+ * 
+ * @since 4.0
+ */
+public class InitPhases
+{
+    private final long start = System.nanoTime();
+    private final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+    private final List<String> concurrentNames = new ArrayList<String>();
+    private final List<Phase> sequential = new ArrayList<Phase>();
+    private final List<Phase> concurrent = new ArrayList<Phase>();
+    private long lastEnd = this.start;
+    private boolean started;
+    
+    /**
+     * Records the time since the previous phase ended, or since this object was created, as
+     * the duration of the named phase.
+     */
+    public synchronized void end(String phase)
+    {
+        Args.notNull(phase, "phase");
+        long now = System.nanoTime();
+        this.timings.put(phase, now - this.lastEnd);
+        this.lastEnd = now;
+    }
+    
+    /**
+     * Adds a phase to be run, in order, on the thread that calls {@link #run}.
+     */
+    public synchronized void add(String name, Runnable phase)
+    {
+        assertNotStarted();
+        this.sequential.add(new Phase(name, phase));
+    }
+    
+    /**
+     * Adds a phase that {@link #run} may execute in parallel with every other phase.
+     */
+    public synchronized void addConcurrent(String name, Runnable phase)
+    {
+        assertNotStarted();
+        this.concurrent.add(new Phase(name, phase));
+    }
+    
+    /**
+     * Runs the phases that have been added and waits for them to finish. Each phase is
+     * timed. This may only be called once.
+     * 
+     * @throws WicketRuntimeException if any phase failed; all phases are allowed to finish
+     *                                first
+     */
+    public void run(final Application app)
+    {
+        List<Phase> seq;
+        List<Phase> conc;
+        synchronized(this)
+        {
+            assertNotStarted();
+            this.started = true;
+            seq = new ArrayList<Phase>(this.sequential);
+            conc = new ArrayList<Phase>(this.concurrent);
+        }
+        
+        ExecutorService executor = null;
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        if(!conc.isEmpty())
+        {
+            final AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(conc.size(), new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "wicket-init-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            for(final Phase phase : conc)
+            {
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call()
+                    {
+                        ThreadContext.setApplication(app);
+                        try
+                        {
+                            phase.runTimed(true);
+                        }
+                        finally
+                        {
+                            ThreadContext.detach();
+                        }
+                        return null;
+                    }
+                }));
+            }
+        }
+        
+        RuntimeException failure = null;
+        try
+        {
+            for(Phase phase : seq)
+            {
+                phase.runTimed(false);
+            }
+        }
+        catch(RuntimeException re)
+        {
+            failure = re;
+        }
+        
+        for(Future<Object> f : futures)
+        {
+            try
+            {
+                f.get();
+            }
+            catch(InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                failure = new WicketRuntimeException("Interrupted during startup", ie);
+                break;
+            }
+            catch(ExecutionException ee)
+            {
+                if(null == failure)
+                {
+                    failure = new WicketRuntimeException(ee.getCause());
+                }
+            }
+        }
+        if(executor != null)
+        {
+            executor.shutdownNow();
+        }
+        synchronized(this)
+        {
+            this.lastEnd = System.nanoTime();
+        }
+        if(failure != null)
+        {
+            throw failure;
+        }
+    }
+    
+    /**
+     * Returns the duration of each phase, in the order they finished.
+     */
+    public synchronized Map<String, Duration> getTimings()
+    {
+        Map<String, Duration> result = new LinkedHashMap<String, Duration>();
+        for(Map.Entry<String, Long> e : this.timings.entrySet())
+        {
+            result.put(e.getKey(), Duration.milliseconds(toMillis(e.getValue())));
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the time from the creation of this object until the end of the most recent
+     * phase.
+     */
+    public synchronized Duration getElapsed()
+    {
+        return Duration.milliseconds(toMillis(this.lastEnd - this.start));
+    }
+    
+    /**
+     * Returns a breakdown of the time taken, like
+     * {@code "1520 ms: initVersionInformation 12 ms, bundles 800 ms (concurrent), ..."}.
+     */
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder buf = new StringBuilder();
+        buf.append(toMillis(this.lastEnd - this.start)).append(" ms");
+        String sep = ": ";
+        for(Map.Entry<String, Long> e : this.timings.entrySet())
+        {
+            buf.append(sep).append(e.getKey()).append(" ").append(toMillis(e.getValue()))
+               .append(" ms");
+            if(this.concurrentNames.contains(e.getKey()))
+            {
+                buf.append(" (concurrent)");
+            }
+            sep = ", ";
+        }
+        return buf.toString();
+    }
+    
+    private synchronized void record(String name, long nanos, boolean concurrent)
+    {
+        this.timings.put(name, nanos);
+        if(concurrent)
+        {
+            this.concurrentNames.add(name);
+        }
+    }
+    
+    private void assertNotStarted()
+    {
+        if(this.started)
+        {
+            throw new IllegalStateException("Initialization phases have already been run");
+        }
+    }
+    
+    private static long toMillis(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+    
+    private class Phase
+    {
+        private final String name;
+        private final Runnable runnable;
+        
+        private Phase(String name, Runnable runnable)
+        {
+            Args.notNull(name, "name");
+            Args.notNull(runnable, "runnable");
+            this.name = name;
+            this.runnable = runnable;
+        }
+        
+        private void runTimed(boolean concurrent)
+        {
+            long start = System.nanoTime();
+            try
+            {
+                this.runnable.run();
+            }
+            finally
+            {
+                record(this.name, System.nanoTime() - start, concurrent);
+            }
+        }
+    }
+}
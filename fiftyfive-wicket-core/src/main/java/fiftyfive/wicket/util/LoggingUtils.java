@@ -21,10 +21,18 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 import fiftyfive.wicket.FoundationApplication;
+import fiftyfive.wicket.monitor.AllocationMetrics;
+import fiftyfive.wicket.monitor.AllocationStat;
+import fiftyfive.wicket.monitor.PageLockMetrics;
+import fiftyfive.wicket.monitor.RenderProfiler;
+import fiftyfive.wicket.monitor.RenderStat;
+import fiftyfive.wicket.monitor.SessionRegistry;
+import fiftyfive.wicket.monitor.SessionSizeTracker;
 
 import org.apache.wicket.Application;
 import org.apache.wicket.Session;
@@ -267,12 +275,25 @@ public class LoggingUtils
      *      at org.apache.wicket.request.cycle.RequestCycle.processRequest(RequestCycle.java:206)
      *      at org.apache.wicket.request.cycle.RequestCycle.processRequestAndDetach(RequestCycle.java:248)
      *      at org.apache.wicket.protocol.http.WicketFilter.processRequest(WicketFilter.java:131)</pre>
+     * <p>
+     * If an {@link ExceptionDumpThrottle} is installed, it takes over: repeated exceptions
+     * are counted rather than dumped, and dumps are formatted on a background thread.
+     * <p>
+     * The session is never serialized to measure its size: the size is logged only if a
+     * {@link SessionSizeTracker} has an estimate for it.
      */
     public static void logException(Logger logger, Exception e)
     {
         Args.notNull(logger, "logger");
         Args.notNull(e, "e");
         
+        ExceptionDumpThrottle throttle = ExceptionDumpThrottle.get();
+        if(throttle != null)
+        {
+            throttle.logException(logger, e);
+            return;
+        }
+        
         try
         {
             Throwable unwrapped = unwrap(e);
@@ -281,7 +302,7 @@ public class LoggingUtils
                 "%s: %s%n%n%s%n%n%s",
                 Classes.simpleName(unwrapped.getClass()),
                 unwrapped.getMessage(),
-                dumpWicketState(),
+                dumpWicketState(false),
                 Strings.toString(e)
             ));
         }
@@ -367,14 +388,24 @@ public class LoggingUtils
      *   Connection      = keep-alive</pre>
      * <p>
      * Note that session duration and application active sessions are only
-     * available if Wicket's request logging facility is enabled.
+     * available if a {@link SessionRegistry} is installed (as it is by
+     * {@link FoundationApplication}) or Wicket's request logging facility is enabled.
      */
     public static String dumpWicketState()
+    {
+        return dumpWicketState(true);
+    }
+    
+    /**
+     * Same as {@link #dumpWicketState()}, but if {@code measure} is {@code false} the session
+     * is never serialized; see {@link #getSessionInfo(boolean)}.
+     */
+    static String dumpWicketState(boolean measure)
     {
         return String.format(
             "Request:%n%s%nSession:%n%s%nApplication:%n%s%nHeaders:%n%s",
             formatMapEntries(getRequestInfo().entrySet(), "  "),
-            formatMapEntries(getSessionInfo().entrySet(), "  "),
+            formatMapEntries(getSessionInfo(measure).entrySet(), "  "),
             formatMapEntries(getApplicationInfo().entrySet(), "  "),
             formatMapEntries(HttpUtils.getHeaders(), "  ")
         );
@@ -387,15 +418,33 @@ public class LoggingUtils
      * <li>{@code Handler}</li>
      * <li>{@code Component}</li>
      * <li>{@code Duration}</li>
+     * <li>{@code Page Lock Wait} (if {@link PageLockMetrics} is installed and the request
+     *     accessed an existing page)</li>
      * </ul>
      */
     public static Map<String,Object> getRequestInfo()
+    {
+        return getRequestInfo(guessOriginalRequestHandler());
+    }
+    
+    /**
+     * Same as {@link #getRequestInfo()}, but describes the given handler rather than
+     * re-mapping the request to find the original one.
+     */
+    static Map<String,Object> getRequestInfo(IRequestHandler handler)
     {
         Map<String,Object> info = new LinkedHashMap<String,Object>();
         info.put("URL", HttpUtils.getRelativeRequestUrl());
-        info.put("Handler", describeRequestHandler());
-        info.put("Component", describeRequestComponent());
+        info.put("Handler", describeHandler(handler));
+        info.put("Component", describeComponent(handler));
         info.put("Duration", getRequestDuration());
+        
+        PageLockMetrics locks = PageLockMetrics.get();
+        Duration wait = null == locks ? null : locks.getCurrentWait();
+        if(wait != null)
+        {
+            info.put("Page Lock Wait", wait);
+        }
         return info;
     }
     
@@ -405,12 +454,25 @@ public class LoggingUtils
      * <li>{@code ID}</li>
      * <li>{@code Info} (if session implements {@link ISessionLogInfo})</li>
      * <li>{@code Size}</li>
-     * <li>{@code Duration} (if {@link IRequestLogger} is enabled)</li>
+     * <li>{@code Duration} (if {@link SessionRegistry} or {@link IRequestLogger} is
+     *     enabled)</li>
      * </ul>
+     * If a {@link SessionSizeTracker} is installed, the size is its estimate (omitted if it
+     * has none yet). Otherwise the session is serialized to measure its size, which can be
+     * expensive for large sessions.
      */
     public static Map<String,Object> getSessionInfo()
     {
-        Session sess = Session.get();
+        return getSessionInfo(true);
+    }
+    
+    /**
+     * Same as {@link #getSessionInfo()}, but if {@code measure} is {@code false} the session
+     * is never serialized; the size is included only if it can be estimated cheaply.
+     */
+    static Map<String,Object> getSessionInfo(boolean measure)
+    {
+        Session sess = Session.exists() ? Session.get() : null;
         Object detail = "--ISessionLogInfo not implemented--";
         
         if(sess instanceof ISessionLogInfo)
@@ -423,7 +485,20 @@ public class LoggingUtils
         {
             info.put("ID", sess.getId());
             info.put("Info", detail);
-            info.put("Size", Bytes.bytes(sess.getSizeInBytes()));
+            
+            SessionSizeTracker sizes = SessionSizeTracker.get();
+            if(sizes != null)
+            {
+                Bytes estimate = sizes.getEstimatedSize(sess.getId());
+                if(estimate != null)
+                {
+                    info.put("Size", "~" + estimate);
+                }
+            }
+            else if(measure)
+            {
+                info.put("Size", Bytes.bytes(sess.getSizeInBytes()));
+            }
 
             Duration dur = getSessionDuration();
             if(dur != null)
@@ -437,8 +512,10 @@ public class LoggingUtils
     /**
      * Returns a Map with information associated with the following keys:
      * <ul>
-     * <li>{@code Active Sessions} (if {@link IRequestLogger} is enabled)</li>
+     * <li>{@code Active Sessions} (if {@link SessionRegistry} or {@link IRequestLogger} is
+     *     enabled)</li>
      * <li>{@code Memory Usage}</li>
+     * <li>{@code Top Allocators} (if {@link AllocationMetrics} is installed)</li>
      * <li>{@code IP Address}</li>
      * <li>{@code Uptime} (if app is a {@link FoundationApplication})</li>
      * </ul>
@@ -453,6 +530,12 @@ public class LoggingUtils
             info.put("Active Sessions", active);
         }
         info.put("Memory Usage", describeMemoryUsage());
+        
+        String allocators = describeTopAllocators(3);
+        if(allocators != null)
+        {
+            info.put("Top Allocators", allocators);
+        }
         info.put("IP Address", getHostIpAddress());
         
         Application app = Application.get();
@@ -470,9 +553,7 @@ public class LoggingUtils
      */
     public static String describeRequestHandler()
     {
-        IRequestHandler handler = guessOriginalRequestHandler();
-        // TODO: more descriptive than this?
-        return handler != null ? Classes.simpleName(handler.getClass()) : null;
+        return describeHandler(guessOriginalRequestHandler());
     }
     
     /**
@@ -490,7 +571,24 @@ public class LoggingUtils
      */
     public static String describeRequestComponent()
     {
-        IRequestHandler handler = guessOriginalRequestHandler();
+        return describeComponent(guessOriginalRequestHandler());
+    }
+    
+    /**
+     * Returns the simple class name of the given handler, or {@code null}.
+     */
+    static String describeHandler(IRequestHandler handler)
+    {
+        // TODO: more descriptive than this?
+        return handler != null ? Classes.simpleName(handler.getClass()) : null;
+    }
+    
+    /**
+     * Describes the page and component targeted by the given handler in the format
+     * documented by {@link #describeRequestComponent}.
+     */
+    static String describeComponent(IRequestHandler handler)
+    {
         Class<? extends IRequestablePage> pageClass = null;
         IRequestableComponent component = null;
         
@@ -547,18 +645,29 @@ public class LoggingUtils
     
     /**
      * Returns the amount of time the currently session has been active.
-     * Depends on Wicket's {@link IRequestLogger} being enabled. If it is not,
-     * returns {@code null}.
+     * Depends on a {@link SessionRegistry} being installed, or failing that,
+     * Wicket's {@link IRequestLogger} being enabled. If neither is, returns
+     * {@code null}.
      */
     public static Duration getSessionDuration()
     {
         Date start = null;
         Session currSession = Session.get();
-        IRequestLogger log = Application.get().getRequestLogger();
+        if(null == currSession || null == currSession.getId())
+        {
+            return null;
+        }
+        String sessionId = currSession.getId();
         
-        if(log != null && currSession != null && currSession.getId() != null)
+        SessionRegistry registry = SessionRegistry.get();
+        if(registry != null)
+        {
+            return nullSafeElapsed(registry.getStartDate(sessionId));
+        }
+        
+        IRequestLogger log = Application.get().getRequestLogger();
+        if(log != null)
         {
-            String sessionId = currSession.getId();
             SessionData[] sessions = log.getLiveSessions();
             if(sessions != null)
             {
@@ -610,14 +719,53 @@ public class LoggingUtils
         );
     }
     
+    /**
+     * Returns a string that describes the {@code n} page classes or resources that have
+     * allocated the most heap in total, as measured by the application's
+     * {@link AllocationMetrics}, in this format:
+     * {@code OrderPage 12 MB/req (120 reqs, max 40 MB); SearchPage 3 MB/req (812 reqs, max 9 MB)}.
+     * Returns {@code null} if allocation metrics are not installed or have no data.
+     * 
+     * @since 4.0
+     */
+    public static String describeTopAllocators(int n)
+    {
+        AllocationMetrics metrics = AllocationMetrics.get();
+        if(null == metrics) return null;
+        
+        List<AllocationStat> top = metrics.getTopN(n);
+        if(top.isEmpty()) return null;
+        
+        StringBuffer buf = new StringBuffer();
+        for(AllocationStat stat : top)
+        {
+            if(buf.length() > 0)
+            {
+                buf.append("; ");
+            }
+            buf.append(stat);
+        }
+        return buf.toString();
+    }
+    
     /**
      * Returns a string that describes the active sessions in this format:
      * {@code 5 (16 peak)}. This information comes from the application's
-     * {@link IRequestLogger}. If the logger is not enabled, returns
-     * {@code null}.
+     * {@link SessionRegistry}, or if there is none, its {@link IRequestLogger}.
+     * If neither is enabled, returns {@code null}.
      */
     public static String describeActiveSessions()
     {
+        SessionRegistry registry = SessionRegistry.get();
+        if(registry != null)
+        {
+            return String.format(
+                "%d (%d peak)",
+                registry.getLiveSessionCount(),
+                registry.getPeakSessionCount()
+            );
+        }
+        
         IRequestLogger log = Application.get().getRequestLogger();
         if(null == log) return null;
         
@@ -631,6 +779,35 @@ public class LoggingUtils
         );
     }
     
+    /**
+     * Returns a multi-line table of the {@code topN} components with the highest total
+     * render time, as measured by the application's {@link RenderProfiler}, or {@code null}
+     * if no profiler is installed. Times are in milliseconds. Example output:
+     * <pre class="example">
+     *    Count   Total ms    Self ms   Max ms  Component
+     *       12      480.3       12.1     71.0  OrderPage
+     *       12      431.7      402.9     66.2  OrderPage > OrderHistoryPanel [history]
+     *      360       28.8       28.8      0.4  OrderPage > Label [history:rows:*:date]</pre>
+     * 
+     * @since 4.0
+     */
+    public static String describeRenderProfile(int topN)
+    {
+        RenderProfiler profiler = RenderProfiler.get();
+        if(null == profiler) return null;
+        
+        List<RenderStat> stats = profiler.getTopN(topN);
+        StringBuffer buf = new StringBuffer(String.format(
+            "%8s %10s %10s %8s  %s",
+            "Count", "Total ms", "Self ms", "Max ms", "Component"
+        ));
+        for(RenderStat stat : stats)
+        {
+            buf.append(String.format("%n%s", stat));
+        }
+        return buf.toString();
+    }
+    
     /**
      * Returns a Duration of time elapsed since the specified date, or
      * {@code null} or the date is {@code null}.
@@ -644,8 +821,7 @@ public class LoggingUtils
      * Formats a Map with on entry per line plus a specified indent.
      * Keys are padded and left-aligned so that they are all the same width.
      */
-    private static String formatMapEntries(Collection entries,
-                                          String indent)
+    static String formatMapEntries(Collection entries, String indent)
     {
         StringBuffer buf = new StringBuffer();
         int width = 1;
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.util;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.Component;
+import org.apache.wicket.Page;
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.model.IModel;
+import org.apache.wicket.serialize.ISerializer;
+import org.apache.wicket.util.visit.IVisit;
+import org.apache.wicket.util.visit.IVisitor;
+
+
+/**
+ * Serializes a page and attributes the bytes to the individual components and models that
+ * make it up, so that you can find out why a page is bloating the page store and session
+ * replication traffic.
+ * <p>
+ * The page as a whole is serialized once to measure its total size, using the application's
+ * {@link ISerializer}, so that the total matches what the page store writes. Then each
+ * component is serialized on its own with standard Java serialization, with every reference
+ * to another component (parent, children, or components referenced by models and behaviors)
+ * cut off. The result is the component's <em>self</em> size: its fields, behaviors and
+ * model, but not its children. The component's default model is also serialized on its own,
+ * so that model classes can be ranked separately.
+ * <p>
+ * Because each component is serialized in a separate stream, class descriptors and objects
+ * shared between components are counted once per component, and a more compact serializer
+ * may be used for the total, so the self sizes need not add up to the total. The ranking is
+ * what matters.
+ * <pre class="example">
+ * PageSizeReport report = new PageSizeAnalyzer().analyze(page);
+ * System.out.println(report.describe(10));</pre>
+ * In a unit test, analyze the last rendered page and fail with the report if the page is over
+ * its budget:
+ * <pre class="example">
+ * Page page = tester.getLastRenderedPage();
+ * PageSizeReport report = new PageSizeAnalyzer().analyze(page);
+ * Assert.assertFalse(report.toString(), report.getTotalSize().greaterThan(budget));</pre>
+ * 
+ * @since 4.0
+ */
+public class PageSizeAnalyzer
+{
+    private final ISerializer serializer;
+    
+    /**
+     * Creates an analyzer that measures the total size of a page with the serializer of the
+     * current application.
+     */
+    public PageSizeAnalyzer()
+    {
+        this(null);
+    }
+    
+    /**
+     * @param serializer Used to measure the total size of a page; if {@code null}, the
+     *                   serializer of the current application is used, or standard Java
+     *                   serialization if there is no application
+     */
+    public PageSizeAnalyzer(ISerializer serializer)
+    {
+        this.serializer = serializer;
+    }
+    
+    /**
+     * Analyzes the given page, which should be detached (as it is after it has been
+     * rendered) so that the sizes reflect what would be written to the page store.
+     * 
+     * @throws WicketRuntimeException if the page or one of its components can't be
+     *                                serialized
+     */
+    public PageSizeReport analyze(Page page)
+    {
+        long total = measureTotal(page);
+        final List<PageSizeReport.Contributor> contributors =
+            new ArrayList<PageSizeReport.Contributor>();
+        
+        contributors.add(measureComponent(page));
+        page.visitChildren(new IVisitor<Component, Void>() {
+            public void component(Component component, IVisit<Void> visit)
+            {
+                contributors.add(measureComponent(component));
+            }
+        });
+        return new PageSizeReport(page.getClass(), total, contributors);
+    }
+    
+    private PageSizeReport.Contributor measureComponent(Component c)
+    {
+        String path = c instanceof Page ? "" : c.getPageRelativePath();
+        long self = measure(c, true, path);
+        
+        IModel<?> model = c.getDefaultModel();
+        long modelBytes = 0;
+        if(model != null)
+        {
+            modelBytes = measure(model, true, path + " (model)");
+        }
+        return new PageSizeReport.Contributor(
+            path,
+            c.getClass(),
+            self,
+            null == model ? null : model.getClass(),
+            modelBytes
+        );
+    }
+    
+    /**
+     * Serializes the page as the page store would, and returns the number of bytes.
+     */
+    private long measureTotal(Page page)
+    {
+        ISerializer s = this.serializer;
+        if(null == s && Application.exists())
+        {
+            s = Application.get().getFrameworkSettings().getSerializer();
+        }
+        if(null == s)
+        {
+            return measure(page, false, "page");
+        }
+        byte[] data = s.serialize(page);
+        if(null == data)
+        {
+            throw new WicketRuntimeException("Unable to serialize page");
+        }
+        return data.length;
+    }
+    
+    /**
+     * Serializes {@code root} and returns the number of bytes written. If {@code isolate} is
+     * {@code true}, every component other than {@code root} itself is replaced by
+     * {@code null}.
+     */
+    private long measure(Object root, boolean isolate, String description)
+    {
+        CountingOutputStream counter = new CountingOutputStream();
+        try
+        {
+            ObjectOutputStream out = new IsolatingOutputStream(counter, isolate ? root : null);
+            out.writeObject(root);
+            out.close();
+        }
+        catch(IOException ioe)
+        {
+            throw new WicketRuntimeException(
+                "Unable to serialize " + (description.length() > 0 ? description : "page"),
+                ioe);
+        }
+        return counter.count;
+    }
+    
+    /**
+     * Counts bytes without storing them.
+     */
+    private static class CountingOutputStream extends OutputStream
+    {
+        long count;
+        
+        @Override
+        public void write(int b)
+        {
+            this.count++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            this.count += len;
+        }
+    }
+    
+    /**
+     * If constructed with a root object, replaces references to all components other than
+     * the root with {@code null}, so that only the root's own state is written.
+     */
+    private static class IsolatingOutputStream extends ObjectOutputStream
+    {
+        private final Object root;
+        
+        IsolatingOutputStream(OutputStream out, Object root) throws IOException
+        {
+            super(out);
+            this.root = root;
+            enableReplaceObject(root != null);
+        }
+        
+        @Override
+        protected Object replaceObject(Object obj) throws IOException
+        {
+            if(obj instanceof Component && obj != this.root)
+            {
+                return null;
+            }
+            return obj;
+        }
+    }
+}
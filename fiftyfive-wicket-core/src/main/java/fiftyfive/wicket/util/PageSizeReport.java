@@ -0,0 +1,227 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.wicket.util.lang.Bytes;
+import org.apache.wicket.util.lang.Classes;
+
+
+/**
+ * The result of {@link PageSizeAnalyzer#analyze analyzing} a page: its total serialized size
+ * and the self size of each of its components, largest first.
+ * 
+ * @since 4.0
+ */
+public class PageSizeReport
+{
+    private final Class<?> pageClass;
+    private final long totalBytes;
+    private final List<Contributor> contributors;
+    
+    PageSizeReport(Class<?> pageClass, long totalBytes, List<Contributor> contributors)
+    {
+        this.pageClass = pageClass;
+        this.totalBytes = totalBytes;
+        this.contributors = new ArrayList<Contributor>(contributors);
+        Collections.sort(this.contributors, new Comparator<Contributor>() {
+            public int compare(Contributor c1, Contributor c2)
+            {
+                return c1.bytes > c2.bytes ? -1 : (c1.bytes < c2.bytes ? 1 : 0);
+            }
+        });
+    }
+    
+    public Class<?> getPageClass()
+    {
+        return this.pageClass;
+    }
+    
+    /**
+     * The size of the whole page when serialized.
+     */
+    public Bytes getTotalSize()
+    {
+        return Bytes.bytes(this.totalBytes);
+    }
+    
+    /**
+     * Every component of the page, including the page itself, ordered by self size, largest
+     * first.
+     */
+    public List<Contributor> getContributors()
+    {
+        return Collections.unmodifiableList(this.contributors);
+    }
+    
+    /**
+     * The total serialized size of the default models of the page's components, grouped by
+     * model class name, largest first.
+     */
+    public Map<String, Long> getModelClassBytes()
+    {
+        Map<String, Long> totals = new HashMap<String, Long>();
+        for(Contributor c : this.contributors)
+        {
+            if(c.modelClass != null)
+            {
+                String name = c.modelClass.getName();
+                Long sum = totals.get(name);
+                totals.put(name, (null == sum ? 0 : sum) + c.modelBytes);
+            }
+        }
+        List<Map.Entry<String, Long>> entries =
+            new ArrayList<Map.Entry<String, Long>>(totals.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2)
+            {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+        Map<String, Long> sorted = new LinkedHashMap<String, Long>();
+        for(Map.Entry<String, Long> e : entries)
+        {
+            sorted.put(e.getKey(), e.getValue());
+        }
+        return sorted;
+    }
+    
+    /**
+     * Returns a multi-line description of the page size and its {@code topN} largest
+     * components and model classes. Example output:
+     * <pre class="example">
+     * OrderPage: 182.3K serialized
+     *   Self bytes  Model bytes  Component
+     *        96211        95840  OrderHistoryPanel [history] (ListModel)
+     *         4102            0  OrderPage
+     *   Model bytes  Model class
+     *         95840  org.apache.wicket.model.util.ListModel</pre>
+     */
+    public String describe(int topN)
+    {
+        StringBuilder buf = new StringBuilder(String.format(
+            "%s: %s serialized%n  %10s %12s  %s",
+            Classes.simpleName(this.pageClass), getTotalSize(),
+            "Self bytes", "Model bytes", "Component"
+        ));
+        for(int i=0; i<topN && i<this.contributors.size(); i++)
+        {
+            buf.append(String.format("%n  %s", this.contributors.get(i)));
+        }
+        buf.append(String.format("%n  %11s  %s", "Model bytes", "Model class"));
+        int i = 0;
+        for(Map.Entry<String, Long> e : getModelClassBytes().entrySet())
+        {
+            if(i++ >= topN)
+            {
+                break;
+            }
+            buf.append(String.format("%n  %11d  %s", e.getValue(), e.getKey()));
+        }
+        return buf.toString();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return describe(10);
+    }
+    
+    /**
+     * The self size of one component.
+     */
+    public static class Contributor
+    {
+        private final String path;
+        private final Class<?> componentClass;
+        private final long bytes;
+        private final Class<?> modelClass;
+        private final long modelBytes;
+        
+        Contributor(String path,
+                    Class<?> componentClass,
+                    long bytes,
+                    Class<?> modelClass,
+                    long modelBytes)
+        {
+            this.path = path;
+            this.componentClass = componentClass;
+            this.bytes = bytes;
+            this.modelClass = modelClass;
+            this.modelBytes = modelBytes;
+        }
+        
+        /**
+         * The page-relative path of the component, or an empty string for the page itself.
+         */
+        public String getPath()
+        {
+            return this.path;
+        }
+        
+        public Class<?> getComponentClass()
+        {
+            return this.componentClass;
+        }
+        
+        /**
+         * The serialized size of the component excluding other components.
+         */
+        public long getBytes()
+        {
+            return this.bytes;
+        }
+        
+        /**
+         * The class of the component's default model, or {@code null} if it has none.
+         */
+        public Class<?> getModelClass()
+        {
+            return this.modelClass;
+        }
+        
+        /**
+         * The serialized size of the component's default model, which is included in
+         * {@link #getBytes}.
+         */
+        public long getModelBytes()
+        {
+            return this.modelBytes;
+        }
+        
+        @Override
+        public String toString()
+        {
+            StringBuilder desc = new StringBuilder(Classes.simpleName(this.componentClass));
+            if(this.path.length() > 0)
+            {
+                desc.append(" [").append(this.path).append("]");
+            }
+            if(this.modelClass != null)
+            {
+                desc.append(" (").append(Classes.simpleName(this.modelClass)).append(")");
+            }
+            return String.format("%10d %12d  %s", this.bytes, this.modelBytes, desc);
+        }
+    }
+}
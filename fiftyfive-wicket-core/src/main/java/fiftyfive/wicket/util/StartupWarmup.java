@@ -0,0 +1,586 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import javax.servlet.ServletContext;
+
+import fiftyfive.wicket.mapper.PatternMountedMapper;
+import fiftyfive.wicket.resource.MergedResourceMapper;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.IApplicationListener;
+import org.apache.wicket.MarkupContainer;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.markup.MarkupFactory;
+import org.apache.wicket.markup.MarkupType;
+import org.apache.wicket.markup.html.WebMarkupContainer;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.protocol.http.WebSession;
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.protocol.http.mock.MockHttpServletResponse;
+import org.apache.wicket.protocol.http.mock.MockHttpSession;
+import org.apache.wicket.protocol.http.servlet.ServletWebRequest;
+import org.apache.wicket.protocol.http.servlet.ServletWebResponse;
+import org.apache.wicket.request.IRequestMapper;
+import org.apache.wicket.request.component.IRequestablePage;
+import org.apache.wicket.request.mapper.ICompoundRequestMapper;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.request.resource.ResourceReference;
+import org.apache.wicket.request.resource.caching.IStaticCacheableResource;
+import org.apache.wicket.request.resource.caching.ResourceUrl;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Does the work that would otherwise be done by the first request to each page after a deploy:
+ * loading and parsing markup, looking up resource streams and computing resource versions.
+ * The warm-up runs once, on a pool of {@code threads} threads, when the application has
+ * finished initializing (i.e. after your {@code init()} has mounted its pages), and blocks
+ * startup until it is done so that a node does not receive traffic while still cold.
+ * It consists of these phases, each of which is timed and logged:
+ * <ol>
+ * <li><b>discovery</b>: finds the home page, the pages mounted with
+ *     {@link PatternMountedMapper}, the resources of each {@link MergedResourceMapper}, and
+ *     every component class with an associated {@code .html} file in the application's
+ *     package and any packages {@link #addPackage added} explicitly. The last of these
+ *     picks up panels, base pages, and pages mounted by other means.</li>
+ * <li><b>markup</b>: loads the markup of each class into Wicket's markup cache, which
+ *     includes parsing and merging inherited markup. Markup is loaded for the default
+ *     locale and style only.</li>
+ * <li><b>resources</b>: opens each merged resource and has the application's caching
+ *     strategy compute its version.</li>
+ * <li>Any phases added via {@link #addTask addTask()}, in the order they were first added.
+ *     For example, {@code fiftyfive-wicket-js} uses this to resolve the dependencies of
+ *     merged JavaScript files.</li>
+ * </ol>
+ * Each task runs with the application, a request cycle and a temporary session bound to
+ * its thread, much like a request. Failures are logged at DEBUG and otherwise ignored: the
+ * worst that can happen is that the first real request does the work instead.
+ * <pre class="example">
+ * new StartupWarmup(4).install(this);</pre>
+ * 
+ * @since 4.0
+ */
+public class StartupWarmup implements IApplicationListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(StartupWarmup.class);
+    
+    private static final MetaDataKey<StartupWarmup> WARMUP_KEY =
+        new MetaDataKey<StartupWarmup>() {};
+    
+    /**
+     * Returns the {@code StartupWarmup} that has been installed in the current Wicket
+     * application, or {@code null} if there is none.
+     */
+    public static StartupWarmup get()
+    {
+        return Application.exists() ? Application.get().getMetaData(WARMUP_KEY) : null;
+    }
+    
+    
+    private final int threads;
+    private final Set<String> packages = new LinkedHashSet<String>();
+    private final Map<String, List<Runnable>> tasks = new LinkedHashMap<String, List<Runnable>>();
+    private final Set<Class<?>> markupClasses = new LinkedHashSet<Class<?>>();
+    private final Set<ResourceReference> resources = new LinkedHashSet<ResourceReference>();
+    private final Map<String, Duration> timings = new LinkedHashMap<String, Duration>();
+    
+    /**
+     * @param threads The number of threads used to run each phase of the warm-up
+     */
+    public StartupWarmup(int threads)
+    {
+        Args.isTrue(threads > 0, "threads must be greater than zero");
+        this.threads = threads;
+    }
+    
+    /**
+     * Adds a package, including its subpackages, to be searched for component classes
+     * with associated markup. The package of the application class is always searched.
+     * 
+     * @return {@code this} to allow chaining
+     */
+    public StartupWarmup addPackage(String packageName)
+    {
+        Args.notNull(packageName, "packageName");
+        this.packages.add(packageName);
+        return this;
+    }
+    
+    /**
+     * Adds a task to be run during the given phase. Tasks of the same phase run
+     * concurrently, so they must be thread-safe.
+     * 
+     * @return {@code this} to allow chaining
+     */
+    public synchronized StartupWarmup addTask(String phase, Runnable task)
+    {
+        Args.notNull(phase, "phase");
+        Args.notNull(task, "task");
+        List<Runnable> list = this.tasks.get(phase);
+        if(null == list)
+        {
+            list = new ArrayList<Runnable>();
+            this.tasks.put(phase, list);
+        }
+        list.add(task);
+        return this;
+    }
+    
+    /**
+     * Registers this warm-up with the application so that {@link #get} will find it, and
+     * arranges for it to run once the application has been initialized.
+     */
+    public void install(WebApplication app)
+    {
+        register(app);
+        app.getApplicationListeners().add(this);
+    }
+    
+    /**
+     * Registers this warm-up with the application so that {@link #get} will find it, but
+     * leaves it to the caller to run it with {@link #warmUp warmUp()}, for example so that
+     * it can be timed along with the rest of startup.
+     */
+    public void register(WebApplication app)
+    {
+        Args.notNull(app, "app");
+        app.setMetaData(WARMUP_KEY, this);
+    }
+    
+    public void onAfterInitialized(Application application)
+    {
+        warmUp((WebApplication) application);
+    }
+    
+    public void onBeforeDestroyed(Application application)
+    {
+    }
+    
+    /**
+     * Runs every phase of the warm-up and logs how long each took. If this warm-up was
+     * {@link #install installed}, this is called automatically once the application has
+     * been initialized.
+     */
+    public synchronized void warmUp(final WebApplication app)
+    {
+        final AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "wicket-warmup-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long start = System.currentTimeMillis();
+        StringBuilder summary = new StringBuilder();
+        try
+        {
+            long phaseStart = System.currentTimeMillis();
+            discover(app);
+            record("discovery", phaseStart, summary).append(" (")
+                .append(this.markupClasses.size()).append(" classes, ")
+                .append(this.resources.size()).append(" resources)");
+            
+            List<Runnable> markup = new ArrayList<Runnable>();
+            for(final Class<?> cls : this.markupClasses)
+            {
+                markup.add(new Runnable() {
+                    public void run()
+                    {
+                        loadMarkup(cls);
+                    }
+                });
+            }
+            runPhase("markup", markup, app, executor, summary);
+            
+            List<Runnable> res = new ArrayList<Runnable>();
+            for(final ResourceReference ref : this.resources)
+            {
+                res.add(new Runnable() {
+                    public void run()
+                    {
+                        primeResource(app, ref);
+                    }
+                });
+            }
+            runPhase("resources", res, app, executor, summary);
+            
+            for(Map.Entry<String, List<Runnable>> phase : this.tasks.entrySet())
+            {
+                runPhase(phase.getKey(), phase.getValue(), app, executor, summary);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        LOGGER.info("Startup warm-up completed in {} ms: {}",
+                    System.currentTimeMillis() - start, summary);
+    }
+    
+    /**
+     * Returns how long each phase of the last warm-up took, in the order they were run.
+     */
+    public synchronized Map<String, Duration> getPhaseTimings()
+    {
+        return new LinkedHashMap<String, Duration>(this.timings);
+    }
+    
+    /**
+     * Returns the component classes whose markup was loaded by the last warm-up.
+     */
+    public synchronized Set<Class<?>> getMarkupClasses()
+    {
+        return Collections.unmodifiableSet(new LinkedHashSet<Class<?>>(this.markupClasses));
+    }
+    
+    /**
+     * Finds the page and component classes to be warmed up, and the merged resources.
+     */
+    private void discover(WebApplication app)
+    {
+        this.markupClasses.clear();
+        this.resources.clear();
+        
+        Set<String> search = new LinkedHashSet<String>();
+        search.add(app.getClass().getPackage().getName());
+        search.addAll(this.packages);
+        
+        addMarkupClass(app.getHomePage());
+        discover(app.getRootRequestMapper());
+        
+        ClassLoader loader = app.getClass().getClassLoader();
+        for(String pkg : search)
+        {
+            try
+            {
+                for(String path : findMarkup(loader, pkg.replace('.', '/')))
+                {
+                    Class<?> cls = resolveMarkupClass(loader, path);
+                    if(cls != null)
+                    {
+                        addMarkupClass(cls);
+                    }
+                }
+            }
+            catch(IOException ioe)
+            {
+                LOGGER.debug("Unable to search package " + pkg + " for markup", ioe);
+            }
+        }
+    }
+    
+    private void discover(IRequestMapper mapper)
+    {
+        if(mapper instanceof ICompoundRequestMapper)
+        {
+            for(IRequestMapper child : (ICompoundRequestMapper) mapper)
+            {
+                discover(child);
+            }
+        }
+        else if(mapper instanceof PatternMountedMapper)
+        {
+            addMarkupClass(((PatternMountedMapper) mapper).getMountedPageClass());
+        }
+        else if(mapper instanceof MergedResourceMapper)
+        {
+            this.resources.addAll(((MergedResourceMapper) mapper).getResources());
+        }
+    }
+    
+    private void addMarkupClass(Class<?> cls)
+    {
+        if(cls != null &&
+           MarkupContainer.class.isAssignableFrom(cls) &&
+           !cls.getName().startsWith("org.apache.wicket."))
+        {
+            this.markupClasses.add(cls);
+        }
+    }
+    
+    /**
+     * Runs the tasks concurrently and waits for them to finish, recording the elapsed time.
+     */
+    private void runPhase(String phase,
+                          List<Runnable> phaseTasks,
+                          final WebApplication app,
+                          ExecutorService executor,
+                          StringBuilder summary)
+    {
+        long start = System.currentTimeMillis();
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for(final Runnable task : phaseTasks)
+        {
+            futures.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception
+                {
+                    attach(app);
+                    try
+                    {
+                        task.run();
+                    }
+                    catch(RuntimeException re)
+                    {
+                        LOGGER.debug("Warm-up task failed", re);
+                    }
+                    finally
+                    {
+                        ThreadContext.detach();
+                    }
+                    return null;
+                }
+            }));
+        }
+        for(Future<Object> f : futures)
+        {
+            try
+            {
+                f.get();
+            }
+            catch(InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch(ExecutionException ee)
+            {
+                LOGGER.debug("Warm-up task failed", ee.getCause());
+            }
+        }
+        record(phase, start, summary).append(" (").append(phaseTasks.size()).append(")");
+    }
+    
+    private StringBuilder record(String phase, long start, StringBuilder summary)
+    {
+        long elapsed = System.currentTimeMillis() - start;
+        this.timings.put(phase, Duration.milliseconds(elapsed));
+        if(summary.length() > 0)
+        {
+            summary.append(", ");
+        }
+        return summary.append(phase).append(" ").append(elapsed).append(" ms");
+    }
+    
+    /**
+     * Binds the application, a request cycle and a temporary session to the current thread,
+     * so that the warm-up code sees the same environment as a request.
+     */
+    private static void attach(WebApplication app)
+    {
+        ServletContext context = app.getServletContext();
+        MockHttpServletRequest httpRequest = new MockHttpServletRequest(
+            app, new MockHttpSession(context), context);
+        ServletWebRequest request = new ServletWebRequest(httpRequest, "");
+        ServletWebResponse response = new ServletWebResponse(
+            request, new MockHttpServletResponse(httpRequest));
+        
+        ThreadContext.setApplication(app);
+        ThreadContext.setRequestCycle(app.createRequestCycle(request, response));
+        ThreadContext.setSession(new WebSession(request));
+    }
+    
+    private static void loadMarkup(Class<?> cls)
+    {
+        if(null == MarkupFactory.get().getMarkupCache().getMarkup(new MarkupLoader(), cls, false))
+        {
+            LOGGER.debug("No markup found for {}", cls.getName());
+        }
+    }
+    
+    private static void primeResource(WebApplication app, ResourceReference ref)
+    {
+        IResource res = ref.getResource();
+        if(res instanceof IStaticCacheableResource)
+        {
+            IStaticCacheableResource cacheable = (IStaticCacheableResource) res;
+            cacheable.getCacheableResourceStream().lastModifiedTime();
+            app.getResourceSettings().getCachingStrategy().decorateUrl(
+                new ResourceUrl(ref.getName(), new PageParameters()), cacheable);
+        }
+    }
+    
+    /**
+     * Returns the path of every {@code .html} file in or below the given directory of the
+     * classpath, whether it is in a directory or a jar.
+     */
+    static Set<String> findMarkup(ClassLoader loader, String directory) throws IOException
+    {
+        Set<String> found = new LinkedHashSet<String>();
+        String prefix = directory.endsWith("/") ? directory : directory + "/";
+        Enumeration<URL> urls = loader.getResources(prefix);
+        while(urls.hasMoreElements())
+        {
+            URL url = urls.nextElement();
+            if("file".equals(url.getProtocol()))
+            {
+                try
+                {
+                    findMarkup(new File(url.toURI()), prefix, found);
+                }
+                catch(URISyntaxException use)
+                {
+                    LOGGER.debug("Unable to search " + url, use);
+                }
+            }
+            else
+            {
+                URLConnection conn = url.openConnection();
+                if(conn instanceof JarURLConnection)
+                {
+                    conn.setUseCaches(false);
+                    JarFile jar = ((JarURLConnection) conn).getJarFile();
+                    try
+                    {
+                        Enumeration<JarEntry> entries = jar.entries();
+                        while(entries.hasMoreElements())
+                        {
+                            String name = entries.nextElement().getName();
+                            if(name.startsWith(prefix) && name.endsWith(".html"))
+                            {
+                                found.add(name);
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        jar.close();
+                    }
+                }
+            }
+        }
+        return found;
+    }
+    
+    private static void findMarkup(File dir, String path, Set<String> found)
+    {
+        File[] files = dir.listFiles();
+        if(null == files)
+        {
+            return;
+        }
+        for(File f : files)
+        {
+            if(f.isDirectory())
+            {
+                findMarkup(f, path + f.getName() + "/", found);
+            }
+            else if(f.getName().endsWith(".html"))
+            {
+                found.add(path + f.getName());
+            }
+        }
+    }
+    
+    /**
+     * Returns the component class that the markup file at the given path belongs to, or
+     * {@code null} if there is none. Locale, style and variation suffixes such as
+     * {@code _fr} are removed from the name until a class is found.
+     */
+    static Class<?> resolveMarkupClass(ClassLoader loader, String path)
+    {
+        String name = path.substring(0, path.length() - ".html".length()).replace('/', '.');
+        while(true)
+        {
+            if(isClassName(name))
+            {
+                try
+                {
+                    Class<?> cls = Class.forName(name, false, loader);
+                    return MarkupContainer.class.isAssignableFrom(cls) ? cls : null;
+                }
+                catch(ClassNotFoundException cnfe)
+                {
+                    // Try without a suffix
+                }
+                catch(LinkageError le)
+                {
+                    return null;
+                }
+            }
+            int underscore = name.lastIndexOf('_');
+            if(underscore <= name.lastIndexOf('.'))
+            {
+                return null;
+            }
+            name = name.substring(0, underscore);
+        }
+    }
+    
+    private static boolean isClassName(String name)
+    {
+        for(int i=0; i<name.length(); i++)
+        {
+            char ch = name.charAt(i);
+            if(ch != '.' && !Character.isJavaIdentifierPart(ch))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * A detached container that stands in for an instance of the class whose markup is
+     * being loaded. Markup is cached by class, locale and style, and those come from the
+     * session, so no instance of the real class is needed.
+     */
+    private static class MarkupLoader extends WebMarkupContainer
+    {
+        private MarkupLoader()
+        {
+            super("warmup");
+        }
+        
+        @Override
+        public MarkupType getMarkupType()
+        {
+            return MarkupType.HTML_MARKUP_TYPE;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.util;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.wicket.markup.MarkupResourceStream;
+import org.apache.wicket.util.listener.IChangeListener;
+import org.apache.wicket.util.resource.FileResourceStream;
+import org.apache.wicket.util.resource.UrlResourceStream;
+import org.apache.wicket.util.time.Duration;
+import org.apache.wicket.util.time.Time;
+import org.apache.wicket.util.watch.IModifiable;
+import org.apache.wicket.util.watch.IModificationWatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An {@link IModificationWatcher} that is notified of changes by the operating system, using
+ * Java 7's {@code java.nio.file.WatchService}, rather than checking the timestamp of every
+ * watched resource once per poll interval like Wicket's
+ * {@link org.apache.wicket.util.watch.ModificationWatcher ModificationWatcher}. The
+ * directory of each watched file is registered with the watch service, and when a file
+ * changes, only the listeners of resources backed by that file are notified. This keeps
+ * hot deploy of markup, properties and JavaScript responsive in projects with thousands
+ * of resources without burning a core on polling.
+ * <p>
+ * Resources that are not backed by a local file, for example those inside jars, are polled
+ * as usual at the frequency passed to {@link #start start()}.
+ * <p>
+ * This library is compiled for Java 6, so the watch service is accessed reflectively.
+ * Check {@link #isAvailable} before constructing a watcher; on Java 6 use
+ * {@code ModificationWatcher} instead.
+ * {@link fiftyfive.wicket.FoundationApplication#initHtmlHotDeploy
+ * FoundationApplication.initHtmlHotDeploy()} does this for you.
+ * 
+ * @since 4.0
+ */
+public class WatchServiceModificationWatcher implements IModificationWatcher
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        WatchServiceModificationWatcher.class);
+    
+    /**
+     * Returns {@code true} if the Java runtime provides {@code java.nio.file.WatchService}.
+     */
+    public static boolean isAvailable()
+    {
+        try
+        {
+            Class.forName("java.nio.file.WatchService");
+            return true;
+        }
+        catch(ClassNotFoundException cnfe)
+        {
+            return false;
+        }
+    }
+    
+    
+    private final WatchService service;
+    private final ConcurrentMap<IModifiable, Entry> entries =
+        new ConcurrentHashMap<IModifiable, Entry>();
+    private final Map<Object, File> directories = new ConcurrentHashMap<Object, File>();
+    private final Set<File> registered = new HashSet<File>();
+    private volatile Thread thread;
+    
+    /**
+     * @throws IllegalStateException if the watch service is not available
+     */
+    public WatchServiceModificationWatcher()
+    {
+        this.service = new WatchService();
+    }
+    
+    public boolean add(IModifiable modifiable, IChangeListener listener)
+    {
+        Entry entry = this.entries.get(modifiable);
+        boolean added = false;
+        if(null == entry)
+        {
+            File file = getFile(modifiable);
+            entry = new Entry(modifiable, file);
+            Entry existing = this.entries.putIfAbsent(modifiable, entry);
+            if(existing != null)
+            {
+                entry = existing;
+            }
+            else
+            {
+                added = true;
+                if(file != null)
+                {
+                    register(file.getParentFile());
+                }
+            }
+        }
+        entry.listeners.add(listener);
+        return added;
+    }
+    
+    public IModifiable remove(IModifiable modifiable)
+    {
+        Entry entry = this.entries.remove(modifiable);
+        return null == entry ? null : entry.modifiable;
+    }
+    
+    public Set<IModifiable> getEntries()
+    {
+        return this.entries.keySet();
+    }
+    
+    /**
+     * Starts a daemon thread that waits for change events, and polls the resources that are
+     * not backed by a file at the given frequency.
+     */
+    public synchronized void start(final Duration pollFrequency)
+    {
+        if(this.thread != null)
+        {
+            return;
+        }
+        this.thread = new Thread("wicket-watch-service") {
+            @Override
+            public void run()
+            {
+                watch(pollFrequency.getMilliseconds());
+            }
+        };
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    public synchronized void destroy()
+    {
+        Thread t = this.thread;
+        this.thread = null;
+        if(t != null)
+        {
+            t.interrupt();
+        }
+        this.service.close();
+    }
+    
+    private void watch(long pollMillis)
+    {
+        long nextPoll = System.currentTimeMillis() + pollMillis;
+        while(this.thread == Thread.currentThread())
+        {
+            try
+            {
+                Object key = this.service.poll(Math.max(1, nextPoll - System.currentTimeMillis()));
+                if(key != null)
+                {
+                    File dir = this.directories.get(key);
+                    for(Object context : this.service.pollEvents(key))
+                    {
+                        // A null context means events were lost, so check the whole directory
+                        changed(dir, null == context ? null : context.toString());
+                    }
+                    this.service.reset(key);
+                }
+                if(System.currentTimeMillis() >= nextPoll)
+                {
+                    for(Entry e : this.entries.values())
+                    {
+                        if(null == e.file)
+                        {
+                            e.checkModified();
+                        }
+                    }
+                    nextPoll = System.currentTimeMillis() + pollMillis;
+                }
+            }
+            catch(InterruptedException ie)
+            {
+                break;
+            }
+            catch(RuntimeException re)
+            {
+                LOGGER.warn("Error while watching for resource changes", re);
+            }
+        }
+    }
+    
+    /**
+     * Notifies the listeners of the entries for the given file, or for all files in the
+     * directory if {@code name} is {@code null}, that have been modified.
+     */
+    private void changed(File dir, String name)
+    {
+        if(null == dir)
+        {
+            return;
+        }
+        File changed = null == name ? null : new File(dir, name);
+        for(Entry e : this.entries.values())
+        {
+            if(e.file != null &&
+               (changed != null ? changed.equals(e.file) : dir.equals(e.file.getParentFile())))
+            {
+                LOGGER.debug("Change detected in {}", e.file);
+                e.checkModified();
+            }
+        }
+    }
+    
+    private void register(File dir)
+    {
+        if(null == dir)
+        {
+            return;
+        }
+        synchronized(this.registered)
+        {
+            if(!this.registered.add(dir))
+            {
+                return;
+            }
+        }
+        try
+        {
+            this.directories.put(this.service.register(dir), dir);
+            LOGGER.debug("Watching {}", dir);
+        }
+        catch(RuntimeException re)
+        {
+            LOGGER.warn("Unable to watch " + dir + " for changes", re);
+        }
+    }
+    
+    /**
+     * Returns the local file that backs the given resource, or {@code null} if there is none.
+     */
+    static File getFile(IModifiable modifiable)
+    {
+        IModifiable m = modifiable;
+        if(m instanceof MarkupResourceStream)
+        {
+            m = ((MarkupResourceStream) m).getResource();
+        }
+        File file = null;
+        if(m instanceof File)
+        {
+            file = (File) m;
+        }
+        else if(m instanceof FileResourceStream)
+        {
+            file = ((FileResourceStream) m).getFile();
+        }
+        else if(m instanceof UrlResourceStream)
+        {
+            URL url = ((UrlResourceStream) m).getURL();
+            if("file".equals(url.getProtocol()))
+            {
+                try
+                {
+                    file = new File(url.toURI());
+                }
+                catch(URISyntaxException use)
+                {
+                    // Not a usable file URL; fall back to polling
+                }
+            }
+        }
+        return null == file ? null : file.getAbsoluteFile();
+    }
+    
+    /**
+     * A watched resource, its last known modification time, and its listeners.
+     */
+    private static class Entry
+    {
+        private final IModifiable modifiable;
+        private final File file;
+        private final Set<IChangeListener> listeners = new CopyOnWriteArraySet<IChangeListener>();
+        private Time lastModified;
+        
+        private Entry(IModifiable modifiable, File file)
+        {
+            this.modifiable = modifiable;
+            this.file = file;
+            this.lastModified = modifiable.lastModifiedTime();
+        }
+        
+        /**
+         * Notifies the listeners if the modification time has changed. Editors often produce
+         * several events for one save, so this is what ensures listeners are called once.
+         */
+        private void checkModified()
+        {
+            Time modified = this.modifiable.lastModifiedTime();
+            synchronized(this)
+            {
+                if(null == modified || modified.equals(this.lastModified))
+                {
+                    return;
+                }
+                this.lastModified = modified;
+            }
+            for(IChangeListener listener : this.listeners)
+            {
+                try
+                {
+                    listener.onChange();
+                }
+                catch(RuntimeException re)
+                {
+                    LOGGER.warn("Resource change listener failed", re);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reflective access to the {@code java.nio.file} watch API, so that this class can be
+     * compiled and loaded on Java 6.
+     */
+    private static class WatchService
+    {
+        private final Object service;
+        private final Object kinds;
+        private final Method toPath;
+        private final Method register;
+        private final Method poll;
+        private final Method close;
+        private final Method pollEvents;
+        private final Method context;
+        private final Method reset;
+        
+        private WatchService()
+        {
+            try
+            {
+                Class<?> fileSystems = Class.forName("java.nio.file.FileSystems");
+                Class<?> fileSystem = Class.forName("java.nio.file.FileSystem");
+                Class<?> path = Class.forName("java.nio.file.Path");
+                Class<?> watchService = Class.forName("java.nio.file.WatchService");
+                Class<?> watchKey = Class.forName("java.nio.file.WatchKey");
+                Class<?> watchEvent = Class.forName("java.nio.file.WatchEvent");
+                Class<?> kind = Class.forName("java.nio.file.WatchEvent$Kind");
+                Class<?> standard = Class.forName("java.nio.file.StandardWatchEventKinds");
+                
+                Object fs = fileSystems.getMethod("getDefault").invoke(null);
+                this.service = fileSystem.getMethod("newWatchService").invoke(fs);
+                this.kinds = Array.newInstance(kind, 3);
+                Array.set(this.kinds, 0, standard.getField("ENTRY_CREATE").get(null));
+                Array.set(this.kinds, 1, standard.getField("ENTRY_MODIFY").get(null));
+                Array.set(this.kinds, 2, standard.getField("ENTRY_DELETE").get(null));
+                
+                this.toPath = File.class.getMethod("toPath");
+                this.register = path.getMethod("register", watchService, this.kinds.getClass());
+                this.poll = watchService.getMethod("poll", long.class, TimeUnit.class);
+                this.close = watchService.getMethod("close");
+                this.pollEvents = watchKey.getMethod("pollEvents");
+                this.context = watchEvent.getMethod("context");
+                this.reset = watchKey.getMethod("reset");
+            }
+            catch(Exception e)
+            {
+                throw new IllegalStateException("java.nio.file.WatchService is not available", e);
+            }
+        }
+        
+        Object register(File dir)
+        {
+            return invoke(this.register, invoke(this.toPath, dir), this.service, this.kinds);
+        }
+        
+        Object poll(long millis) throws InterruptedException
+        {
+            try
+            {
+                return this.poll.invoke(this.service, millis, TimeUnit.MILLISECONDS);
+            }
+            catch(InvocationTargetException ite)
+            {
+                if(ite.getCause() instanceof InterruptedException)
+                {
+                    throw (InterruptedException) ite.getCause();
+                }
+                if(ite.getCause().getClass().getName().endsWith("ClosedWatchServiceException"))
+                {
+                    throw new InterruptedException("Watch service closed");
+                }
+                throw new IllegalStateException(ite.getCause());
+            }
+            catch(IllegalAccessException iae)
+            {
+                throw new IllegalStateException(iae);
+            }
+        }
+        
+        /**
+         * Returns the context (file name) of each pending event of the key.
+         */
+        Object[] pollEvents(Object key)
+        {
+            List<?> events = (List<?>) invoke(this.pollEvents, key);
+            Object[] contexts = new Object[events.size()];
+            for(int i=0; i<contexts.length; i++)
+            {
+                contexts[i] = invoke(this.context, events.get(i));
+            }
+            return contexts;
+        }
+        
+        void reset(Object key)
+        {
+            invoke(this.reset, key);
+        }
+        
+        void close()
+        {
+            try
+            {
+                invoke(this.close, this.service);
+            }
+            catch(RuntimeException re)
+            {
+                LOGGER.debug("Unable to close watch service", re);
+            }
+        }
+        
+        private static Object invoke(Method method, Object target, Object... args)
+        {
+            try
+            {
+                return method.invoke(target, args);
+            }
+            catch(InvocationTargetException ite)
+            {
+                throw new IllegalStateException(ite.getCause());
+            }
+            catch(IllegalAccessException iae)
+            {
+                throw new IllegalStateException(iae);
+            }
+        }
+    }
+}
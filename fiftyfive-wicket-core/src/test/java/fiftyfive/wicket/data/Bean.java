@@ -26,6 +26,11 @@ public class Bean implements Serializable
         this.num = num;
     }
     
+    public int getNum()
+    {
+        return this.num;
+    }
+    
     public String toString()
     {
         return Integer.toString(this.num);
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fiftyfive.util.ReflectUtils;
+
+import org.apache.wicket.markup.repeater.Item;
+import org.apache.wicket.markup.repeater.data.DataView;
+import org.apache.wicket.util.tester.WicketTester;
+
+/**
+ * Compares the cost of reading the pageable view offset the old way (a
+ * {@link ReflectUtils#readField} lookup on every call) against the cached
+ * field used by {@link DtoDataProvider#getPageableViewOffset}. Simulates a
+ * page with many tables, where each table reads its offset twice per render
+ * (once for {@code size()} and once for {@code iterator()}).
+ * <p>
+ * This is not a unit test; run it manually:
+ * <pre class="example">
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=fiftyfive.wicket.data.DtoDataProviderBenchmark</pre>
+ */
+public class DtoDataProviderBenchmark
+{
+    private static final int TABLES = 50;
+    private static final int RENDERS = 20000;
+
+    public static void main(String[] args)
+    {
+        WicketTester tester = new WicketTester();
+        try
+        {
+            List<BeanResultProvider> providers = createTables(TABLES);
+
+            // Warm up both paths so that JIT compilation doesn't skew results
+            runReflectUtils(providers, RENDERS);
+            runCachedField(providers, RENDERS);
+
+            long before = runReflectUtils(providers, RENDERS);
+            long after = runCachedField(providers, RENDERS);
+
+            System.out.println(String.format(
+                "%d tables, %d renders%n" +
+                "  ReflectUtils.readField: %,d ns per render%n" +
+                "  Cached field:           %,d ns per render",
+                TABLES, RENDERS, before / RENDERS, after / RENDERS
+            ));
+        }
+        finally
+        {
+            tester.destroy();
+        }
+    }
+
+    private static List<BeanResultProvider> createTables(int count)
+    {
+        List<BeanResultProvider> providers = new ArrayList<BeanResultProvider>(count);
+        for(int i=0; i<count; i++)
+        {
+            BeanResultProvider provider = new BeanResultProvider();
+            DataView<Bean> view = new DataView<Bean>("table" + i, provider) {
+                protected void populateItem(Item<Bean> item)
+                {
+                }
+            };
+            view.setItemsPerPage(10);
+            provider.setPageableView(view);
+            providers.add(provider);
+        }
+        return providers;
+    }
+
+    private static long runReflectUtils(List<BeanResultProvider> providers, int renders)
+    {
+        long sink = 0;
+        long start = System.nanoTime();
+        for(int r=0; r<renders; r++)
+        {
+            for(BeanResultProvider p : providers)
+            {
+                for(int call=0; call<2; call++)
+                {
+                    long page = (Long) ReflectUtils.readField(p.getPageableView(), "currentPage");
+                    sink += page * p.getPageableRowsPerPage();
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if(sink < 0) System.out.println(sink);
+        return elapsed;
+    }
+
+    private static long runCachedField(List<BeanResultProvider> providers, int renders)
+    {
+        long sink = 0;
+        long start = System.nanoTime();
+        for(int r=0; r<renders; r++)
+        {
+            for(BeanResultProvider p : providers)
+            {
+                for(int call=0; call<2; call++)
+                {
+                    sink += p.getPageableViewOffset();
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if(sink < 0) System.out.println(sink);
+        return elapsed;
+    }
+}
@@ -15,10 +15,15 @@
  */
 package fiftyfive.wicket.data;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import fiftyfive.wicket.BaseWicketTest;
+import org.apache.wicket.model.IModel;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -45,6 +50,72 @@ public class DtoDataProviderTest extends BaseWicketTest
         Assert.assertEquals(2, provider.getLoadCount());
     }
     
+    /**
+     * Verify that iterateAll() walks the entire result in chunks without
+     * loading more than necessary.
+     */
+    @Test
+    public void testIterateAll() throws Exception
+    {
+        BeanResultProvider provider = new BeanResultProvider();
+        
+        Iterator<Bean> iter = provider.iterateAll(30);
+        List<Bean> list = new ArrayList<Bean>(100);
+        while(iter.hasNext())
+        {
+            list.add(iter.next());
+        }
+        
+        Assert.assertEquals(100, list.size());
+        Assert.assertEquals(4, provider.getLoadCount());
+        Assert.assertEquals("99", list.get(99).toString());
+    }
+    
+    /**
+     * Verify that keyed row models release their rows on detach and reload
+     * them all in a single batch when next accessed.
+     */
+    @Test
+    public void testKeyedRowModels() throws Exception
+    {
+        final List<Collection<Serializable>> batches = new ArrayList<Collection<Serializable>>();
+        BeanResultProvider provider = new BeanResultProvider();
+        provider.setKeyedRowModels(new DtoDataProvider.RowLoader<Bean>() {
+            public Serializable getRowKey(Bean bean)
+            {
+                return bean.getNum();
+            }
+            public Map<Serializable,Bean> loadRows(Collection<Serializable> keys)
+            {
+                batches.add(keys);
+                Map<Serializable,Bean> rows = new HashMap<Serializable,Bean>();
+                for(Serializable key : keys)
+                {
+                    rows.put(key, new Bean((Integer) key));
+                }
+                return rows;
+            }
+        });
+        Assert.assertTrue(provider.isKeyedRowModels());
+        
+        List<IModel<Bean>> models = new ArrayList<IModel<Bean>>();
+        Iterator<? extends Bean> iter = provider.iterator(10, 5);
+        while(iter.hasNext())
+        {
+            models.add(provider.model(iter.next()));
+        }
+        for(IModel<Bean> m : models)
+        {
+            m.detach();
+        }
+        provider.detach();
+        
+        Assert.assertEquals("10", models.get(0).getObject().toString());
+        Assert.assertEquals("14", models.get(4).getObject().toString());
+        Assert.assertEquals(1, batches.size());
+        Assert.assertEquals(5, batches.get(0).size());
+    }
+    
     @Test
     public void testRender() throws Exception
     {
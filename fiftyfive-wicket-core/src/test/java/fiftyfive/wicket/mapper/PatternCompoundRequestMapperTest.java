@@ -0,0 +1,277 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.mapper;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.wicket.core.request.handler.BookmarkablePageRequestHandler;
+import org.apache.wicket.core.request.handler.PageProvider;
+import org.apache.wicket.core.request.mapper.IMapperContext;
+import org.apache.wicket.markup.html.pages.AccessDeniedPage;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.Request;
+import org.apache.wicket.request.Url;
+import org.apache.wicket.request.mapper.CompoundRequestMapper;
+import org.apache.wicket.util.tester.DummyHomePage;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+
+
+public class PatternCompoundRequestMapperTest
+{
+    private PatternCompoundRequestMapper compound;
+    private List<String> asked;
+    private List<String> scored;
+
+    @Before
+    public void createMapper()
+    {
+        this.compound = new PatternCompoundRequestMapper();
+        this.asked = new ArrayList<String>();
+        this.scored = new ArrayList<String>();
+        this.compound.add(createMapper("products/${productId:\\d+}/${slug}", true));
+        this.compound.add(createMapper("products/new", true));
+        this.compound.add(createMapper("people/${personId:\\d+}", true));
+        this.compound.add(createMapper("people/search/#{query}", false));
+        this.compound.add(createMapper("about", false));
+    }
+
+    @Test
+    public void testMapRequestAsksOnlyCompatibleMappers()
+    {
+        Assert.assertNotNull(mapRequest("products/123/widget"));
+        Assert.assertEquals(1, this.asked.size());
+        Assert.assertEquals("products/${productId:\\d+}/${slug}", this.asked.get(0));
+    }
+
+    @Test
+    public void testMapRequestPrefersLiteralMatch()
+    {
+        Assert.assertNotNull(mapRequest("products/new"));
+        Assert.assertEquals("products/new", this.asked.get(0));
+    }
+
+    @Test
+    public void testMapRequestReturnsNullOnRegexMismatch()
+    {
+        Assert.assertNull(mapRequest("products/abc/widget"));
+        Assert.assertNull(mapRequest("people/abc"));
+        Assert.assertEquals(0, this.asked.size());
+    }
+
+    @Test
+    public void testMapRequestOptionalAndInexactMatch()
+    {
+        Assert.assertNotNull(mapRequest("people/search"));
+        Assert.assertNotNull(mapRequest("people/search/foo"));
+        Assert.assertNotNull(mapRequest("about/us"));
+        Assert.assertNull(mapRequest("people/123/extra"));
+    }
+
+    @Test
+    public void testCompatibilityScoreAsksOnlyCompatibleMappers()
+    {
+        Request request = createRequest(Url.parse("people/123"));
+        Assert.assertTrue(this.compound.getCompatibilityScore(request) > 0);
+        Assert.assertEquals(1, this.scored.size());
+        Assert.assertEquals("people/${personId:\\d+}", this.scored.get(0));
+
+        this.scored.clear();
+        Request unknown = createRequest(Url.parse("nowhere"));
+        Assert.assertEquals(Integer.MIN_VALUE, this.compound.getCompatibilityScore(unknown));
+        Assert.assertEquals(0, this.scored.size());
+    }
+
+    @Test
+    public void testMapRequestTieGoesToNewestMapper()
+    {
+        final List<String> order = new ArrayList<String>();
+        PatternCompoundRequestMapper mappings = new PatternCompoundRequestMapper();
+        for(final String name : new String[] { "first", "second" })
+        {
+            mappings.add(new PatternMountedMapper("tie", DummyHomePage.class) {
+                @Override
+                public IRequestHandler mapRequest(Request request)
+                {
+                    order.add(name);
+                    return null;
+                }
+            });
+        }
+        Assert.assertNull(mappings.mapRequest(createRequest(Url.parse("tie"))));
+        Assert.assertEquals(Arrays.asList("second", "first"), order);
+    }
+
+    @Test
+    public void testMapHandlerRemembersMountedMapper()
+    {
+        final List<String> generating = new ArrayList<String>();
+        final IMapperContext mockContext = mock(IMapperContext.class);
+        PatternCompoundRequestMapper mappings = new PatternCompoundRequestMapper();
+        mappings.add(new PatternMountedMapper("denied", AccessDeniedPage.class) {
+            @Override
+            protected IMapperContext getContext()
+            {
+                return mockContext;
+            }
+            @Override
+            public Url mapHandler(IRequestHandler handler)
+            {
+                generating.add("denied");
+                return super.mapHandler(handler);
+            }
+        });
+        mappings.add(new PatternMountedMapper("home", DummyHomePage.class) {
+            @Override
+            protected IMapperContext getContext()
+            {
+                return mockContext;
+            }
+            @Override
+            public Url mapHandler(IRequestHandler handler)
+            {
+                generating.add("home");
+                return super.mapHandler(handler);
+            }
+        });
+
+        IRequestHandler handler = new BookmarkablePageRequestHandler(
+            new PageProvider(AccessDeniedPage.class));
+
+        Assert.assertEquals("denied", mappings.mapHandler(handler).toString());
+        Assert.assertEquals("denied", mappings.mapHandler(handler).toString());
+
+        // Most recent mapper is asked first, but only the first time
+        Assert.assertEquals(3, generating.size());
+        Assert.assertEquals("home", generating.get(0));
+        Assert.assertEquals("denied", generating.get(1));
+        Assert.assertEquals("denied", generating.get(2));
+    }
+
+    @Test
+    public void testMapHandlerMemoIsPerInstance()
+    {
+        final IMapperContext mockContext = mock(IMapperContext.class);
+        PatternCompoundRequestMapper home = new PatternCompoundRequestMapper();
+        home.add(new PatternMountedMapper("home", DummyHomePage.class) {
+            @Override
+            protected IMapperContext getContext()
+            {
+                return mockContext;
+            }
+        });
+        PatternCompoundRequestMapper denied = new PatternCompoundRequestMapper();
+        denied.add(new PatternMountedMapper("denied", AccessDeniedPage.class) {
+            @Override
+            protected IMapperContext getContext()
+            {
+                return mockContext;
+            }
+        });
+        CompoundRequestMapper parent = new CompoundRequestMapper();
+        parent.add(denied);
+        parent.add(home);
+
+        IRequestHandler handler = new BookmarkablePageRequestHandler(
+            new PageProvider(AccessDeniedPage.class));
+
+        // The request cycle memo must neither remember the failure of the first instance nor
+        // be shared with the second one
+        WicketTester tester = new WicketTester();
+        try
+        {
+            Assert.assertEquals("denied", parent.mapHandler(handler).toString());
+            Assert.assertEquals("denied", parent.mapHandler(handler).toString());
+        }
+        finally
+        {
+            tester.destroy();
+        }
+    }
+
+    private IRequestHandler mapRequest(String url)
+    {
+        return this.compound.mapRequest(createRequest(Url.parse(url)));
+    }
+
+    private PatternMountedMapper createMapper(final String pattern, boolean exact)
+    {
+        final IMapperContext mockContext = mock(IMapperContext.class);
+        PatternMountedMapper mapper = new PatternMountedMapper(pattern, DummyHomePage.class) {
+            @Override
+            protected IMapperContext getContext()
+            {
+                return mockContext;
+            }
+            @Override
+            public IRequestHandler mapRequest(Request request)
+            {
+                asked.add(pattern);
+                return super.mapRequest(request);
+            }
+            @Override
+            public int getCompatibilityScore(Request request)
+            {
+                scored.add(pattern);
+                return super.getCompatibilityScore(request);
+            }
+        };
+        return mapper.setExact(exact);
+    }
+
+    private Request createRequest(final Url requestUrl)
+    {
+        return new Request() {
+            @Override
+            public Url getUrl()
+            {
+                return requestUrl;
+            }
+
+            @Override
+            public Locale getLocale()
+            {
+                return null;
+            }
+
+            @Override
+            public Charset getCharset()
+            {
+                return Charset.forName("UTF-8");
+            }
+
+            @Override
+            public Url getClientUrl()
+            {
+                return requestUrl;
+            }
+
+            @Override
+            public Object getContainerRequest()
+            {
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fiftyfive.wicket.BaseWicketTest;
+
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.util.tester.DummyHomePage;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class AccessLogTest extends BaseWicketTest
+{
+    private AccessLog log;
+    
+    @Before
+    public void addAccessLog()
+    {
+        // Register without starting the background thread, so the test can drain it
+        this.log = new AccessLog(4);
+        WebApplication app = (WebApplication) this.tester.getApplication();
+        app.getRequestCycleListeners().add(this.log);
+        app.getRequestCycleSettings().addResponseFilter(this.log);
+    }
+    
+    @Test
+    public void testRecordsPageRequest()
+    {
+        this.tester.startPage(DummyHomePage.class);
+        
+        List<String> lines = new ArrayList<String>();
+        Assert.assertEquals(1, this.log.drainTo(lines));
+        
+        String line = lines.get(0);
+        Assert.assertTrue(line, line.contains(" page=" + DummyHomePage.class.getName() + " "));
+        Assert.assertTrue(line, line.matches(".* ms=[0-9.]+ chars=([0-9]+|-) session=.*"));
+    }
+    
+    @Test
+    public void testDropsWhenFull()
+    {
+        for(int i=0; i<6; i++)
+        {
+            this.tester.startPage(DummyHomePage.class);
+        }
+        List<String> lines = new ArrayList<String>();
+        Assert.assertEquals(4, this.log.drainTo(lines));
+        Assert.assertEquals(2, this.log.getDroppedCount());
+        
+        this.tester.startPage(DummyHomePage.class);
+        Assert.assertEquals(1, this.log.drainTo(lines));
+    }
+    
+    @Test
+    public void testDiscardsWithoutFormattingWhenLoggerDisabled()
+    {
+        Logger logger = mock(Logger.class);
+        when(logger.isInfoEnabled()).thenReturn(false);
+        AccessLog quiet = new AccessLog(1, logger);
+        WebApplication app = (WebApplication) this.tester.getApplication();
+        app.getRequestCycleListeners().add(quiet);
+        
+        this.tester.startPage(DummyHomePage.class);
+        this.tester.startPage(DummyHomePage.class);
+        Assert.assertEquals(1, quiet.drainTo(null));
+        verify(logger, never()).info(anyString());
+        verify(logger).warn(anyString(), eq((Object) 1L));
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.List;
+
+import fiftyfive.wicket.BaseWicketTest;
+import fiftyfive.wicket.util.LoggingUtils;
+
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.util.tester.DummyHomePage;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+
+public class AllocationMetricsTest extends BaseWicketTest
+{
+    @Test
+    public void testAggregatesAllocationByPageClass()
+    {
+        AllocationMetrics metrics = new AllocationMetrics();
+        Assume.assumeTrue(metrics.isSupported());
+        metrics.install((WebApplication) this.tester.getApplication());
+        
+        this.tester.startPage(DummyHomePage.class);
+        this.tester.startPage(DummyHomePage.class);
+        
+        List<AllocationStat> top = metrics.getTopN(10);
+        Assert.assertEquals(1, top.size());
+        Assert.assertEquals("DummyHomePage", top.get(0).getDescription());
+        Assert.assertEquals(2, top.get(0).getCount());
+        Assert.assertTrue(top.get(0).getTotalBytes() > 0);
+        Assert.assertTrue(LoggingUtils.describeTopAllocators(3).startsWith("DummyHomePage "));
+    }
+}
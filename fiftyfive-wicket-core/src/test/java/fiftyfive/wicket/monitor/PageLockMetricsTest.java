@@ -0,0 +1,103 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import org.apache.wicket.page.IManageablePage;
+import org.apache.wicket.page.IPageManager;
+import org.apache.wicket.util.time.Duration;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class PageLockMetricsTest
+{
+    @Test
+    public void testRecordsWaitForExistingPage()
+    {
+        PageLockMetrics metrics = new PageLockMetrics();
+        IPageManager delegate = mock(IPageManager.class);
+        IManageablePage page = mock(IManageablePage.class);
+        when(delegate.getPage(1)).thenReturn(page);
+        IPageManager manager = metrics.track(delegate);
+        
+        metrics.onBeginRequest(null);
+        Assert.assertNull(metrics.getCurrentWait());
+        Assert.assertSame(page, manager.getPage(1));
+        Assert.assertNotNull(metrics.getCurrentWait());
+        metrics.onDetach(null);
+        
+        Assert.assertEquals(1, metrics.getHistograms().size());
+        LatencyHistogram h = metrics.getHistograms().values().iterator().next();
+        Assert.assertEquals("page=\"" + page.getClass().getName() + "\"", h.getLabel());
+        Assert.assertEquals(1, h.getCount());
+        
+        // Outside of a request nothing is recorded
+        manager.getPage(1);
+        Assert.assertEquals(1, h.getCount());
+    }
+    
+    @Test
+    public void testWaitExcludesLoadingThePage()
+    {
+        PageLockMetrics metrics = new PageLockMetrics();
+        IPageManager delegate = mock(IPageManager.class);
+        final IManageablePage page = mock(IManageablePage.class);
+        when(delegate.getPage(1)).thenAnswer(new Answer<IManageablePage>() {
+            public IManageablePage answer(InvocationOnMock invocation) throws Exception
+            {
+                // Stands in for a slow deserialization
+                Thread.sleep(200);
+                return page;
+            }
+        });
+        IPageManager manager = metrics.track(delegate);
+        
+        metrics.onBeginRequest(null);
+        Assert.assertSame(page, manager.getPage(1));
+        Assert.assertTrue(metrics.getCurrentWait().getMilliseconds() < 200);
+        metrics.onDetach(null);
+    }
+    
+    @Test
+    public void testFlagsSustainedQueueing()
+    {
+        PageLockMetrics metrics = new PageLockMetrics();
+        metrics.setQueueingThreshold(Duration.milliseconds(100), 3);
+        long slow = Duration.milliseconds(500).getMilliseconds() * 1000000;
+        long fast = 1000;
+        
+        metrics.recordSessionWait("a", slow, Object.class);
+        metrics.recordSessionWait("a", slow, Object.class);
+        metrics.recordSessionWait("b", slow, Object.class);
+        Assert.assertTrue(metrics.getQueueingSessions().isEmpty());
+        
+        metrics.recordSessionWait("a", slow, Object.class);
+        Assert.assertEquals(1, metrics.getQueueingSessions().size());
+        Assert.assertTrue(metrics.getQueueingSessions().contains("a"));
+        
+        metrics.recordSessionWait("a", fast, Object.class);
+        Assert.assertTrue(metrics.getQueueingSessions().isEmpty());
+        
+        StringBuilder text = new StringBuilder();
+        metrics.writeTextFormat(text);
+        Assert.assertTrue(text.indexOf("wicket_page_lock_queueing_sessions 0\n") >= 0);
+    }
+}
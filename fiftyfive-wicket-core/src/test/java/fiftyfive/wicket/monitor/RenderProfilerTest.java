@@ -0,0 +1,78 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import fiftyfive.wicket.BaseWicketTest;
+
+import org.apache.wicket.protocol.http.WebApplication;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class RenderProfilerTest extends BaseWicketTest
+{
+    @Test
+    public void testProfilesComponentsByPath()
+    {
+        RenderProfiler profiler = new RenderProfiler(1);
+        profiler.install((WebApplication) this.tester.getApplication());
+        
+        this.tester.startPage(RenderProfilePage.class);
+        this.tester.assertRenderedPage(RenderProfilePage.class);
+        
+        Map<String, RenderStat> stats = byKey(profiler);
+        Assert.assertEquals(1, stats.get("RenderProfilePage").getCount());
+        Assert.assertEquals(1, stats.get("RenderProfilePage > Label [sampled]").getCount());
+        
+        RenderStat page = stats.get("RenderProfilePage");
+        RenderStat label = stats.get("RenderProfilePage > Label [sampled]");
+        Assert.assertTrue(page.getTotalNanos() >= label.getTotalNanos());
+        Assert.assertTrue(page.getSelfNanos() <= page.getTotalNanos());
+        Assert.assertTrue(page.getSelfNanos() <= page.getTotalNanos() - label.getTotalNanos());
+        
+        // Profiling leaves no trace on the components themselves
+        Assert.assertTrue(this.tester.getLastRenderedPage().getBehaviors().isEmpty());
+        Assert.assertTrue(
+            this.tester.getLastRenderedPage().get("sampled").getBehaviors().isEmpty());
+    }
+    
+    @Test
+    public void testSamplesOneInN()
+    {
+        RenderProfiler profiler = new RenderProfiler(3);
+        profiler.install((WebApplication) this.tester.getApplication());
+        
+        for(int i=0; i<6; i++)
+        {
+            this.tester.startPage(RenderProfilePage.class);
+        }
+        Assert.assertEquals(2, profiler.getSampledRequestCount());
+        Assert.assertEquals(2, byKey(profiler).get("RenderProfilePage").getCount());
+    }
+    
+    private Map<String, RenderStat> byKey(RenderProfiler profiler)
+    {
+        Map<String, RenderStat> map = new HashMap<String, RenderStat>();
+        for(RenderStat stat : profiler.getTopN(RenderProfiler.MAX_KEYS))
+        {
+            map.put(stat.getKey(), stat);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import fiftyfive.wicket.BaseWicketTest;
+
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.util.tester.DummyHomePage;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class RequestMetricsTest extends BaseWicketTest
+{
+    private RequestMetrics metrics;
+    
+    @Before
+    public void installMetrics()
+    {
+        this.metrics = new RequestMetrics().setMountPath("metrics");
+        this.metrics.install((WebApplication) this.tester.getApplication());
+    }
+    
+    @Test
+    public void testRecordsLatencyByPageClass()
+    {
+        this.tester.startPage(DummyHomePage.class);
+        this.tester.startPage(DummyHomePage.class);
+        
+        LatencyHistogram h = this.metrics.getHistograms().get(
+            "page=\"" + DummyHomePage.class.getName() + "\"");
+        Assert.assertNotNull(h);
+        Assert.assertEquals(2, h.getCount());
+        Assert.assertEquals(0, h.getInFlight());
+        Assert.assertEquals(0, this.metrics.getInFlight());
+        Assert.assertSame(this.metrics, RequestMetrics.get());
+    }
+    
+    @Test
+    public void testRecordsExistingPageInstanceByPageClass()
+    {
+        DummyHomePage page = this.tester.startPage(DummyHomePage.class);
+        this.tester.executeUrl("wicket/page?" + page.getPageId());
+        
+        LatencyHistogram h = this.metrics.getHistograms().get(
+            "page=\"" + DummyHomePage.class.getName() + "\"");
+        Assert.assertNotNull(h);
+        Assert.assertEquals(2, h.getCount());
+        Assert.assertEquals(0, h.getInFlight());
+    }
+    
+    @Test
+    public void testMetricsResource()
+    {
+        this.tester.startPage(DummyHomePage.class);
+        this.tester.executeUrl("metrics");
+        
+        String text = this.tester.getLastResponseAsString();
+        String page = "page=\"" + DummyHomePage.class.getName() + "\"";
+        Assert.assertTrue(text.contains(
+            "wicket_request_duration_seconds_count{" + page + "} 1\n"));
+        Assert.assertTrue(text.contains(
+            "wicket_request_duration_seconds_bucket{" + page + ",le=\"+Inf\"} 1\n"));
+        Assert.assertTrue(text.contains(
+            "wicket_handler_requests_in_flight{handler=\"ResourceReferenceRequestHandler\"} 1"));
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import fiftyfive.wicket.BaseWicketTest;
+import fiftyfive.wicket.util.LoggingUtils;
+
+import org.apache.wicket.util.tester.DummyHomePage;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class SessionRegistryTest extends BaseWicketTest
+{
+    @Test
+    public void testRegistersBoundSession()
+    {
+        SessionRegistry registry = SessionRegistry.get();
+        Assert.assertNotNull(registry);
+        
+        this.tester.getSession().bind();
+        this.tester.startPage(DummyHomePage.class);
+        
+        String id = this.tester.getSession().getId();
+        Assert.assertNotNull(registry.getStartDate(id));
+        Assert.assertEquals(1, registry.getLiveSessionCount());
+        Assert.assertEquals("1 (1 peak)", LoggingUtils.describeActiveSessions());
+        
+        registry.unregister(id);
+        Assert.assertNull(registry.getStartDate(id));
+        Assert.assertEquals("0 (1 peak)", LoggingUtils.describeActiveSessions());
+    }
+    
+    @Test
+    public void testPeak()
+    {
+        SessionRegistry registry = new SessionRegistry();
+        registry.register("a", 1L);
+        registry.register("b", 2L);
+        registry.register("a", 3L);
+        registry.unregister("a");
+        registry.register("c", 4L);
+        
+        Assert.assertEquals(2, registry.getLiveSessionCount());
+        Assert.assertEquals(2, registry.getPeakSessionCount());
+        Assert.assertEquals(2L, registry.getStartDate("b").getTime());
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import org.apache.wicket.pageStore.IDataStore;
+import org.apache.wicket.util.lang.Bytes;
+import org.apache.wicket.util.time.Duration;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+
+public class SessionSizeTrackerTest
+{
+    @Test
+    public void testEstimateUsesLastPageWritten()
+    {
+        SessionSizeTracker tracker = new SessionSizeTracker(1, Duration.minutes(1));
+        IDataStore delegate = mock(IDataStore.class);
+        IDataStore store = tracker.track(delegate);
+        
+        Assert.assertNull(tracker.getEstimatedSize("abc"));
+        
+        byte[] first = new byte[4000];
+        byte[] second = new byte[60000];
+        store.storeData("abc", 1, first);
+        store.storeData("abc", 2, second);
+        verify(delegate).storeData("abc", 2, second);
+        
+        Assert.assertEquals(Bytes.bytes(60000), tracker.getEstimatedSize("abc"));
+        
+        long[] distribution = tracker.getSizeDistribution();
+        Assert.assertEquals(1, distribution[5]);  // 50-100 KB
+        
+        store.removeData("abc");
+        Assert.assertNull(tracker.getEstimatedSize("abc"));
+        Assert.assertEquals(0, tracker.getTrackedSessionCount());
+    }
+    
+    @Test
+    public void testIgnoresWritesAfterUnbind()
+    {
+        SessionSizeTracker tracker = new SessionSizeTracker(1, Duration.minutes(1));
+        IDataStore delegate = mock(IDataStore.class);
+        IDataStore store = tracker.track(delegate);
+        
+        store.storeData("abc", 1, new byte[4000]);
+        tracker.forget("abc");
+        
+        // A write still queued by the asynchronous page store when the session was unbound
+        byte[] late = new byte[5000];
+        store.storeData("abc", 2, late);
+        verify(delegate).storeData("abc", 2, late);
+        Assert.assertNull(tracker.getEstimatedSize("abc"));
+        Assert.assertEquals(0, tracker.getTrackedSessionCount());
+    }
+    
+    @Test
+    public void testZeroSampleRateCountsOnlyPageStore()
+    {
+        SessionSizeTracker tracker = new SessionSizeTracker(0, Duration.minutes(1));
+        IDataStore store = tracker.track(mock(IDataStore.class));
+        store.storeData("abc", 1, new byte[3000]);
+        
+        // Never samples, so doesn't even look for a session
+        tracker.onDetach(null);
+        Assert.assertEquals(Bytes.bytes(3000), tracker.getEstimatedSize("abc"));
+    }
+    
+    @Test
+    public void testWriteTextFormat()
+    {
+        SessionSizeTracker tracker = new SessionSizeTracker(1, Duration.minutes(1));
+        IDataStore store = tracker.track(mock(IDataStore.class));
+        store.storeData("abc", 1, new byte[100]);
+        store.storeData("def", 1, new byte[2000]);
+        
+        StringBuilder text = new StringBuilder();
+        tracker.writeTextFormat(text);
+        Assert.assertTrue(text.indexOf("wicket_session_size_bytes_bucket{le=\"1024\"} 1\n") >= 0);
+        Assert.assertTrue(text.indexOf("wicket_session_size_bytes_bucket{le=\"+Inf\"} 2\n") >= 0);
+        Assert.assertTrue(text.indexOf("wicket_session_size_bytes_sum 2100\n") >= 0);
+    }
+}
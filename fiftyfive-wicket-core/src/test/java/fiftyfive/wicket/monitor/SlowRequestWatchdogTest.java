@@ -0,0 +1,66 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.wicket.request.Url;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class SlowRequestWatchdogTest
+{
+    @Test
+    public void testFormatSamplesCollapsesIdenticalStacks()
+    {
+        StackTraceElement[] a = new StackTraceElement[] {
+            new StackTraceElement("com.example.Dao", "query", "Dao.java", 10),
+            new StackTraceElement("com.example.Page", "onBeforeRender", "Page.java", 20)
+        };
+        StackTraceElement[] b = new StackTraceElement[] {
+            new StackTraceElement("com.example.Page", "onBeforeRender", "Page.java", 21)
+        };
+        List<StackTraceElement[]> samples = new ArrayList<StackTraceElement[]>();
+        samples.add(a);
+        samples.add(a.clone());
+        samples.add(a.clone());
+        samples.add(b);
+        
+        String text = SlowRequestWatchdog.formatSamples(samples);
+        
+        Assert.assertTrue(text.contains("Sample 1-3 (identical):"));
+        Assert.assertTrue(text.contains("Sample 4:"));
+        Assert.assertEquals(1, text.split("Dao.query", -1).length - 1);
+    }
+    
+    @Test
+    public void testEndDoesNotReturnSamplesAlreadyReported()
+    {
+        SlowRequestWatchdog.InFlight req = new SlowRequestWatchdog.InFlight(
+            Thread.currentThread());
+        
+        req.begin(Url.parse("slow"));
+        Assert.assertNull(req.sample(req.start, 2));
+        Assert.assertEquals(1, req.end().size());
+        
+        req.begin(Url.parse("slower"));
+        Assert.assertNull(req.sample(req.start, 2));
+        Assert.assertEquals(2, req.sample(req.start, 2).size());
+        Assert.assertNull(req.end());
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.pagestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.wicket.util.lang.Bytes;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class SegmentDataStoreTest
+{
+    private File directory;
+    private SegmentDataStore store;
+    
+    @Before
+    public void createStore() throws IOException
+    {
+        this.directory = File.createTempFile("segments", "");
+        this.directory.delete();
+        // Four segments of 1K each
+        this.store = new SegmentDataStore(this.directory, Bytes.kilobytes(4), Bytes.kilobytes(1));
+    }
+    
+    @After
+    public void destroyStore()
+    {
+        this.store.destroy();
+        this.directory.delete();
+    }
+    
+    @Test
+    public void testStoreAndGet()
+    {
+        this.store.storeData("s1", 1, page(100, 1));
+        this.store.storeData("s1", 2, page(200, 2));
+        this.store.storeData("s2", 1, page(300, 3));
+        
+        Assert.assertArrayEquals(page(100, 1), this.store.getData("s1", 1));
+        Assert.assertArrayEquals(page(200, 2), this.store.getData("s1", 2));
+        Assert.assertArrayEquals(page(300, 3), this.store.getData("s2", 1));
+        Assert.assertNull(this.store.getData("s2", 2));
+        Assert.assertNull(this.store.getData("s3", 1));
+        Assert.assertEquals(600, this.store.getLiveSize().bytes());
+        Assert.assertEquals(2, this.store.getSessionCount());
+    }
+    
+    @Test
+    public void testReplaceAndRemove()
+    {
+        this.store.storeData("s1", 1, page(100, 1));
+        this.store.storeData("s1", 1, page(150, 2));
+        Assert.assertArrayEquals(page(150, 2), this.store.getData("s1", 1));
+        Assert.assertEquals(150, this.store.getLiveSize().bytes());
+        
+        this.store.storeData("s1", 2, page(50, 3));
+        this.store.removeData("s1", 1);
+        Assert.assertNull(this.store.getData("s1", 1));
+        Assert.assertEquals(50, this.store.getLiveSize().bytes());
+        
+        this.store.removeData("s1");
+        Assert.assertNull(this.store.getData("s1", 2));
+        Assert.assertEquals(0, this.store.getLiveSize().bytes());
+        Assert.assertEquals(0, this.store.getSessionCount());
+    }
+    
+    @Test
+    public void testOversizedPageIsNotStored()
+    {
+        this.store.storeData("s1", 1, page(2000, 1));
+        Assert.assertNull(this.store.getData("s1", 1));
+    }
+    
+    @Test
+    public void testOldestSegmentIsEvictedWhenFull()
+    {
+        // Each page fills most of a segment, so every store uses a new one
+        for(int i=0; i<5; i++)
+        {
+            this.store.storeData("s1", i, page(800, i));
+        }
+        Assert.assertNull(this.store.getData("s1", 0));
+        for(int i=1; i<5; i++)
+        {
+            Assert.assertArrayEquals(page(800, i), this.store.getData("s1", i));
+        }
+        Assert.assertTrue(this.store.getLiveSize().bytes() <= Bytes.kilobytes(4).bytes());
+    }
+    
+    @Test
+    public void testSparseSegmentIsCompacted() throws InterruptedException
+    {
+        for(int i=0; i<10; i++)
+        {
+            this.store.storeData("s1", i, page(100, i));
+        }
+        this.store.storeData("s2", 1, page(800, 42));
+        Assert.assertEquals(2, this.store.getFreeSegmentCount());
+        
+        // Leave only one small page in the first, now sealed, segment
+        for(int i=1; i<10; i++)
+        {
+            this.store.removeData("s1", i);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while(this.store.getFreeSegmentCount() < 3 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(3, this.store.getFreeSegmentCount());
+        Assert.assertArrayEquals(page(100, 0), this.store.getData("s1", 0));
+        Assert.assertArrayEquals(page(800, 42), this.store.getData("s2", 1));
+        Assert.assertEquals(900, this.store.getLiveSize().bytes());
+    }
+    
+    @Test
+    public void testCompactionNeverEvictsNewestSegment() throws InterruptedException
+    {
+        this.store.destroy();
+        // Two segments of 1K each
+        this.store = new SegmentDataStore(this.directory, Bytes.kilobytes(2), Bytes.kilobytes(1));
+        this.store.storeData("s1", 0, page(100, 0));
+        this.store.storeData("s1", 1, page(800, 1));
+        this.store.storeData("s2", 1, page(950, 42));
+        Assert.assertEquals(0, this.store.getFreeSegmentCount());
+        
+        // The surviving page doesn't fit in the active segment, and there is no other segment
+        // to evict, so the compaction has to be abandoned
+        this.store.removeData("s1", 1);
+        this.store.awaitCompaction();
+        Assert.assertArrayEquals(page(100, 0), this.store.getData("s1", 0));
+        Assert.assertArrayEquals(page(950, 42), this.store.getData("s2", 1));
+        Assert.assertEquals(1050, this.store.getLiveSize().bytes());
+    }
+    
+    @Test
+    public void testCompactionNeverEvictsOtherSegments() throws InterruptedException
+    {
+        // Fill all four segments, leaving no room in the active one
+        this.store.storeData("s1", 0, page(100, 0));
+        this.store.storeData("s1", 1, page(800, 1));
+        for(int i=1; i<=3; i++)
+        {
+            this.store.storeData("s2", i, page(950, i));
+        }
+        Assert.assertEquals(0, this.store.getFreeSegmentCount());
+        
+        // The first segment is now sparse, but its surviving page only fits if another
+        // segment is evicted, so the compactor has to stop
+        this.store.removeData("s1", 1);
+        this.store.awaitCompaction();
+        Assert.assertEquals(0, this.store.getFreeSegmentCount());
+        Assert.assertArrayEquals(page(100, 0), this.store.getData("s1", 0));
+        for(int i=1; i<=3; i++)
+        {
+            Assert.assertArrayEquals(page(950, i), this.store.getData("s2", i));
+        }
+        Assert.assertEquals(2950, this.store.getLiveSize().bytes());
+    }
+    
+    private static byte[] page(int size, int fill)
+    {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) fill);
+        return data;
+    }
+}
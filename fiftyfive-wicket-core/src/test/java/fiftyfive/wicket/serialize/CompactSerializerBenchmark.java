@@ -0,0 +1,159 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.serialize;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import fiftyfive.wicket.test.PageWithInlineMarkup;
+
+import org.apache.wicket.Page;
+import org.apache.wicket.markup.html.basic.Label;
+import org.apache.wicket.markup.html.link.Link;
+import org.apache.wicket.markup.html.list.ListItem;
+import org.apache.wicket.markup.html.list.ListView;
+import org.apache.wicket.model.CompoundPropertyModel;
+import org.apache.wicket.model.PropertyModel;
+import org.apache.wicket.serialize.ISerializer;
+import org.apache.wicket.serialize.java.JavaSerializer;
+import org.apache.wicket.util.tester.WicketTester;
+
+
+/**
+ * Compares the throughput and output size of {@link CompactSerializer} with Wicket's
+ * {@link JavaSerializer} on a page resembling a typical order history screen: a list view
+ * of rows, each with several labels bound by property models and a link. Not run as part
+ * of the build; run the {@code main} method directly, optionally passing the number of rows
+ * and iterations.
+ */
+public class CompactSerializerBenchmark
+{
+    public static void main(String[] args)
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        
+        WicketTester tester = new WicketTester();
+        try
+        {
+            tester.startPage(newOrderHistoryPage(rows));
+            Page page = tester.getLastRenderedPage();
+            String key = tester.getApplication().getApplicationKey();
+            
+            run("JavaSerializer", new JavaSerializer(key), page, iterations);
+            run("CompactSerializer", new CompactSerializer(key), page, iterations);
+        }
+        finally
+        {
+            tester.destroy();
+        }
+    }
+    
+    /**
+     * Builds the benchmark page with the given number of rows. It must be rendered before
+     * it is serialized, so that its list items exist.
+     */
+    static Page newOrderHistoryPage(int rows)
+    {
+        List<Order> orders = new ArrayList<Order>();
+        for(int i=0; i<rows; i++)
+        {
+            orders.add(new Order(i));
+        }
+        PageWithInlineMarkup page = new PageWithInlineMarkup(
+            "<html><body><h1 wicket:id=\"title\"></h1><table>" +
+            "<tr wicket:id=\"orders\">" +
+            "<td wicket:id=\"number\"></td><td wicket:id=\"customer\"></td>" +
+            "<td wicket:id=\"placed\"></td><td wicket:id=\"total\"></td>" +
+            "<td><a wicket:id=\"cancel\">cancel</a></td>" +
+            "</tr></table></body></html>"
+        );
+        page.add(new Label("title", "Order History"));
+        page.add(new ListView<Order>("orders", orders) {
+            @Override
+            protected void populateItem(final ListItem<Order> item)
+            {
+                item.setModel(new CompoundPropertyModel<Order>(item.getModel()));
+                item.add(new Label("number"));
+                item.add(new Label("customer", new PropertyModel<String>(
+                    item.getModel(), "customer")));
+                item.add(new Label("placed"));
+                item.add(new Label("total"));
+                item.add(new Link<Order>("cancel", item.getModel()) {
+                    @Override
+                    public void onClick()
+                    {
+                        getModelObject().cancelled = true;
+                    }
+                });
+            }
+        });
+        return page;
+    }
+    
+    private static void run(String name, ISerializer serializer, Page page, int iterations)
+    {
+        byte[] data = null;
+        
+        // Warm up
+        for(int i=0; i<iterations / 10 + 1; i++)
+        {
+            data = serializer.serialize(page);
+            serializer.deserialize(data);
+        }
+        
+        long start = System.nanoTime();
+        for(int i=0; i<iterations; i++)
+        {
+            data = serializer.serialize(page);
+        }
+        long writeNanos = System.nanoTime() - start;
+        
+        start = System.nanoTime();
+        for(int i=0; i<iterations; i++)
+        {
+            serializer.deserialize(data);
+        }
+        long readNanos = System.nanoTime() - start;
+        
+        System.out.println(String.format(
+            "%-18s %8d bytes %10.0f writes/s %10.0f reads/s",
+            name,
+            data.length,
+            iterations / (writeNanos / 1e9),
+            iterations / (readNanos / 1e9)
+        ));
+    }
+    
+    static class Order implements Serializable
+    {
+        int number;
+        String customer;
+        Date placed;
+        double total;
+        boolean cancelled;
+        
+        Order(int number)
+        {
+            this.number = number;
+            this.customer = "Customer " + number;
+            this.placed = new Date(1300000000000L + number * 86400000L);
+            this.total = number * 9.99;
+        }
+    }
+}
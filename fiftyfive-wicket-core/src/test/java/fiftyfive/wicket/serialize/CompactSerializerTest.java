@@ -0,0 +1,132 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.serialize;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import fiftyfive.wicket.BaseWicketTest;
+
+import org.apache.wicket.Page;
+import org.apache.wicket.markup.html.list.ListView;
+import org.apache.wicket.serialize.java.JavaSerializer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class CompactSerializerTest extends BaseWicketTest
+{
+    private String key;
+    private CompactSerializer serializer;
+    
+    @Before
+    public void createSerializer()
+    {
+        this.key = this.tester.getApplication().getApplicationKey();
+        this.serializer = new CompactSerializer(this.key);
+    }
+    
+    @Test
+    public void testPageRoundTrip()
+    {
+        this.tester.startPage(CompactSerializerBenchmark.newOrderHistoryPage(20));
+        Page page = this.tester.getLastRenderedPage();
+        
+        Page copy = (Page) this.serializer.deserialize(this.serializer.serialize(page));
+        Assert.assertNotSame(page, copy);
+        Assert.assertEquals(page.getClass(), copy.getClass());
+        
+        ListView<?> orders = (ListView<?>) copy.get("orders");
+        Assert.assertEquals(20, orders.size());
+        Assert.assertSame(copy, orders.getParent());
+        Assert.assertEquals("Customer 7", copy.get("orders:7:customer").getDefaultModelObject());
+    }
+    
+    @Test
+    public void testSmallerThanJavaSerialization()
+    {
+        this.tester.startPage(CompactSerializerBenchmark.newOrderHistoryPage(20));
+        Page page = this.tester.getLastRenderedPage();
+        
+        int compact = this.serializer.serialize(page).length;
+        int standard = new JavaSerializer(this.key).serialize(page).length;
+        Assert.assertTrue(compact + " vs " + standard, compact < standard);
+    }
+    
+    @Test
+    public void testCustomSerializationAndCollections()
+    {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("custom", new Custom("hello"));
+        map.put("numbers", new int[] { 1, 2, 3 });
+        
+        Map<?, ?> copy = (Map<?, ?>) this.serializer.deserialize(
+            this.serializer.serialize(map));
+        Assert.assertEquals("hello", ((Custom) copy.get("custom")).value);
+        Assert.assertArrayEquals(new int[] { 1, 2, 3 }, (int[]) copy.get("numbers"));
+    }
+    
+    @Test
+    public void testReadsJavaSerializedData()
+    {
+        byte[] data = new JavaSerializer(this.key).serialize(new Custom("legacy"));
+        Assert.assertEquals("legacy", ((Custom) this.serializer.deserialize(data)).value);
+    }
+    
+    @Test
+    public void testNotSerializableIsExplained()
+    {
+        Holder holder = new Holder();
+        Assert.assertNull(this.serializer.serialize(holder));
+        
+        Exception e = CompactSerializer.explain(
+            holder, new NotSerializableException(Object.class.getName()));
+        Assert.assertTrue(e.getMessage(), e.getMessage().contains("culprit"));
+    }
+    
+    static class Holder implements Serializable
+    {
+        Object culprit = new Object();
+    }
+    
+    static class Custom implements Serializable
+    {
+        transient String value;
+        
+        Custom(String value)
+        {
+            this.value = value;
+        }
+        
+        private void writeObject(ObjectOutputStream out) throws IOException
+        {
+            out.defaultWriteObject();
+            out.writeUTF(this.value);
+        }
+        
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+        {
+            in.defaultReadObject();
+            this.value = in.readUTF();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.util;
+
+import org.apache.wicket.util.time.Duration;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+
+public class ExceptionDumpThrottleTest
+{
+    @Test
+    public void testFingerprintIgnoresMessage()
+    {
+        Assert.assertEquals(
+            ExceptionDumpThrottle.fingerprint(fail("one")),
+            ExceptionDumpThrottle.fingerprint(fail("two")));
+        Assert.assertFalse(
+            ExceptionDumpThrottle.fingerprint(fail("one")).equals(
+            ExceptionDumpThrottle.fingerprint(new IllegalStateException("one"))));
+    }
+    
+    @Test
+    public void testRepeatsWithinWindowAreSuppressed()
+    {
+        // Not started, so dumps are written synchronously
+        ExceptionDumpThrottle throttle = new ExceptionDumpThrottle(Duration.minutes(1));
+        Logger logger = mock(Logger.class);
+        
+        for(int i=0; i<10; i++)
+        {
+            throttle.logException(logger, fail("repeated"));
+        }
+        verify(logger, times(1)).error(anyString());
+        
+        throttle.logException(logger, new IllegalStateException("different"));
+        verify(logger, times(2)).error(anyString());
+    }
+    
+    private static RuntimeException fail(String message)
+    {
+        return new UnsupportedOperationException(message);
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fiftyfive.wicket.BaseWicketTest;
+import fiftyfive.wicket.FoundationApplication;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.RuntimeConfigurationType;
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.util.tester.DummyHomePage;
+import org.apache.wicket.util.tester.WicketTester;
+import org.apache.wicket.util.time.Duration;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class InitPhasesTest extends BaseWicketTest
+{
+    @Test
+    public void testFoundationApplicationRecordsTimings()
+    {
+        FoundationApplication app = (FoundationApplication) this.tester.getApplication();
+        Map<String, Duration> timings = app.getStartupTimings();
+        Assert.assertTrue(timings.containsKey("initVersionInformation"));
+        Assert.assertTrue(timings.containsKey("initWarmup"));
+        Assert.assertTrue(timings.containsKey("init"));
+    }
+    
+    @Test
+    public void testFoundationApplicationTimesWarmupLast()
+    {
+        WicketTester warm = new WicketTester(new FoundationApplication() {
+            public Class getHomePage()
+            {
+                return DummyHomePage.class;
+            }
+            @Override public RuntimeConfigurationType getConfigurationType()
+            {
+                return RuntimeConfigurationType.DEPLOYMENT;
+            }
+            @Override protected int getWarmupThreads()
+            {
+                return 1;
+            }
+            @Override protected void init()
+            {
+                super.init();
+                addInitPhase("custom", new Runnable() {
+                    public void run()
+                    {
+                    }
+                });
+            }
+        });
+        try
+        {
+            FoundationApplication app = (FoundationApplication) warm.getApplication();
+            List<String> names = new ArrayList<String>(app.getStartupTimings().keySet());
+            Assert.assertEquals("warmup", names.get(names.size() - 1));
+            Assert.assertTrue(names.indexOf("custom") < names.indexOf("warmup"));
+            Assert.assertFalse(StartupWarmup.get().getPhaseTimings().isEmpty());
+        }
+        finally
+        {
+            warm.destroy();
+        }
+    }
+    
+    @Test
+    public void testEndRecordsPhasesInOrder()
+    {
+        InitPhases phases = new InitPhases();
+        phases.end("first");
+        phases.end("second");
+        Assert.assertArrayEquals(
+            new Object[] { "first", "second" }, phases.getTimings().keySet().toArray());
+        Assert.assertTrue(phases.toString().contains("first "));
+    }
+    
+    @Test
+    public void testConcurrentPhasesRunInParallel()
+    {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicInteger met = new AtomicInteger();
+        final AtomicInteger bound = new AtomicInteger();
+        Runnable waitForOther = new Runnable() {
+            public void run()
+            {
+                if(Application.exists())
+                {
+                    bound.incrementAndGet();
+                }
+                latch.countDown();
+                try
+                {
+                    if(latch.await(5, TimeUnit.SECONDS))
+                    {
+                        met.incrementAndGet();
+                    }
+                }
+                catch(InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final AtomicInteger sequential = new AtomicInteger();
+        InitPhases phases = new InitPhases();
+        phases.addConcurrent("a", waitForOther);
+        phases.addConcurrent("b", waitForOther);
+        phases.add("c", new Runnable() {
+            public void run()
+            {
+                sequential.incrementAndGet();
+            }
+        });
+        phases.run(this.tester.getApplication());
+        
+        Assert.assertEquals(2, met.get());
+        Assert.assertEquals(2, bound.get());
+        Assert.assertEquals(1, sequential.get());
+        Assert.assertTrue(phases.getTimings().keySet().containsAll(
+            Arrays.asList("a", "b", "c")));
+        Assert.assertTrue(phases.toString().contains("a ") &&
+                          phases.toString().contains("(concurrent)"));
+    }
+    
+    @Test
+    public void testFailureIsRethrownAfterAllPhasesFinish()
+    {
+        final AtomicInteger ran = new AtomicInteger();
+        InitPhases phases = new InitPhases();
+        phases.addConcurrent("fails", new Runnable() {
+            public void run()
+            {
+                throw new IllegalStateException("broken");
+            }
+        });
+        phases.add("succeeds", new Runnable() {
+            public void run()
+            {
+                ran.incrementAndGet();
+            }
+        });
+        try
+        {
+            phases.run(this.tester.getApplication());
+            Assert.fail("Expected failure");
+        }
+        catch(WicketRuntimeException expected)
+        {
+            Assert.assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(1, ran.get());
+    }
+    
+    @Test(expected=IllegalStateException.class)
+    public void testCannotAddAfterRun()
+    {
+        InitPhases phases = new InitPhases();
+        phases.run(this.tester.getApplication());
+        phases.add("late", new Runnable() {
+            public void run()
+            {
+            }
+        });
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.util;
+
+import fiftyfive.wicket.test.PageWithInlineMarkup;
+import fiftyfive.wicket.test.WicketTestUtils;
+
+import org.apache.wicket.markup.html.basic.Label;
+import org.apache.wicket.model.Model;
+import org.apache.wicket.util.lang.Bytes;
+import org.apache.wicket.util.tester.WicketTester;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PageSizeAnalyzerTest
+{
+    private WicketTester tester;
+    
+    @Before
+    public void renderPage()
+    {
+        this.tester = new WicketTester();
+        PageWithInlineMarkup page = new PageWithInlineMarkup(
+            "<html><body><span wicket:id=\"big\"></span>" +
+            "<span wicket:id=\"small\"></span></body></html>"
+        );
+        page.add(new Label("big", Model.of(new String(new char[20000]).replace('\0', 'x'))));
+        page.add(new Label("small", "hi"));
+        this.tester.startPage(page);
+    }
+    
+    @Test
+    public void testAttributesBytesToComponents()
+    {
+        PageSizeReport report = new PageSizeAnalyzer().analyze(
+            this.tester.getLastRenderedPage());
+        Assert.assertTrue(report.getTotalSize().bytes() > 20000);
+        Assert.assertEquals(3, report.getContributors().size());
+        
+        PageSizeReport.Contributor largest = report.getContributors().get(0);
+        Assert.assertEquals("big", largest.getPath());
+        Assert.assertEquals(Model.class, largest.getModelClass());
+        Assert.assertTrue(largest.getModelBytes() > 20000);
+        
+        // The page's own size excludes its children
+        for(PageSizeReport.Contributor c : report.getContributors())
+        {
+            if(c.getPath().length() == 0)
+            {
+                Assert.assertTrue(c.getBytes() < 20000);
+            }
+        }
+        Assert.assertEquals(
+            Model.class.getName(),
+            report.getModelClassBytes().keySet().iterator().next());
+    }
+    
+    @Test
+    public void testTotalMatchesApplicationSerializer()
+    {
+        PageSizeReport report = new PageSizeAnalyzer().analyze(
+            this.tester.getLastRenderedPage());
+        Assert.assertEquals(
+            WicketTestUtils.assertPageSizeBelow(this.tester, Bytes.megabytes(1)),
+            report.getTotalSize());
+        Assert.assertTrue(report.describe(10).contains("Label [big] (Model)"));
+    }
+    
+    @Test
+    public void testAssertPageSizeBelow()
+    {
+        try
+        {
+            WicketTestUtils.assertPageSizeBelow(this.tester, Bytes.kilobytes(10));
+        }
+        catch(AssertionError expected)
+        {
+            Assert.assertTrue(expected.getMessage().contains("exceeds size budget"));
+            return;
+        }
+        Assert.fail("Expected page to exceed its budget");
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fiftyfive.wicket.BaseWicketTest;
+import fiftyfive.wicket.css.InternetExplorerCssTestPage;
+import fiftyfive.wicket.mapper.PatternMountedMapper;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.markup.MarkupFactory;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class StartupWarmupTest extends BaseWicketTest
+{
+    @Test
+    public void testWarmUpLoadsMountedAndScannedMarkup()
+    {
+        WebApplication app = this.tester.getApplication();
+        app.mount(new PatternMountedMapper("shortcuts", ShortcutsTestPage.class));
+        
+        final AtomicInteger ran = new AtomicInteger();
+        StartupWarmup warmup = new StartupWarmup(2).addPackage("fiftyfive.wicket.css");
+        warmup.addTask("custom", new Runnable() {
+            public void run()
+            {
+                if(Application.exists())
+                {
+                    ran.incrementAndGet();
+                }
+            }
+        });
+        warmup.warmUp(app);
+        
+        Assert.assertTrue(warmup.getMarkupClasses().contains(ShortcutsTestPage.class));
+        Assert.assertTrue(warmup.getMarkupClasses().contains(InternetExplorerCssTestPage.class));
+        Assert.assertTrue(MarkupFactory.get().getMarkupCache().size() > 0);
+        Assert.assertEquals(1, ran.get());
+        Assert.assertArrayEquals(
+            new Object[] { "discovery", "markup", "resources", "custom" },
+            warmup.getPhaseTimings().keySet().toArray());
+    }
+    
+    @Test
+    public void testResolveMarkupClass()
+    {
+        ClassLoader loader = getClass().getClassLoader();
+        Assert.assertEquals(
+            ShortcutsTestPage.class,
+            StartupWarmup.resolveMarkupClass(
+                loader, "fiftyfive/wicket/util/ShortcutsTestPage.html"));
+        Assert.assertEquals(
+            ShortcutsTestPage.class,
+            StartupWarmup.resolveMarkupClass(
+                loader, "fiftyfive/wicket/util/ShortcutsTestPage_fr_CA.html"));
+        Assert.assertNull(StartupWarmup.resolveMarkupClass(
+            loader, "fiftyfive/wicket/util/ShortcutsTestPage-expected.html"));
+        Assert.assertNull(StartupWarmup.resolveMarkupClass(
+            loader, "fiftyfive/wicket/util/HtmlUtilsTest.html"));
+    }
+}
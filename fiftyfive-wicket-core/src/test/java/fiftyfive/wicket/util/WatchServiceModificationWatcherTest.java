@@ -0,0 +1,136 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.util;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.wicket.util.file.File;
+import org.apache.wicket.util.listener.IChangeListener;
+import org.apache.wicket.util.resource.FileResourceStream;
+import org.apache.wicket.util.time.Duration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class WatchServiceModificationWatcherTest
+{
+    private java.io.File directory;
+    private WatchServiceModificationWatcher watcher;
+    
+    @Before
+    public void createWatcher() throws IOException
+    {
+        Assume.assumeTrue(WatchServiceModificationWatcher.isAvailable());
+        this.directory = java.io.File.createTempFile("watch", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+        this.watcher = new WatchServiceModificationWatcher();
+    }
+    
+    @After
+    public void destroyWatcher()
+    {
+        if(this.watcher != null)
+        {
+            this.watcher.destroy();
+        }
+        if(this.directory != null)
+        {
+            for(java.io.File f : this.directory.listFiles())
+            {
+                f.delete();
+            }
+            this.directory.delete();
+        }
+    }
+    
+    @Test
+    public void testOnlyChangedFileIsNotified() throws Exception
+    {
+        File changed = write("changed.html", "<p>before</p>");
+        File untouched = write("untouched.html", "<p>same</p>");
+        
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger untouchedCount = new AtomicInteger();
+        this.watcher.add(changed, new IChangeListener() {
+            public void onChange()
+            {
+                latch.countDown();
+            }
+        });
+        this.watcher.add(new FileResourceStream(untouched), new IChangeListener() {
+            public void onChange()
+            {
+                untouchedCount.incrementAndGet();
+            }
+        });
+        Assert.assertEquals(2, this.watcher.getEntries().size());
+        this.watcher.start(Duration.milliseconds(100));
+        
+        write("changed.html", "<p>after</p>");
+        changed.setLastModified(System.currentTimeMillis() + 5000);
+        
+        Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(0, untouchedCount.get());
+    }
+    
+    @Test
+    public void testGetFile() throws IOException
+    {
+        File file = write("page.html", "<p>page</p>");
+        Assert.assertEquals(
+            file.getAbsoluteFile(),
+            WatchServiceModificationWatcher.getFile(new FileResourceStream(file)));
+        Assert.assertEquals(file.getAbsoluteFile(), WatchServiceModificationWatcher.getFile(file));
+    }
+    
+    @Test
+    public void testRemove() throws IOException
+    {
+        File file = write("page.html", "<p>page</p>");
+        IChangeListener listener = new IChangeListener() {
+            public void onChange()
+            {
+            }
+        };
+        Assert.assertTrue(this.watcher.add(file, listener));
+        Assert.assertFalse(this.watcher.add(file, listener));
+        Assert.assertSame(file, this.watcher.remove(file));
+        Assert.assertTrue(this.watcher.getEntries().isEmpty());
+    }
+    
+    private File write(String name, String content) throws IOException
+    {
+        File file = new File(this.directory, name);
+        FileWriter writer = new FileWriter(file);
+        try
+        {
+            writer.write(content);
+        }
+        finally
+        {
+            writer.close();
+        }
+        return file;
+    }
+}
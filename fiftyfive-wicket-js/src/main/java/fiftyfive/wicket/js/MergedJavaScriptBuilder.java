@@ -19,6 +19,7 @@ import fiftyfive.wicket.js.JavaScriptDependencySettings;
 import fiftyfive.wicket.js.locator.DependencyCollection;
 import fiftyfive.wicket.js.locator.JavaScriptDependencyLocator;
 import fiftyfive.wicket.resource.MergedResourceBuilder;
+import fiftyfive.wicket.util.StartupWarmup;
 
 import org.apache.wicket.Component;
 import org.apache.wicket.ajax.WicketAjaxJQueryResourceReference;
@@ -188,14 +189,29 @@ public class MergedJavaScriptBuilder extends MergedResourceBuilder
     
     /**
      * {@inheritDoc}
+     * <p>
+     * If a {@link StartupWarmup} is installed, this also adds a {@code javascript} task for
+     * each script, which resolves that script's own dependencies so that the traversal cache
+     * is already populated when a component first depends on it.
      */
     @Override
     protected void assertRequiredOptionsAndFreeze()
     {
-        for(ResourceReference ref : this.deps)
+        StartupWarmup warmup = StartupWarmup.get();
+        for(final ResourceReference ref : this.deps)
         {
             LOGGER.debug("Added script to merged builder: {}", ref);
             add(ref);
+            if(warmup != null)
+            {
+                warmup.addTask("javascript", new Runnable() {
+                    public void run()
+                    {
+                        getDependencyLocator().findResourceScripts(
+                            ref.getScope(), ref.getName(), new DependencyCollection());
+                    }
+                });
+            }
         }
         super.assertRequiredOptionsAndFreeze();
     }
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.shiro;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.subject.Subject;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.IApplicationListener;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Runs Shiro {@link Subject#login Subject.login()} on a small, dedicated pool of threads
+ * rather than on the servlet thread. If your realm uses expensive password hashing, a burst of
+ * logins can otherwise tie up every container thread and starve ordinary page views. With a
+ * {@code LoginExecutor} installed, at most {@code threads} logins run at once and at most
+ * {@code queueSize} wait their turn. A login that can't be queued, or that is not picked up by
+ * a worker within the timeout, is rejected with a {@link LoginRejectedException}, which
+ * {@link fiftyfive.wicket.shiro.markup.AbstractLoginForm AbstractLoginForm} reports to the user
+ * as a "please try again" message. Login storms therefore degrade only the login path.
+ * <p>
+ * A login that has already started is always waited for, even past the timeout. A successful
+ * login binds the session and may write the remember-me cookie, and it must not do so after the
+ * request has been returned to the container.
+ * <pre class="example">
+ * public class MyApplication extends WebApplication
+ * {
+ *     &#064;Override
+ *     protected void init()
+ *     {
+ *         super.init();
+ *         new ShiroWicketPlugin().install(this);
+ *         new LoginExecutor(4, 100, Duration.seconds(10)).install(this);
+ *     }
+ * }</pre>
+ * The worker threads are shut down when the application is destroyed.
+ *
+ * @since 4.0
+ */
+public class LoginExecutor
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoginExecutor.class);
+
+    private static final MetaDataKey<LoginExecutor> EXECUTOR_KEY =
+        new MetaDataKey<LoginExecutor>() {};
+
+    /**
+     * Returns the {@code LoginExecutor} that has been installed in the current Wicket
+     * application, or {@code null} if there is none, in which case logins should be performed
+     * on the calling thread.
+     */
+    public static LoginExecutor get()
+    {
+        Application app = Application.exists() ? Application.get() : null;
+        return null == app ? null : app.getMetaData(EXECUTOR_KEY);
+    }
+
+
+    private final ThreadPoolExecutor executor;
+    private final Duration timeout;
+
+    /**
+     * @param threads The maximum number of logins that may run concurrently
+     * @param queueSize The maximum number of logins that may wait for a free thread
+     * @param timeout How long a request will wait for its login to complete, including time
+     *                spent in the queue
+     */
+    public LoginExecutor(int threads, int queueSize, Duration timeout)
+    {
+        Args.isTrue(threads > 0, "threads must be greater than zero");
+        Args.isTrue(queueSize > 0, "queueSize must be greater than zero");
+        Args.notNull(timeout, "timeout");
+
+        this.timeout = timeout;
+        this.executor = new ThreadPoolExecutor(
+            threads, threads,
+            0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize),
+            new LoginThreadFactory(),
+            new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
+
+    /**
+     * Registers this executor with the application so that {@link #get} will find it, and
+     * arranges for its threads to be shut down when the application is destroyed.
+     */
+    public void install(Application app)
+    {
+        Args.notNull(app, "app");
+        app.setMetaData(EXECUTOR_KEY, this);
+        app.getApplicationListeners().add(new IApplicationListener() {
+            public void onAfterInitialized(Application application)
+            {
+            }
+            public void onBeforeDestroyed(Application application)
+            {
+                shutdown();
+            }
+        });
+    }
+
+    /**
+     * Performs {@code subject.login(token)} on one of the worker threads, with the subject
+     * bound to that thread for the duration of the call, and waits for it to complete.
+     *
+     * @throws LoginRejectedException if the queue is full, or if the timeout elapses or the
+     *                                 calling thread is interrupted before the login has started
+     * @throws AuthenticationException if the login itself failed
+     */
+    public void login(final Subject subject, final AuthenticationToken token)
+        throws AuthenticationException
+    {
+        // Claimed either by the worker, to start the login, or by this thread, to abandon it
+        final AtomicBoolean claimed = new AtomicBoolean();
+        Future<Void> future;
+        try
+        {
+            future = this.executor.submit(subject.associateWith(new Callable<Void>() {
+                public Void call() throws Exception
+                {
+                    if(claimed.compareAndSet(false, true))
+                    {
+                        subject.login(token);
+                    }
+                    return null;
+                }
+            }));
+        }
+        catch(RejectedExecutionException ree)
+        {
+            LOGGER.warn("Login rejected; all {} login threads busy and queue full",
+                        this.executor.getMaximumPoolSize());
+            throw new LoginRejectedException("Login queue is full", ree);
+        }
+
+        try
+        {
+            future.get(this.timeout.getMilliseconds(), TimeUnit.MILLISECONDS);
+            return;
+        }
+        catch(TimeoutException te)
+        {
+            if(claimed.compareAndSet(false, true))
+            {
+                future.cancel(false);
+                LOGGER.warn("Login rejected; not started within {}", this.timeout);
+                throw new LoginRejectedException("Login timed out", te);
+            }
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            if(claimed.compareAndSet(false, true))
+            {
+                future.cancel(false);
+                throw new LoginRejectedException("Interrupted while waiting for login", ie);
+            }
+        }
+        catch(ExecutionException ee)
+        {
+            throw unwrap(ee);
+        }
+        
+        // The login is already running on the worker, so wait for it to commit
+        awaitStarted(future);
+    }
+
+    /**
+     * Waits, without a timeout and ignoring interrupts, for a login that has already started.
+     * The interrupt status of the calling thread is preserved.
+     */
+    private void awaitStarted(Future<Void> future)
+    {
+        boolean interrupted = false;
+        try
+        {
+            while(true)
+            {
+                try
+                {
+                    future.get();
+                    return;
+                }
+                catch(InterruptedException ie)
+                {
+                    interrupted = true;
+                }
+                catch(ExecutionException ee)
+                {
+                    throw unwrap(ee);
+                }
+            }
+        }
+        finally
+        {
+            if(interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the exception that caused the login to fail, as an unchecked exception.
+     */
+    private static RuntimeException unwrap(ExecutionException ee)
+    {
+        Throwable cause = ee.getCause();
+        if(cause instanceof RuntimeException)
+        {
+            return (RuntimeException) cause;
+        }
+        if(cause instanceof Error)
+        {
+            throw (Error) cause;
+        }
+        return new AuthenticationException(cause);
+    }
+
+    /**
+     * Stops the worker threads. Logins that are queued or in progress are abandoned.
+     */
+    public void shutdown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Creates named daemon threads, so that they are easy to spot in a thread dump and
+     * never prevent the JVM from exiting.
+     */
+    private static class LoginThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "shiro-login-" + this.count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
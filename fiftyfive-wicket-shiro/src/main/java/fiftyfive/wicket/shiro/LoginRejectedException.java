@@ -0,0 +1,33 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.shiro;
+
+import org.apache.shiro.authc.AuthenticationException;
+
+/**
+ * Thrown by {@link LoginExecutor} when a login could not be attempted because the server is
+ * too busy. Unlike other {@link AuthenticationException AuthenticationExceptions}, this says
+ * nothing about whether the credentials were valid; the user should simply try again.
+ *
+ * @since 4.0
+ */
+public class LoginRejectedException extends AuthenticationException
+{
+    public LoginRejectedException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
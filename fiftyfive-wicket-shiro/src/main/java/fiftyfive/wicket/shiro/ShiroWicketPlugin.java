@@ -17,13 +17,15 @@ package fiftyfive.wicket.shiro;
 
 import java.lang.annotation.Annotation;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import fiftyfive.wicket.shiro.markup.LoginPage;
 import fiftyfive.wicket.shiro.markup.LogoutPage;
+import fiftyfive.wicket.shiro.session.InMemorySessions;
 
+import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.authz.AuthorizationException;
 import org.apache.shiro.authz.UnauthenticatedException;
 import org.apache.shiro.authz.aop.AuthenticatedAnnotationHandler;
@@ -32,9 +34,11 @@ import org.apache.shiro.authz.aop.GuestAnnotationHandler;
 import org.apache.shiro.authz.aop.PermissionAnnotationHandler;
 import org.apache.shiro.authz.aop.RoleAnnotationHandler;
 import org.apache.shiro.authz.aop.UserAnnotationHandler;
+import org.apache.shiro.subject.Subject;
 
 import org.apache.wicket.Application;
 import org.apache.wicket.Component;
+import org.apache.wicket.IApplicationListener;
 import org.apache.wicket.MetaDataKey;
 import org.apache.wicket.Page;
 import org.apache.wicket.RestartResponseAtInterceptPageException;
@@ -59,16 +63,21 @@ import org.apache.wicket.request.cycle.RequestCycle;
 
 import org.apache.wicket.request.flow.ResetResponseException;
 
+import org.apache.wicket.core.request.handler.BookmarkablePageRequestHandler;
+import org.apache.wicket.core.request.handler.IPageClassRequestHandler;
 import org.apache.wicket.core.request.handler.PageProvider;
 import org.apache.wicket.core.request.handler.RenderPageRequestHandler;
 import org.apache.wicket.core.request.handler.RenderPageRequestHandler.RedirectPolicy;
 
 import org.apache.wicket.request.http.WebRequest;
 
+import org.apache.wicket.request.mapper.parameter.PageParameters;
+
 import org.apache.wicket.core.request.mapper.MountedMapper;
 
 import org.apache.wicket.settings.ISecuritySettings;
 
+import org.apache.wicket.util.collections.ClassMetaCache;
 import org.apache.wicket.util.lang.Args;
 
 
@@ -171,9 +180,27 @@ public class ShiroWicketPlugin
      */
     public static final String LOGGED_OUT_MESSAGE_KEY = "loggedOut";
 
+    /**
+     * The query parameter used to carry the login required or unauthorized
+     * feedback message to the login page or unauthorized page when
+     * {@link #setSessionlessFeedback sessionless feedback} is enabled. The value
+     * of the parameter is a message key, like {@code loginRequired}.
+     */
+    public static final String FEEDBACK_PARAMETER = "auth";
+
+    /**
+     * The query parameter used to carry the user's original destination to the
+     * login page when {@link #setSessionlessFeedback sessionless feedback} is
+     * enabled. The value is a URL relative to the Wicket filter path.
+     */
+    public static final String DESTINATION_PARAMETER = "destination";
+
     private static final MetaDataKey<AuthorizationException> EXCEPTION_KEY =
         new MetaDataKey<AuthorizationException>() {};
     
+    private static final MetaDataKey<AuthorizationMemo> MEMO_KEY =
+        new MetaDataKey<AuthorizationMemo>() {};
+    
     private static final MetaDataKey<ShiroWicketPlugin> PLUGIN_KEY =
         new MetaDataKey<ShiroWicketPlugin>() {};
 
@@ -186,6 +213,15 @@ public class ShiroWicketPlugin
             new UserAnnotationHandler()
         };
 
+    private static final Requirement[] NO_REQUIREMENTS = new Requirement[0];
+
+    /**
+     * The Shiro requirements of each component class, resolved once per class. Keyed per
+     * ClassLoader so that redeployed applications can be garbage collected.
+     */
+    private static final ClassMetaCache<Requirement[]> REQUIREMENTS =
+        new ClassMetaCache<Requirement[]>();
+
     /**
      * Returns the {@code ShiroWicketPlugin} instance that has been installed
      * in the current Wicket application. This is a convenience method that
@@ -235,6 +271,9 @@ public class ShiroWicketPlugin
     private Class<? extends Page> logoutPage = LogoutPage.class;
     private Class<? extends Page> unauthorizedPage = null;
     private boolean unauthorizedRedirect = true;
+    private boolean sessionlessFeedback = false;
+    private InMemorySessions inMemorySessions = null;
+    private volatile boolean inMemorySessionsPending = false;
     
     /**
      * The login page class as provided to {@link #mountLoginPage}; the default is
@@ -340,6 +379,72 @@ public class ShiroWicketPlugin
         return this;
     }
     
+    /**
+     * Returns {@code true} if {@link #setSessionlessFeedback sessionless feedback} is enabled;
+     * {@code false} by default.
+     * 
+     * @since 4.0
+     */
+    public boolean getSessionlessFeedback()
+    {
+        return sessionlessFeedback;
+    }
+    
+    /**
+     * By default, when an anonymous user hits a protected page, the "login required" or
+     * "unauthorized" feedback message is stored in the session, which means a session is
+     * created for every such request. On a public site, crawlers and monitoring probes that
+     * hit protected URLs can therefore create a large number of sessions.
+     * <p>
+     * If {@code true}, no session is bound. Instead, the message key is passed to the login
+     * page or unauthorized page in the {@link #FEEDBACK_PARAMETER} query parameter, and the
+     * feedback message is added when that page is rendered. Likewise the user's original
+     * destination is passed to the login page in the {@link #DESTINATION_PARAMETER} query
+     * parameter rather than being saved in the session; {@link fiftyfive.wicket.shiro.markup.AbstractLoginForm AbstractLoginForm}
+     * honors it
+     * after a successful login.
+     * <p>
+     * For this to be effective, the login page and unauthorized page should be stateless.
+     * 
+     * @return {@code this} to allow chaining
+     * 
+     * @since 4.0
+     */
+    public ShiroWicketPlugin setSessionlessFeedback(boolean sessionless)
+    {
+        this.sessionlessFeedback = sessionless;
+        return this;
+    }
+    
+    /**
+     * Returns the {@link InMemorySessions} set via {@link #setInMemorySessions}, or
+     * {@code null} if there are none.
+     * 
+     * @since 4.0
+     */
+    public InMemorySessions getInMemorySessions()
+    {
+        return inMemorySessions;
+    }
+    
+    /**
+     * Use the given high-throughput in-memory session store for Shiro native sessions. When
+     * {@link #install install} is called, the session manager of Shiro's {@code SecurityManager}
+     * will be reconfigured to use it. If the {@code SecurityManager} is not yet available at
+     * that point (as is usually the case when Shiro is configured in {@code web.xml}), this
+     * happens at the start of the first request instead. The default is {@code null}, meaning
+     * that Shiro's session configuration is left untouched.
+     * 
+     * @return {@code this} to allow chaining
+     * 
+     * @since 4.0
+     */
+    public ShiroWicketPlugin setInMemorySessions(InMemorySessions sessions)
+    {
+        this.inMemorySessions = sessions;
+        return this;
+    }
+    
     /**
      * The mount path for the login page as provided to {@link #mountLoginPage}; the default is
      * {@code "login"}.
@@ -366,6 +471,7 @@ public class ShiroWicketPlugin
      * <li>And as an {@link IRequestCycleListener}</li>
      * <li>Mounts the login page</li>
      * <li>Mounts the logout page</li>
+     * <li>Configures the {@link #setInMemorySessions in-memory sessions}, if any</li>
      * </ul>
      */
     public void install(WebApplication app)
@@ -387,6 +493,21 @@ public class ShiroWicketPlugin
             app.mount(new MountedMapper(this.logoutPath, this.logoutPage));
         }
         
+        if(this.inMemorySessions != null)
+        {
+            final InMemorySessions sessions = this.inMemorySessions;
+            this.inMemorySessionsPending = !sessions.configure();
+            app.getApplicationListeners().add(new IApplicationListener() {
+                public void onAfterInitialized(Application application)
+                {
+                }
+                public void onBeforeDestroyed(Application application)
+                {
+                    sessions.shutdown();
+                }
+            });
+        }
+        
         // Install self in app metadata so that static get() can work
         ShiroWicketPlugin.set(app, this);
     }
@@ -432,10 +553,14 @@ public class ShiroWicketPlugin
         if(message != null && !message.matches("^\\s*$"))
         {
             // We need a new session because otherwise our feedback message won't "stick".
+            // Unless sessionless, in which case the message is added as the page is rendered.
             Session session = Session.get();
-            session.bind();
+            if(!this.sessionlessFeedback)
+            {
+                session.bind();
+            }
         
-            // Add localized "you have been logged out" message to session
+            // Add localized "you need to be logged in" message to session
             session.info(message);
         }
     }
@@ -457,8 +582,12 @@ public class ShiroWicketPlugin
         if(message != null && !message.matches("^\\s*$"))
         {
             // We need a new session because otherwise our feedback message won't "stick".
+            // Unless sessionless, in which case the message is added as the page is rendered.
             Session session = Session.get();
-            session.bind();
+            if(!this.sessionlessFeedback)
+            {
+                session.bind();
+            }
         
             // Add localized "sorry, you are not allowed to access that page" message to session
             session.error(message);
@@ -468,6 +597,67 @@ public class ShiroWicketPlugin
     // End feedback message callbacks ----------------------------------------
     
     // Start IRequestCycleListener methods -----------------------------------
+
+    /**
+     * If {@link #setInMemorySessions in-memory sessions} could not be configured at
+     * {@link #install install} time because Shiro's {@code SecurityManager} was not yet
+     * available, configure them now, when Shiro's filter has bound it to the request thread.
+     *
+     * @since 4.0
+     */
+    @Override
+    public void onBeginRequest(RequestCycle cycle)
+    {
+        if(this.inMemorySessionsPending)
+        {
+            this.inMemorySessionsPending = !this.inMemorySessions.configure();
+        }
+    }
+
+    /**
+     * If {@link #setSessionlessFeedback sessionless feedback} is enabled and the login page or
+     * unauthorized page is about to be rendered with a {@link #FEEDBACK_PARAMETER} in the URL,
+     * add the corresponding feedback message by calling {@link #onLoginRequired} or
+     * {@link #onUnauthorized}. Since the message is added in the same request that renders it,
+     * the session does not need to be bound.
+     * <p>
+     * Only page render handlers are considered. Listener requests, like the submit of the login
+     * form, still carry the feedback parameter in their URL but must not add the message again.
+     */
+    @Override
+    public void onRequestHandlerResolved(RequestCycle cycle, IRequestHandler handler)
+    {
+        if(!this.sessionlessFeedback)
+        {
+            return;
+        }
+        if(!(handler instanceof RenderPageRequestHandler) &&
+           !(handler instanceof BookmarkablePageRequestHandler))
+        {
+            return;
+        }
+        // Check the parameter first, so that the page class of an existing page instance is
+        // only looked up when there is a message to add.
+        String key = cycle.getRequest().getQueryParameters()
+                          .getParameterValue(FEEDBACK_PARAMETER).toString();
+        if(null == key)
+        {
+            return;
+        }
+        Class<?> pageClass = ((IPageClassRequestHandler) handler).getPageClass();
+        if(!pageClass.equals(this.loginPage) && !pageClass.equals(getUnauthorizedPage()))
+        {
+            return;
+        }
+        if(LOGIN_REQUIRED_MESSAGE_KEY.equals(key))
+        {
+            onLoginRequired();
+        }
+        else if(UNAUTHORIZED_MESSAGE_KEY.equals(key))
+        {
+            onUnauthorized();
+        }
+    }
     
     /**
      * React to an uncaught Exception by redirecting the browser to
@@ -499,6 +689,7 @@ public class ShiroWicketPlugin
     public IRequestHandler onException(RequestCycle cycle, Exception error)
     {
         Class<? extends Page> respondWithPage = null;
+        PageParameters params = null;
         RedirectPolicy redirectPolicy = RedirectPolicy.NEVER_REDIRECT;
         
         if(error instanceof AuthorizationException)
@@ -508,19 +699,40 @@ public class ShiroWicketPlugin
             {
                 if(loginPage != null)
                 {
-                    onLoginRequired();
-                    
-                    // Create a RestartResponseAtInterceptPageException to set the intercept,
-                    // even though we don't throw the exception. (The magic happens in the
-                    // RestartResponseAtInterceptPageException constructor.)
-                    new RestartResponseAtInterceptPageException(loginPage);
+                    if(this.sessionlessFeedback)
+                    {
+                        // Carry message and destination in the URL rather than the session
+                        params = new PageParameters();
+                        params.set(FEEDBACK_PARAMETER, LOGIN_REQUIRED_MESSAGE_KEY);
+                        params.set(DESTINATION_PARAMETER, cycle.getRequest().getUrl().toString());
+                    }
+                    else
+                    {
+                        onLoginRequired();
+                        
+                        // Create a RestartResponseAtInterceptPageException to set the intercept,
+                        // even though we don't throw the exception. (The magic happens in the
+                        // RestartResponseAtInterceptPageException constructor.)
+                        new RestartResponseAtInterceptPageException(loginPage);
+                    }
                     respondWithPage = loginPage;
                     redirectPolicy = RedirectPolicy.ALWAYS_REDIRECT;
                 }
             }
             else
             {
-                onUnauthorized();
+                if(this.sessionlessFeedback)
+                {
+                    params = new PageParameters();
+                    params.set(FEEDBACK_PARAMETER, UNAUTHORIZED_MESSAGE_KEY);
+                    
+                    // The message parameter only survives if the URL changes
+                    redirectPolicy = RedirectPolicy.ALWAYS_REDIRECT;
+                }
+                else
+                {
+                    onUnauthorized();
+                }
                 
                 if(this.unauthorizedRedirect || (
                     cycle.getRequest() instanceof WebRequest &&
@@ -533,7 +745,9 @@ public class ShiroWicketPlugin
         }
         if(respondWithPage != null)
         {
-            return new RenderPageRequestHandler(new PageProvider(respondWithPage), redirectPolicy);
+            return new RenderPageRequestHandler(
+                new PageProvider(respondWithPage, params),
+                redirectPolicy);
         }
         return null;
     }
@@ -731,29 +945,168 @@ public class ShiroWicketPlugin
     private void assertAuthorized(final Class<?> cls)
         throws AuthorizationException
     {
-        Collection<Annotation> annotations = findAnnotations(cls);
-        for(Annotation annot : annotations)
+        Requirement[] reqs = getRequirements(cls);
+        if(0 == reqs.length)
+        {
+            return;
+        }
+        AuthorizationMemo memo = getAuthorizationMemo();
+        for(Requirement req : reqs)
         {
-            for(AuthorizingAnnotationHandler h : HANDLERS)
+            if(null == memo)
             {
-                h.assertAuthorized(annot);
+                req.handler.assertAuthorized(req.annotation);
+            }
+            else
+            {
+                memo.assertAuthorized(req);
             }
         }
     }
     
     /**
-     * Returns all annotations present on the given class and all of its
-     * superclasses.
+     * Returns the memo of authorization decisions for the current request,
+     * creating it if necessary. Returns {@code null} if there is no request
+     * cycle bound to the current thread. If the identity of the Shiro
+     * Subject has changed since the memo was created (for example, the user
+     * logged in or out during this request), the memo is reset.
      */
-    private Collection<Annotation> findAnnotations(final Class<?> cls)
+    private AuthorizationMemo getAuthorizationMemo()
     {
-        List<Annotation> annots = new ArrayList<Annotation>(5);
+        RequestCycle rc = RequestCycle.get();
+        if(null == rc)
+        {
+            return null;
+        }
+        Subject subject = SecurityUtils.getSubject();
+        Object principal = subject.getPrincipal();
+        boolean authenticated = subject.isAuthenticated();
+        
+        AuthorizationMemo memo = rc.getMetaData(MEMO_KEY);
+        if(null == memo || !memo.isFor(principal, authenticated))
+        {
+            memo = new AuthorizationMemo(principal, authenticated);
+            rc.setMetaData(MEMO_KEY, memo);
+        }
+        return memo;
+    }
+    
+    /**
+     * Returns the Shiro annotations present on the given class and all of its
+     * superclasses, each paired with the handler that evaluates it. The result
+     * is cached per class; classes without Shiro annotations share a single
+     * empty array.
+     */
+    private Requirement[] getRequirements(final Class<?> cls)
+    {
+        Requirement[] reqs = REQUIREMENTS.get(cls);
+        if(null == reqs)
+        {
+            reqs = findRequirements(cls);
+            REQUIREMENTS.put(cls, reqs);
+        }
+        return reqs;
+    }
+    
+    /**
+     * Walks the given class and all of its superclasses looking for
+     * annotations handled by one of the Shiro {@link #HANDLERS}.
+     */
+    private static Requirement[] findRequirements(final Class<?> cls)
+    {
+        List<Requirement> reqs = null;
         Class<?> currClass = cls;
         while(currClass != null)
         {
-            annots.addAll(Arrays.asList(currClass.getDeclaredAnnotations()));
+            for(Annotation annot : currClass.getDeclaredAnnotations())
+            {
+                for(AuthorizingAnnotationHandler h : HANDLERS)
+                {
+                    if(h.getAnnotationClass().isInstance(annot))
+                    {
+                        if(null == reqs)
+                        {
+                            reqs = new ArrayList<Requirement>(2);
+                        }
+                        reqs.add(new Requirement(annot, h));
+                    }
+                }
+            }
             currClass = currClass.getSuperclass();
         }
-        return annots;
+        return null == reqs ? NO_REQUIREMENTS : reqs.toArray(new Requirement[reqs.size()]);
+    }
+    
+    /**
+     * Request-scoped record of the outcome of each distinct Shiro annotation
+     * requirement, so that a page full of components sharing the same
+     * {@code @RequiresPermissions} or {@code @RequiresRoles} asks the Subject
+     * only once. Annotations are compared by value, so equal annotations on
+     * different classes share a single decision.
+     */
+    private static class AuthorizationMemo
+    {
+        private final Object principal;
+        private final boolean authenticated;
+        private final Map<Annotation,AuthorizationException> decisions =
+            new HashMap<Annotation,AuthorizationException>();
+        
+        private AuthorizationMemo(Object principal, boolean authenticated)
+        {
+            this.principal = principal;
+            this.authenticated = authenticated;
+        }
+        
+        private boolean isFor(Object principal, boolean authenticated)
+        {
+            if(this.authenticated != authenticated)
+            {
+                return false;
+            }
+            return null == this.principal ?
+                null == principal :
+                this.principal.equals(principal);
+        }
+        
+        private void assertAuthorized(Requirement req) throws AuthorizationException
+        {
+            AuthorizationException denied;
+            if(this.decisions.containsKey(req.annotation))
+            {
+                denied = this.decisions.get(req.annotation);
+            }
+            else
+            {
+                denied = null;
+                try
+                {
+                    req.handler.assertAuthorized(req.annotation);
+                }
+                catch(AuthorizationException ae)
+                {
+                    denied = ae;
+                }
+                this.decisions.put(req.annotation, denied);
+            }
+            if(denied != null)
+            {
+                throw denied;
+            }
+        }
+    }
+    
+    /**
+     * A Shiro annotation paired with the handler that knows how to evaluate it.
+     */
+    private static class Requirement
+    {
+        private final Annotation annotation;
+        private final AuthorizingAnnotationHandler handler;
+        
+        private Requirement(Annotation annotation, AuthorizingAnnotationHandler handler)
+        {
+            this.annotation = annotation;
+            this.handler = handler;
+        }
     }
 }
@@ -15,12 +15,19 @@
  */
 package fiftyfive.wicket.shiro.markup;
 
+import fiftyfive.wicket.shiro.LoginExecutor;
+import fiftyfive.wicket.shiro.LoginRejectedException;
+import fiftyfive.wicket.shiro.ShiroWicketPlugin;
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.authc.AuthenticationException;
 import org.apache.shiro.authc.UsernamePasswordToken;
 import org.apache.shiro.subject.Subject;
 import org.apache.wicket.Component;
 import org.apache.wicket.markup.html.form.StatelessForm;
+import org.apache.wicket.request.Url;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.request.flow.RedirectToUrlException;
+import org.apache.wicket.request.mapper.parameter.PageParameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,7 +70,9 @@ public abstract class AbstractLoginForm extends StatelessForm<Void>
     /**
      * Delegate to {@link #loginShiro loginShiro()} to peform the authentication; if it
      * succeeds, redirect to the user's original intended destination or to the
-     * application home page.
+     * application home page. The original destination is either saved in the session, or
+     * if {@link ShiroWicketPlugin#setSessionlessFeedback sessionless feedback} is enabled,
+     * passed in the {@link ShiroWicketPlugin#DESTINATION_PARAMETER} page parameter.
      */
     @Override
     protected void onSubmit()
@@ -81,6 +90,7 @@ public abstract class AbstractLoginForm extends StatelessForm<Void>
         if(loginShiro(email, password, remember()))
         {
             continueToOriginalDestination();
+            continueToDestinationParameter();
             // if we reach this line there was no intercept page, so go to home page
             setResponsePage(getApplication().getHomePage());
         }
@@ -93,6 +103,10 @@ public abstract class AbstractLoginForm extends StatelessForm<Void>
      * is replaced with a new session before authentication is performed. This is to
      * prevent a <a href="https://www.owasp.org/index.php/Session_Fixation">session fixation</a>
      * attack. As a side effect, any existing session data will therefore be lost.
+     * <p>
+     * If {@link #getLoginExecutor} returns an executor, the login is performed on one of its
+     * worker threads; if that executor is too busy, {@link #onLoginRejected onLoginRejected()}
+     * is called instead of {@link #onAuthenticationException onAuthenticationException()}.
      * 
      * @return {@code true} if authentication succeeded
      */
@@ -107,11 +121,23 @@ public abstract class AbstractLoginForm extends StatelessForm<Void>
         
         UsernamePasswordToken token;
         token = new UsernamePasswordToken(email, password, remember);
+        LoginExecutor executor = getLoginExecutor();
         try
         {
-            currentUser.login(token);
+            if(executor != null)
+            {
+                executor.login(currentUser, token);
+            }
+            else
+            {
+                currentUser.login(token);
+            }
             return true;
         }
+        catch (LoginRejectedException lre)
+        {
+            onLoginRejected(lre);
+        }
         catch (AuthenticationException ae)
         {
             onAuthenticationException(ae);
@@ -119,6 +145,36 @@ public abstract class AbstractLoginForm extends StatelessForm<Void>
         return false;
     }
     
+    /**
+     * If the page has a {@link ShiroWicketPlugin#DESTINATION_PARAMETER} parameter containing
+     * a URL relative to the Wicket filter path, redirect to it. Absolute URLs and URLs that
+     * specify a host are ignored, so that the parameter can't be used to redirect the user
+     * to another site.
+     * 
+     * @throws RedirectToUrlException to perform the redirect
+     */
+    protected void continueToDestinationParameter()
+    {
+        PageParameters params = getPage().getPageParameters();
+        if(null == params)
+        {
+            return;
+        }
+        String dest = params.get(ShiroWicketPlugin.DESTINATION_PARAMETER).toString();
+        if(null == dest || dest.length() == 0 ||
+           dest.startsWith("/") || dest.startsWith("\\") || dest.contains("://"))
+        {
+            return;
+        }
+        Url url = Url.parse(dest);
+        if(url.getProtocol() != null || url.getHost() != null)
+        {
+            return;
+        }
+        RequestCycle cycle = RequestCycle.get();
+        throw new RedirectToUrlException(cycle.getUrlRenderer().renderRelativeUrl(url));
+    }
+    
     /**
      * Handle any exceptions that are thrown upon login failure by setting an appropriate
      * feedback message. The default implemention adds an error feedback message with the key
@@ -130,6 +186,33 @@ public abstract class AbstractLoginForm extends StatelessForm<Void>
         getEmailField().error(getString("loginFailed", null, "Invalid email and/or password."));
     }
     
+    /**
+     * Called when the login could not be attempted because the
+     * {@link #getLoginExecutor login executor} was saturated or timed out. The default
+     * implementation adds an error feedback message with the key {@code loginBusy} to the
+     * email field.
+     * 
+     * @since 4.0
+     */
+    protected void onLoginRejected(LoginRejectedException lre)
+    {
+        LOGGER.debug("Shiro Subject.login() rejected", lre);
+        getEmailField().error(getString(
+            "loginBusy", null, "We are unable to sign you in right now. Please try again."));
+    }
+    
+    /**
+     * Returns the executor used to run Shiro's {@link Subject#login login()}, or {@code null}
+     * to run it on the request thread. By default this is the {@link LoginExecutor} installed
+     * in the application, if any.
+     * 
+     * @since 4.0
+     */
+    protected LoginExecutor getLoginExecutor()
+    {
+        return LoginExecutor.get();
+    }
+    
     /**
      * Override this method to return {@code true} if you want to enable
      * Shiro's "remember me" feature. By default this returns {@code false}.
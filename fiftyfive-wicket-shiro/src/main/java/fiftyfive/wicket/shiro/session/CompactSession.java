@@ -0,0 +1,177 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.shiro.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.shiro.session.mgt.SimpleSession;
+
+
+/**
+ * A {@link SimpleSession} that keeps its attributes in a single flat array of alternating
+ * keys and values rather than in a {@code HashMap}. A typical web session holds only a
+ * handful of attributes (the Wicket session, the Shiro principals and authentication flag),
+ * for which a hash table with its entry objects and spare capacity costs several times more
+ * memory than the data itself. With a hundred thousand sessions in memory that difference
+ * shows up directly in heap size and GC time. Lookups are a linear scan, which for a few
+ * entries is as fast as hashing.
+ * <p>
+ * Attribute access is synchronized on the session, so concurrent requests for the same
+ * session are safe.
+ *
+ * @since 4.0
+ */
+public class CompactSession extends SimpleSession
+{
+    private static final long serialVersionUID = 1L;
+    
+    private Object[] table;
+    private int size;
+    
+    public CompactSession()
+    {
+        super();
+    }
+
+    public CompactSession(String host)
+    {
+        super(host);
+    }
+
+    @Override
+    public synchronized Object getAttribute(Object key)
+    {
+        int i = indexOf(key);
+        return i < 0 ? null : this.table[i + 1];
+    }
+
+    @Override
+    public synchronized void setAttribute(Object key, Object value)
+    {
+        if(null == value)
+        {
+            removeAttribute(key);
+            return;
+        }
+        int i = indexOf(key);
+        if(i >= 0)
+        {
+            this.table[i + 1] = value;
+            return;
+        }
+        if(null == this.table)
+        {
+            this.table = new Object[8];
+        }
+        else if(this.size * 2 == this.table.length)
+        {
+            Object[] grown = new Object[this.table.length * 2];
+            System.arraycopy(this.table, 0, grown, 0, this.table.length);
+            this.table = grown;
+        }
+        this.table[this.size * 2] = key;
+        this.table[this.size * 2 + 1] = value;
+        this.size++;
+    }
+
+    @Override
+    public synchronized Object removeAttribute(Object key)
+    {
+        int i = indexOf(key);
+        if(i < 0)
+        {
+            return null;
+        }
+        Object removed = this.table[i + 1];
+        int last = (this.size - 1) * 2;
+        // Move the last entry into the vacated slot to keep the array dense
+        this.table[i] = this.table[last];
+        this.table[i + 1] = this.table[last + 1];
+        this.table[last] = null;
+        this.table[last + 1] = null;
+        this.size--;
+        if(0 == this.size)
+        {
+            this.table = null;
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized Collection<Object> getAttributeKeys()
+    {
+        if(0 == this.size)
+        {
+            return Collections.emptySet();
+        }
+        Collection<Object> keys = new ArrayList<Object>(this.size);
+        for(int i=0; i<this.size; i++)
+        {
+            keys.add(this.table[i * 2]);
+        }
+        return keys;
+    }
+
+    /**
+     * Returns a snapshot of the attributes. Changes to the returned map are not reflected
+     * in the session.
+     */
+    @Override
+    public synchronized Map<Object, Object> getAttributes()
+    {
+        if(0 == this.size)
+        {
+            return null;
+        }
+        Map<Object, Object> map = new LinkedHashMap<Object, Object>(this.size * 2);
+        for(int i=0; i<this.size; i++)
+        {
+            map.put(this.table[i * 2], this.table[i * 2 + 1]);
+        }
+        return map;
+    }
+
+    @Override
+    public synchronized void setAttributes(Map<Object, Object> attributes)
+    {
+        this.table = null;
+        this.size = 0;
+        if(attributes != null)
+        {
+            for(Map.Entry<Object, Object> entry : attributes.entrySet())
+            {
+                setAttribute(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private int indexOf(Object key)
+    {
+        for(int i=0; i<this.size; i++)
+        {
+            Object k = this.table[i * 2];
+            if(k == key || (k != null && k.equals(key)))
+            {
+                return i * 2;
+            }
+        }
+        return -1;
+    }
+}
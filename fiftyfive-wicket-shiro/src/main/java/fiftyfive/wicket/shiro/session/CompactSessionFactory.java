@@ -0,0 +1,42 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.shiro.session;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SessionContext;
+import org.apache.shiro.session.mgt.SessionFactory;
+
+
+/**
+ * Creates {@link CompactSession} instances.
+ *
+ * @since 4.0
+ */
+public class CompactSessionFactory implements SessionFactory
+{
+    public Session createSession(SessionContext initData)
+    {
+        if(initData != null)
+        {
+            String host = initData.getHost();
+            if(host != null)
+            {
+                return new CompactSession(host);
+            }
+        }
+        return new CompactSession();
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.shiro.session;
+
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.UnavailableSecurityManagerException;
+import org.apache.shiro.mgt.SecurityManager;
+import org.apache.shiro.mgt.SessionsSecurityManager;
+import org.apache.shiro.session.mgt.DefaultSessionManager;
+import org.apache.shiro.session.mgt.SessionManager;
+import org.apache.shiro.session.mgt.SessionValidationScheduler;
+
+import org.apache.wicket.util.lang.Args;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Configures a Shiro native session manager to use a {@link StripedSessionDAO} for storage,
+ * {@link CompactSession CompactSessions} for attributes, and a
+ * {@link TimingWheelValidationScheduler} for expiry. This is intended for applications
+ * that keep 100k or more sessions in memory, where Shiro's defaults (a coarsely locked DAO,
+ * hash map attributes per session, and a validation job that scans every session each
+ * interval) are a significant memory and GC cost.
+ * <p>
+ * Rather than being a session manager itself, this reconfigures the
+ * {@link DefaultSessionManager} (or a subclass such as Shiro's
+ * {@code DefaultWebSessionManager}) that you have already set up, so that cookie handling
+ * and listeners keep working as before. It has no effect when Shiro delegates to the servlet
+ * container's sessions.
+ * <p>
+ * The easiest way to use it is via the {@link fiftyfive.wicket.shiro.ShiroWicketPlugin}:
+ * <pre class="example">
+ * new ShiroWicketPlugin()
+ *     .setInMemorySessions(new InMemorySessions())
+ *     .install(this);</pre>
+ *
+ * @since 4.0
+ */
+public class InMemorySessions
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(InMemorySessions.class);
+    
+    private final StripedSessionDAO sessionDAO;
+    private TimingWheelValidationScheduler scheduler;
+    
+    /**
+     * Uses a {@link StripedSessionDAO} with its default settings.
+     */
+    public InMemorySessions()
+    {
+        this(new StripedSessionDAO());
+    }
+    
+    public InMemorySessions(StripedSessionDAO sessionDAO)
+    {
+        Args.notNull(sessionDAO, "sessionDAO");
+        this.sessionDAO = sessionDAO;
+    }
+    
+    public StripedSessionDAO getSessionDAO()
+    {
+        return this.sessionDAO;
+    }
+    
+    /**
+     * Returns {@code true} if {@link #configure(SessionManager) configure()} has successfully
+     * been applied to a session manager.
+     */
+    public synchronized boolean isConfigured()
+    {
+        return this.scheduler != null;
+    }
+    
+    /**
+     * Attempts to configure the session manager of the Shiro {@code SecurityManager} that
+     * is available to the current thread.
+     * 
+     * @return {@code false} if no {@code SecurityManager} is available yet, meaning that
+     *         this should be tried again later, e.g. when Shiro's filter has bound one to
+     *         the request thread; otherwise {@code true}
+     */
+    public boolean configure()
+    {
+        SecurityManager securityManager;
+        try
+        {
+            securityManager = SecurityUtils.getSecurityManager();
+        }
+        catch(UnavailableSecurityManagerException usme)
+        {
+            return false;
+        }
+        if(securityManager instanceof SessionsSecurityManager)
+        {
+            configure(((SessionsSecurityManager) securityManager).getSessionManager());
+        }
+        else
+        {
+            LOGGER.warn("Shiro SecurityManager does not manage sessions; " +
+                        "in-memory sessions will not be used");
+        }
+        return true;
+    }
+    
+    /**
+     * Installs the DAO, session factory and validation scheduler into the given session
+     * manager. This should be done before any sessions are created, since sessions held
+     * by the previous DAO will no longer be found.
+     */
+    public synchronized void configure(SessionManager sessionManager)
+    {
+        if(this.scheduler != null)
+        {
+            return;
+        }
+        if(!(sessionManager instanceof DefaultSessionManager))
+        {
+            LOGGER.warn("Shiro session manager {} is not a native DefaultSessionManager; " +
+                        "in-memory sessions will not be used", sessionManager);
+            return;
+        }
+        DefaultSessionManager manager = (DefaultSessionManager) sessionManager;
+        
+        SessionValidationScheduler previous = manager.getSessionValidationScheduler();
+        if(previous != null && previous.isEnabled())
+        {
+            previous.disableSessionValidation();
+        }
+        
+        this.scheduler = new TimingWheelValidationScheduler(manager, this.sessionDAO);
+        manager.setSessionDAO(this.sessionDAO);
+        manager.setSessionFactory(new CompactSessionFactory());
+        manager.setSessionValidationScheduler(this.scheduler);
+        manager.setSessionValidationSchedulerEnabled(true);
+        this.scheduler.enableSessionValidation();
+    }
+    
+    /**
+     * Stops the expiry thread, if it was started.
+     */
+    public synchronized void shutdown()
+    {
+        if(this.scheduler != null)
+        {
+            this.scheduler.disableSessionValidation();
+        }
+    }
+}
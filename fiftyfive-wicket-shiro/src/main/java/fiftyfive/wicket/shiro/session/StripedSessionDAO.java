@@ -0,0 +1,251 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.shiro.session;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.UnknownSessionException;
+import org.apache.shiro.session.mgt.eis.AbstractSessionDAO;
+
+import org.apache.wicket.util.lang.Args;
+import org.apache.wicket.util.time.Duration;
+
+
+/**
+ * An in-memory {@link org.apache.shiro.session.mgt.eis.SessionDAO SessionDAO} designed for a
+ * very large number of concurrent sessions.
+ * <ul>
+ * <li>Sessions are stored in a {@link ConcurrentHashMap} split into a configurable number of
+ *     independently locked stripes, so that creating and deleting sessions from many threads
+ *     at once does not serialize on a single lock. Reads take no lock at all.</li>
+ * <li>Session IDs are also filed into a hashed timing wheel according to when each session
+ *     is due to expire. The {@link TimingWheelValidationScheduler} only needs to look at the
+ *     wheel slots that have come due, rather than scanning every active session as Shiro's
+ *     default validation scheduler does.</li>
+ * </ul>
+ * Touching a session does not move it in the wheel, which keeps the request path cheap.
+ * Instead, when a slot comes due, each session in it is checked against its actual last
+ * access time; sessions that have since been used are simply refiled into the slot where
+ * they are now due.
+ *
+ * @since 4.0
+ */
+public class StripedSessionDAO extends AbstractSessionDAO
+{
+    private final ConcurrentMap<Serializable, Session> sessions;
+    private final Queue<Serializable>[] wheel;
+    private final long tickMillis;
+    private volatile long lastTick = -1;
+    
+    /**
+     * Creates a DAO with 64 stripes and a wheel of 512 one-minute slots.
+     */
+    public StripedSessionDAO()
+    {
+        this(64, 512, Duration.minutes(1));
+    }
+    
+    /**
+     * @param stripes The number of independently locked segments of the session map
+     * @param wheelSlots The number of slots in the expiry timing wheel
+     * @param tick The time covered by each slot; this is the granularity with which expired
+     *             sessions are reclaimed
+     */
+    @SuppressWarnings("unchecked")
+    public StripedSessionDAO(int stripes, int wheelSlots, Duration tick)
+    {
+        super();
+        Args.isTrue(stripes > 0, "stripes must be greater than zero");
+        Args.isTrue(wheelSlots > 0, "wheelSlots must be greater than zero");
+        Args.notNull(tick, "tick");
+        Args.isTrue(tick.getMilliseconds() > 0, "tick must be greater than zero");
+        
+        this.sessions = new ConcurrentHashMap<Serializable, Session>(1024, 0.75f, stripes);
+        this.wheel = new Queue[wheelSlots];
+        for(int i=0; i<wheelSlots; i++)
+        {
+            this.wheel[i] = new ConcurrentLinkedQueue<Serializable>();
+        }
+        this.tickMillis = tick.getMilliseconds();
+    }
+    
+    /**
+     * The time covered by each slot of the timing wheel.
+     */
+    public Duration getTick()
+    {
+        return Duration.milliseconds(this.tickMillis);
+    }
+    
+    /**
+     * The number of sessions currently stored.
+     */
+    public int getActiveSessionCount()
+    {
+        return this.sessions.size();
+    }
+    
+    public void update(Session session) throws UnknownSessionException
+    {
+        Args.notNull(session, "session");
+        Args.notNull(session.getId(), "session.id");
+        this.sessions.put(session.getId(), session);
+    }
+
+    public void delete(Session session)
+    {
+        Args.notNull(session, "session");
+        if(session.getId() != null)
+        {
+            // Any entry left in the wheel is discarded when its slot comes due
+            this.sessions.remove(session.getId());
+        }
+    }
+
+    /**
+     * Returns an unmodifiable live view of the stored sessions.
+     */
+    public Collection<Session> getActiveSessions()
+    {
+        return Collections.unmodifiableCollection(this.sessions.values());
+    }
+
+    @Override
+    protected Serializable doCreate(Session session)
+    {
+        Serializable id = generateSessionId(session);
+        assignSessionId(session, id);
+        this.sessions.put(id, session);
+        schedule(id, session);
+        return id;
+    }
+
+    @Override
+    protected Session doReadSession(Serializable sessionId)
+    {
+        return this.sessions.get(sessionId);
+    }
+    
+    /**
+     * Advances the timing wheel to {@code now} and returns the IDs of the sessions in the
+     * slots that came due whose last access time plus timeout has passed. Each returned
+     * session is no longer in the wheel; the caller should validate it and then call
+     * {@link #reschedule} in case it turns out to be still valid. Sessions in due slots that
+     * have not yet expired are refiled automatically.
+     */
+    synchronized List<Serializable> pollExpired(long now)
+    {
+        List<Serializable> expired = new ArrayList<Serializable>();
+        long nowTick = now / this.tickMillis;
+        if(this.lastTick < 0)
+        {
+            this.lastTick = nowTick - 1;
+        }
+        // After a long pause, one full rotation visits every slot
+        long firstTick = Math.max(this.lastTick + 1, nowTick - this.wheel.length + 1);
+        
+        List<Serializable> later = new ArrayList<Serializable>();
+        for(long t=firstTick; t<=nowTick; t++)
+        {
+            Queue<Serializable> slot = this.wheel[slotIndex(t)];
+            Serializable id;
+            while((id = slot.poll()) != null)
+            {
+                Session session = this.sessions.get(id);
+                if(null == session)
+                {
+                    continue;
+                }
+                long expiresAt = expiresAt(session);
+                if(expiresAt < 0)
+                {
+                    continue;
+                }
+                if(expiresAt <= now)
+                {
+                    expired.add(id);
+                }
+                else
+                {
+                    later.add(id);
+                }
+            }
+            // Refile after draining and marking the slot as done, so that entries due later
+            // in this same tick land in the next slot rather than waiting a full rotation
+            this.lastTick = t;
+            for(Serializable laterId : later)
+            {
+                reschedule(laterId);
+            }
+            later.clear();
+        }
+        this.lastTick = Math.max(this.lastTick, nowTick);
+        return expired;
+    }
+    
+    /**
+     * Files the session with the given ID into the wheel slot for its current expiry time,
+     * if the session still exists.
+     */
+    void reschedule(Serializable id)
+    {
+        Session session = this.sessions.get(id);
+        if(session != null)
+        {
+            schedule(id, session);
+        }
+    }
+    
+    private void schedule(Serializable id, Session session)
+    {
+        long expiresAt = expiresAt(session);
+        if(expiresAt >= 0)
+        {
+            long tick = Math.max(expiresAt / this.tickMillis, this.lastTick + 1);
+            this.wheel[slotIndex(tick)].add(id);
+        }
+    }
+    
+    private int slotIndex(long tick)
+    {
+        return (int) (tick % this.wheel.length);
+    }
+    
+    /**
+     * Returns the time in millis at which the session expires, or -1 if it never does.
+     */
+    private static long expiresAt(Session session)
+    {
+        long timeout = session.getTimeout();
+        if(timeout < 0)
+        {
+            return -1;
+        }
+        Date lastAccess = session.getLastAccessTime();
+        long base = lastAccess != null ? lastAccess.getTime() : System.currentTimeMillis();
+        return base + timeout;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.shiro.session;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.shiro.session.InvalidSessionException;
+import org.apache.shiro.session.mgt.DefaultSessionKey;
+import org.apache.shiro.session.mgt.SessionManager;
+import org.apache.shiro.session.mgt.SessionValidationScheduler;
+
+import org.apache.wicket.util.lang.Args;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A {@link SessionValidationScheduler} that, once per tick of a {@link StripedSessionDAO}
+ * timing wheel, validates only those sessions that the wheel reports as expired. Validation
+ * goes through {@link SessionManager#getSession SessionManager.getSession()}, so expired
+ * sessions are handled exactly as Shiro would: listeners are notified and the session is
+ * deleted from the DAO.
+ *
+ * @since 4.0
+ */
+public class TimingWheelValidationScheduler implements SessionValidationScheduler
+{
+    private static final Logger LOGGER =
+        LoggerFactory.getLogger(TimingWheelValidationScheduler.class);
+    
+    private final SessionManager sessionManager;
+    private final StripedSessionDAO sessionDAO;
+    private ScheduledExecutorService executor;
+    
+    public TimingWheelValidationScheduler(SessionManager sessionManager,
+                                          StripedSessionDAO sessionDAO)
+    {
+        Args.notNull(sessionManager, "sessionManager");
+        Args.notNull(sessionDAO, "sessionDAO");
+        this.sessionManager = sessionManager;
+        this.sessionDAO = sessionDAO;
+    }
+    
+    public synchronized boolean isEnabled()
+    {
+        return this.executor != null;
+    }
+
+    public synchronized void enableSessionValidation()
+    {
+        if(this.executor != null)
+        {
+            return;
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "shiro-session-expiry");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long tick = this.sessionDAO.getTick().getMilliseconds();
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                validateExpired();
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void disableSessionValidation()
+    {
+        if(this.executor != null)
+        {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+    
+    /**
+     * Validates the sessions in the timing wheel slots that have come due. Called
+     * automatically once per tick while validation is enabled.
+     */
+    public void validateExpired()
+    {
+        try
+        {
+            List<Serializable> expired = this.sessionDAO.pollExpired(System.currentTimeMillis());
+            int invalidated = 0;
+            for(Serializable id : expired)
+            {
+                try
+                {
+                    this.sessionManager.getSession(new DefaultSessionKey(id));
+                    // Used or extended since it was polled: put it back in the wheel
+                    this.sessionDAO.reschedule(id);
+                }
+                catch(InvalidSessionException ise)
+                {
+                    invalidated++;
+                }
+            }
+            if(invalidated > 0)
+            {
+                LOGGER.debug("Invalidated {} expired sessions", invalidated);
+            }
+        }
+        catch(RuntimeException re)
+        {
+            // Don't let an exception cancel the scheduled task
+            LOGGER.error("Session expiry failed", re);
+        }
+    }
+}
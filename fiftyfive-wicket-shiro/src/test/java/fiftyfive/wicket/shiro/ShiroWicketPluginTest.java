@@ -35,6 +35,19 @@ public class ShiroWicketPluginTest extends BaseTest
         assertRedirectsToLogin();
     }
     
+    @Test
+    public void testUnauthenticatedRedirectsToLogin_sessionless() throws Exception
+    {
+        mockGuest();
+        ShiroWicketPlugin.get().setSessionlessFeedback(true);
+        this.tester.startPage(AuthenticationRequiredPage.class);
+        assertRedirectsToLogin();
+        Assert.assertEquals(
+            ShiroWicketPlugin.LOGIN_REQUIRED_MESSAGE_KEY,
+            this.tester.getRequest().getParameter(ShiroWicketPlugin.FEEDBACK_PARAMETER));
+        Assert.assertTrue(this.tester.getSession().isTemporary());
+    }
+    
     @Test
     public void testUnauthenticatedRedirectsToLogin_exception() throws Exception
     {
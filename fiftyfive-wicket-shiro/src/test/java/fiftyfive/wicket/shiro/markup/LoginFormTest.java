@@ -15,16 +15,24 @@
  */
 package fiftyfive.wicket.shiro.markup;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import fiftyfive.wicket.shiro.BaseTest;
+import fiftyfive.wicket.shiro.LoginExecutor;
 import fiftyfive.wicket.test.WicketTestUtils;
 import org.apache.shiro.authc.IncorrectCredentialsException;
 import org.apache.shiro.authc.UsernamePasswordToken;
 import org.apache.shiro.subject.Subject;
 import org.apache.wicket.feedback.FeedbackMessage;
 import org.apache.wicket.util.tester.FormTester;
+import org.apache.wicket.util.time.Duration;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import static org.mockito.Mockito.*;
 
 public class LoginFormTest extends BaseTest
@@ -85,6 +93,67 @@ public class LoginFormTest extends BaseTest
         this.tester.assertRenderedPage(this.tester.getApplication().getHomePage());
     }
 
+    @Test
+    public void testLoginTimeoutShowsTryAgainError() throws Exception
+    {
+        final LoginExecutor executor = new LoginExecutor(1, 2, Duration.milliseconds(50));
+        executor.install(this.tester.getApplication());
+        when(this.mockSubject.associateWith(any(Callable.class))).thenAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation)
+            {
+                return invocation.getArguments()[0];
+            }
+        });
+        
+        // Occupy the only worker thread until the form submission has timed out
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Subject busySubject = mock(Subject.class);
+        when(busySubject.associateWith(any(Callable.class))).thenAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation)
+            {
+                return invocation.getArguments()[0];
+            }
+        });
+        doAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocation) throws Exception
+            {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        }).when(busySubject).login(any(UsernamePasswordToken.class));
+        Thread busy = new Thread() {
+            public void run()
+            {
+                executor.login(busySubject, new UsernamePasswordToken("busy", "busy"));
+            }
+        };
+        busy.start();
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        
+        try
+        {
+            FormTester form = render();
+            form.setValue("email", "test@55minutes.com");
+            form.setValue("password", "secret");
+            form.submit();
+            
+            this.tester.assertErrorMessages(
+                "We are unable to sign you in right now. Please try again.");
+        }
+        finally
+        {
+            release.countDown();
+            busy.join();
+        }
+        
+        // The abandoned login must never run once the worker is free. The worker handles its
+        // queue in order, so it has passed the abandoned login when this one completes.
+        executor.login(busySubject, new UsernamePasswordToken("busy", "busy"));
+        verify(this.mockSubject, never()).login(any(UsernamePasswordToken.class));
+    }
+
     private FormTester render() throws Exception
     {
         WicketTestUtils.startComponentWithHtml(
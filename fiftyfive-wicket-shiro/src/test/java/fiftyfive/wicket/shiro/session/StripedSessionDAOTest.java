@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012 55 Minutes (http://www.55minutes.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fiftyfive.wicket.shiro.session;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.DefaultSessionContext;
+import org.apache.shiro.session.mgt.DefaultSessionManager;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.wicket.util.time.Duration;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class StripedSessionDAOTest
+{
+    private DefaultSessionManager manager;
+    private StripedSessionDAO dao;
+    
+    @Before
+    public void createManager()
+    {
+        this.dao = new StripedSessionDAO(4, 16, Duration.seconds(1));
+        this.manager = new DefaultSessionManager();
+        this.manager.setSessionValidationSchedulerEnabled(false);
+        this.manager.setSessionDAO(this.dao);
+        this.manager.setSessionFactory(new CompactSessionFactory());
+        this.manager.setGlobalSessionTimeout(5000);
+    }
+    
+    @Test
+    public void testCompactSessionAttributes()
+    {
+        Session session = this.manager.start(new DefaultSessionContext());
+        for(int i=0; i<10; i++)
+        {
+            session.setAttribute("key" + i, i);
+        }
+        session.removeAttribute("key3");
+        session.setAttribute("key5", "five");
+        session.setAttribute("key7", null);
+        
+        Assert.assertEquals(8, session.getAttributeKeys().size());
+        Assert.assertNull(session.getAttribute("key3"));
+        Assert.assertNull(session.getAttribute("key7"));
+        Assert.assertEquals("five", session.getAttribute("key5"));
+        Assert.assertEquals(9, session.getAttribute("key9"));
+        
+        Session stored = this.dao.readSession(session.getId());
+        Assert.assertTrue(stored instanceof CompactSession);
+        Assert.assertEquals(8, ((CompactSession) stored).getAttributes().size());
+    }
+    
+    @Test
+    public void testPollExpiredOnlyReturnsExpiredSessions()
+    {
+        long t0 = System.currentTimeMillis();
+        Assert.assertTrue(this.dao.pollExpired(t0).isEmpty());
+        
+        Serializable idle = this.manager.start(new DefaultSessionContext()).getId();
+        Serializable active = this.manager.start(new DefaultSessionContext()).getId();
+        Assert.assertEquals(2, this.dao.getActiveSessionCount());
+        
+        // Simulate the second session being used four seconds in
+        ((SimpleSession) this.dao.readSession(active)).setLastAccessTime(new Date(t0 + 4000));
+        
+        Assert.assertTrue(this.dao.pollExpired(t0 + 2000).isEmpty());
+        Assert.assertEquals(Arrays.asList(idle), this.dao.pollExpired(t0 + 6000));
+        Assert.assertEquals(Arrays.asList(active), this.dao.pollExpired(t0 + 10000));
+        Assert.assertTrue(this.dao.pollExpired(t0 + 30000).isEmpty());
+    }
+    
+    @Test
+    public void testDeletedSessionsAreSkipped()
+    {
+        long t0 = System.currentTimeMillis();
+        this.dao.pollExpired(t0);
+        
+        Session session = this.manager.start(new DefaultSessionContext());
+        this.dao.delete(this.dao.readSession(session.getId()));
+        
+        Assert.assertEquals(0, this.dao.getActiveSessionCount());
+        Assert.assertTrue(this.dao.pollExpired(t0 + 6000).isEmpty());
+    }
+}
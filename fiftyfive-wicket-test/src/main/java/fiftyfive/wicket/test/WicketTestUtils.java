@@ -24,10 +24,12 @@ import javax.xml.xpath.XPathExpressionException;
 import fiftyfive.util.XPathHelper;
 
 import org.apache.wicket.Component;
+import org.apache.wicket.Page;
 import org.apache.wicket.markup.html.WebPage;
 import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
 import org.apache.wicket.protocol.http.mock.MockHttpSession;
 import org.apache.wicket.request.mapper.parameter.PageParameters;
+import org.apache.wicket.util.lang.Bytes;
 import org.apache.wicket.util.tester.WicketTester;
 import org.apache.wicket.util.tester.WicketTesterHelper;
 import org.htmlcleaner.CleanerProperties;
@@ -331,6 +333,38 @@ public abstract class WicketTestUtils
          Assert.assertArrayEquals(expectedBytes, actual);
     }
     
+    /**
+     * Asserts that the most recently rendered page serializes to no more than the given
+     * size, using the application's {@link org.apache.wicket.serialize.ISerializer serializer}
+     * just as the page store would.
+     * <pre class="example">
+     * tester.startPage(OrderPage.class);
+     * WicketTestUtils.assertPageSizeBelow(tester, Bytes.kilobytes(50));</pre>
+     * To find out which components and models make up a page that is too large, use
+     * {@code fiftyfive.wicket.util.PageSizeAnalyzer} from {@code fiftyfive-wicket-core}.
+     * 
+     * @return The serialized size of the page, so that further assertions can be made
+     * 
+     * @since 4.0
+     */
+    public static Bytes assertPageSizeBelow(WicketTester tester, Bytes budget)
+    {
+        Page page = tester.getLastRenderedPage();
+        Assert.assertNotNull("No page has been rendered", page);
+        byte[] data = tester.getApplication().getFrameworkSettings().getSerializer()
+                            .serialize(page);
+        Assert.assertNotNull("Page could not be serialized", data);
+        Bytes size = Bytes.bytes(data.length);
+        if(size.greaterThan(budget))
+        {
+            Assert.fail(String.format(
+                "%s exceeds size budget of %s: %s serialized",
+                page.getClass().getName(), budget, size
+            ));
+        }
+        return size;
+    }
+    
     /**
      * Returns the most recently rendered page as a String, as provided by
      * the WicketTester.